@@ -0,0 +1,100 @@
+package com.tinkerpop.blueprints.pgm.impls.multi;
+
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * A Bloom filter over element ids, which tells whether a graph may contain a vertex or edge with a given id.
+ * Ids are hashed by their string form, so that ids which a graph treats as equivalent
+ * (e.g. <code>42L</code> and <code>"42"</code>, in a graph with long ids) are also equivalent here.
+ * Ids may be added concurrently with membership tests.
+ *
+ * @author Joshua Shinavier (http://fortytwo.net)
+ */
+class BloomFilter {
+    private final AtomicLongArray bits;
+    private final int bitCount;
+    private final int hashCount;
+
+    /**
+     * @param expectedIds       the number of ids the filter is expected to hold
+     * @param falsePositiveRate the desired probability that an id not in the filter is reported as present,
+     *                          greater than 0 and less than 1
+     */
+    public BloomFilter(final int expectedIds,
+                       final double falsePositiveRate) {
+        if (!(falsePositiveRate > 0 && falsePositiveRate < 1)) {
+            throw new IllegalArgumentException("false positive rate out of range: " + falsePositiveRate);
+        }
+
+        int n = Math.max(1, expectedIds);
+        double m = -n * Math.log(falsePositiveRate) / (Math.log(2) * Math.log(2));
+
+        bitCount = (int) Math.max(64, Math.min(Integer.MAX_VALUE - 63, Math.ceil(m)));
+        hashCount = (int) Math.max(1, Math.round((double) bitCount / n * Math.log(2)));
+        bits = new AtomicLongArray((bitCount + 63) / 64);
+    }
+
+    public static int hashOf(final Object id) {
+        return id.toString().hashCode();
+    }
+
+    public void add(final Object id) {
+        addHash(hashOf(id));
+    }
+
+    /**
+     * @param hash the hash of an id, as given by <code>hashOf</code>
+     */
+    public void addHash(final int hash) {
+        long h = mix(hash);
+        int h1 = (int) h;
+        int h2 = (int) (h >>> 32);
+
+        for (int i = 0; i < hashCount; i++) {
+            int bit = indexOf(h1 + i * h2);
+            int word = bit >>> 6;
+            long mask = 1L << bit;
+
+            long old;
+            do {
+                old = bits.get(word);
+                if (0 != (old & mask)) {
+                    break;
+                }
+            } while (!bits.compareAndSet(word, old, old | mask));
+        }
+    }
+
+    /**
+     * @return false if the id has definitely not been added to the filter, otherwise true
+     */
+    public boolean mightContain(final Object id) {
+        long h = mix(hashOf(id));
+        int h1 = (int) h;
+        int h2 = (int) (h >>> 32);
+
+        for (int i = 0; i < hashCount; i++) {
+            int bit = indexOf(h1 + i * h2);
+            if (0 == (bits.get(bit >>> 6) & (1L << bit))) {
+                return false;
+            }
+        }
+
+        return true;
+    }
+
+    private int indexOf(final int combinedHash) {
+        return (combinedHash & Integer.MAX_VALUE) % bitCount;
+    }
+
+    // spreads a 32-bit hash over 64 bits (the finalizer of MurmurHash3)
+    private static long mix(final int hash) {
+        long h = hash;
+        h ^= h >>> 33;
+        h *= 0xff51afd7ed558ccdL;
+        h ^= h >>> 33;
+        h *= 0xc4ceb9fe1a85ec53L;
+        h ^= h >>> 33;
+        return h;
+    }
+}
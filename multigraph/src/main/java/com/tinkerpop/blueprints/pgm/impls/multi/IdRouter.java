@@ -0,0 +1,101 @@
+package com.tinkerpop.blueprints.pgm.impls.multi;
+
+/**
+ * A strategy which tells a MultiGraph which of its base graphs may contain a vertex or edge with a given id,
+ * so that the other bases need not be searched.
+ * This is useful where the bases have separate id spaces, e.g. distinguished by a prefix or a hash of the id.
+ *
+ * @author Joshua Shinavier (http://fortytwo.net)
+ */
+public interface IdRouter {
+    /**
+     * @param id the id of a vertex or edge
+     * @return the positions, in ascending order, of the base graphs which may contain a vertex or edge with the given id
+     */
+    int[] getBases(Object id);
+
+    /**
+     * @return whether each id belongs to at most one base graph,
+     *         in which case no vertex or edge of one base is unified with any vertex or edge of another
+     */
+    boolean isDisjoint();
+
+    /**
+     * Routes each id to the bases whose prefixes its string form begins with
+     */
+    public static class PrefixRouter implements IdRouter {
+        private final String[] prefixes;
+        private final boolean disjoint;
+
+        /**
+         * @param prefixes the id prefix of each base graph, in the order of the bases
+         */
+        public PrefixRouter(final String... prefixes) {
+            this.prefixes = prefixes;
+
+            boolean d = true;
+            for (int i = 0; i < prefixes.length; i++) {
+                for (int j = 0; j < prefixes.length; j++) {
+                    if (i != j && prefixes[i].startsWith(prefixes[j])) {
+                        d = false;
+                    }
+                }
+            }
+            disjoint = d;
+        }
+
+        public int[] getBases(final Object id) {
+            String s = id.toString();
+
+            int count = 0;
+            int[] matches = new int[prefixes.length];
+            for (int i = 0; i < prefixes.length; i++) {
+                if (s.startsWith(prefixes[i])) {
+                    matches[count++] = i;
+                }
+            }
+
+            if (count == matches.length) {
+                return matches;
+            } else {
+                int[] result = new int[count];
+                System.arraycopy(matches, 0, result, 0, count);
+                return result;
+            }
+        }
+
+        public boolean isDisjoint() {
+            return disjoint;
+        }
+    }
+
+    /**
+     * Routes each id to a single base graph, by the hash code of the string form of the id.
+     * Ids with the same string form, such as <code>42L</code> and <code>"42"</code>, are routed to the same base,
+     * as is consistent with the string comparison of ids elsewhere in MultiGraph.
+     * The elements of the bases must have been split the same way, i.e. each element stored in the base at
+     * position <code>(id.toString().hashCode() &amp; Integer.MAX_VALUE) % bases</code>;
+     * otherwise, elements stored in any other base will not be found.
+     */
+    public static class HashRouter implements IdRouter {
+        private final int[][] routes;
+
+        /**
+         * @param bases the number of base graphs
+         */
+        public HashRouter(final int bases) {
+            routes = new int[bases][];
+            for (int i = 0; i < bases; i++) {
+                routes[i] = new int[]{i};
+            }
+        }
+
+        public int[] getBases(final Object id) {
+            return routes[(id.toString().hashCode() & Integer.MAX_VALUE) % routes.length];
+        }
+
+        public boolean isDisjoint() {
+            return true;
+        }
+    }
+}
@@ -0,0 +1,102 @@
+package com.tinkerpop.blueprints.pgm.impls.multi;
+
+import java.util.HashSet;
+import java.util.Set;
+
+/**
+ * A set of element ids, used to recognize duplicates in a single pass over several graphs.
+ * Long ids (as used by Neo4j, for example) are kept unboxed in an open-addressing table,
+ * in a fraction of the memory of a <code>HashSet</code>; all other ids are kept in a <code>HashSet</code>.
+ *
+ * @author Joshua Shinavier (http://fortytwo.net)
+ */
+class IdSet {
+    // marks an empty slot in the table; the id with this value is tracked separately
+    private static final long EMPTY = Long.MIN_VALUE;
+
+    private long[] table;
+    private int longCount;
+    private boolean containsEmpty;
+
+    private Set<Object> others;
+
+    public IdSet() {
+        table = newTable(16);
+    }
+
+    /**
+     * @param id an element id
+     * @return whether the id was added, i.e. whether it was not already in the set
+     */
+    public boolean add(final Object id) {
+        if (id instanceof Long) {
+            long l = (Long) id;
+            if (EMPTY == l) {
+                boolean added = !containsEmpty;
+                containsEmpty = true;
+                return added;
+            }
+
+            int i = slotOf(table, l);
+            if (EMPTY != table[i]) {
+                return false;
+            }
+
+            table[i] = l;
+            if (++longCount * 2 > table.length) {
+                resize();
+            }
+            return true;
+        } else {
+            if (null == others) {
+                others = new HashSet<Object>();
+            }
+
+            return others.add(id);
+        }
+    }
+
+    public boolean contains(final Object id) {
+        if (id instanceof Long) {
+            long l = (Long) id;
+            return EMPTY == l
+                    ? containsEmpty
+                    : EMPTY != table[slotOf(table, l)];
+        } else {
+            return null != others && others.contains(id);
+        }
+    }
+
+    // finds either the slot of the given id or the empty slot at which it would be added
+    private static int slotOf(final long[] table,
+                              final long id) {
+        int mask = table.length - 1;
+        long h = id * 0x9E3779B97F4A7C15L;
+        int i = (int) (h ^ (h >>> 32)) & mask;
+        while (EMPTY != table[i] && id != table[i]) {
+            i = (i + 1) & mask;
+        }
+
+        return i;
+    }
+
+    private void resize() {
+        long[] newTable = newTable(table.length * 2);
+        for (long l : table) {
+            if (EMPTY != l) {
+                newTable[slotOf(newTable, l)] = l;
+            }
+        }
+
+        table = newTable;
+    }
+
+    private static long[] newTable(final int size) {
+        long[] t = new long[size];
+        for (int i = 0; i < size; i++) {
+            t[i] = EMPTY;
+        }
+
+        return t;
+    }
+}
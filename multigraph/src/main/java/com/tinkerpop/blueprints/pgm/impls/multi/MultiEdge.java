@@ -2,6 +2,7 @@ package com.tinkerpop.blueprints.pgm.impls.multi;
 
 import com.tinkerpop.blueprints.pgm.Edge;
 import com.tinkerpop.blueprints.pgm.Element;
+import com.tinkerpop.blueprints.pgm.Graph;
 import com.tinkerpop.blueprints.pgm.Vertex;
 
 import java.util.Collection;
@@ -23,6 +24,11 @@ class MultiEdge extends MultiElement implements Edge {
         return (Collection<Element>) (Collection) bases;
     }
 
+    protected Element getOverlayCopy() {
+        Graph overlay = graph.getOverlay();
+        return null == overlay ? null : overlay.getEdge(id);
+    }
+
     public Vertex getOutVertex() {
         return graph.getVertex(bases.iterator().next().getOutVertex().getId());
     }
@@ -13,6 +13,9 @@ abstract class MultiElement implements Element {
     protected final Object id;
     protected final MultiGraph graph;
 
+    // the merged properties of the bases, if property caching is enabled and they have been read
+    private volatile PropertyMap properties;
+
     public MultiElement(final MultiGraph graph,
                         final Object id) {
         this.id = id;
@@ -21,19 +24,38 @@ abstract class MultiElement implements Element {
 
     protected abstract Collection<Element> getBases();
 
+    /**
+     * @return the copy of this vertex or edge in the overlay, if the graph is writable and there is such a copy,
+     *         otherwise null
+     */
+    protected abstract Element getOverlayCopy();
+
     public Object getId() {
         return id;
     }
 
     public void setProperty(String key, Object value) {
-        throw new UnsupportedOperationException(MultiGraph.READONLY_MSG);
+        graph.checkWritable();
+        graph.copyToOverlay(this).setProperty(key, value);
     }
 
     public Object removeProperty(String key) {
-        throw new UnsupportedOperationException(MultiGraph.READONLY_MSG);
+        graph.checkWritable();
+        return graph.copyToOverlay(this).removeProperty(key);
     }
 
     public Object getProperty(String key) {
+        // a copy in the overlay has all of the properties of the element
+        Element copy = getOverlayCopy();
+        if (null != copy) {
+            return copy.getProperty(key);
+        }
+
+        PropertyMap m = getPropertyMap();
+        if (null != m) {
+            return m.get(key);
+        }
+
         for (Element e : getBases()) {
             Object o = e.getProperty(key);
             if (null != o) {
@@ -45,6 +67,16 @@ abstract class MultiElement implements Element {
     }
 
     public Set<String> getPropertyKeys() {
+        Element copy = getOverlayCopy();
+        if (null != copy) {
+            return copy.getPropertyKeys();
+        }
+
+        PropertyMap m = getPropertyMap();
+        if (null != m) {
+            return m.keySet();
+        }
+
         Set<String> keys = new HashSet<String>();
 
         for (Element e : getBases()) {
@@ -53,4 +85,31 @@ abstract class MultiElement implements Element {
 
         return keys;
     }
+
+    /**
+     * @return the merged properties of the bases, which are read on first access and again after the graph is refreshed,
+     *         or null if property caching is disabled
+     */
+    private PropertyMap getPropertyMap() {
+        if (!graph.isPropertyCachingEnabled()) {
+            return null;
+        }
+
+        int generation = graph.getPropertyGeneration();
+        PropertyMap m = properties;
+        if (null == m || m.getGeneration() != generation) {
+            m = new PropertyMap(generation);
+
+            // values in earlier bases take precedence
+            for (Element e : getBases()) {
+                for (String key : e.getPropertyKeys()) {
+                    m.putIfAbsent(key, e.getProperty(key));
+                }
+            }
+
+            properties = m;
+        }
+
+        return m;
+    }
 }
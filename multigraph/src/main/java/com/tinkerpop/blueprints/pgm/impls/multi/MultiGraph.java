@@ -1,25 +1,67 @@
 package com.tinkerpop.blueprints.pgm.impls.multi;
 
 import com.tinkerpop.blueprints.pgm.Edge;
+import com.tinkerpop.blueprints.pgm.Element;
 import com.tinkerpop.blueprints.pgm.Graph;
 import com.tinkerpop.blueprints.pgm.Vertex;
 
-import java.util.Collection;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
 import java.util.Iterator;
+import java.util.LinkedHashMap;
 import java.util.LinkedList;
+import java.util.List;
+import java.util.Map;
+import java.util.NoSuchElementException;
+import java.util.Set;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Future;
+import java.util.concurrent.FutureTask;
+import java.util.concurrent.atomic.AtomicInteger;
 
 /**
  * A read-only Graph implementation which wraps multiple lower-level graphs,
  * providing a unified view of their vertices and edges.
  * Vertices with corresponding ids are unified into single vertices,
  * while edges with corresponding ids are unified to single edges.
+ * Optionally, the first graph may serve as a writable overlay of the others (see <code>setWritable</code>).
  *
  * @author Joshua Shinavier (http://fortytwo.net)
  */
 public class MultiGraph implements Graph {
     static final String READONLY_MSG = "MultiGraph is read-only";
 
+    // the number of ids generated by the overlay for a new vertex or edge before giving up on finding an unused one
+    private static final int MAX_ID_ATTEMPTS = 100;
+
     private final Graph[] bases;
+    private final int[] allBases;
+
+    private volatile boolean writable = false;
+    // the string forms of the ids of vertices and edges removed from the bases
+    private final Set<String> removedVertices = Collections.newSetFromMap(new ConcurrentHashMap<String, Boolean>());
+    private final Set<String> removedEdges = Collections.newSetFromMap(new ConcurrentHashMap<String, Boolean>());
+
+    private volatile IdRouter router;
+    private volatile ExecutorService executor;
+    private volatile Map<Object, Vertex> vertexCache;
+    private volatile Map<Object, Edge> edgeCache;
+
+    private volatile boolean propertyCachingEnabled = false;
+    private final AtomicInteger propertyGeneration = new AtomicInteger();
+
+    // membership filters of the bases, or null if filters are disabled or being rebuilt
+    private volatile BloomFilter[] vertexFilters;
+    private volatile BloomFilter[] edgeFilters;
+    private volatile double filterFalsePositiveRate = 0;
+    private final Object filterLock = new Object();
+    private int filterGeneration = 0;
+    // ids refreshed while filters are being rebuilt
+    private List<Object> pendingIds;
 
     /**
      * Constructs a unified, read-only view of the given graphs.
@@ -33,81 +75,503 @@ public class MultiGraph implements Graph {
      */
     public MultiGraph(final Graph... bases) {
         this.bases = bases;
+
+        allBases = new int[bases.length];
+        for (int i = 0; i < bases.length; i++) {
+            allBases[i] = i;
+        }
+    }
+
+    /**
+     * Makes this graph writable, with the first base graph as an overlay of the others.
+     * All changes are then made in the overlay alone, which is typically a small, in-memory graph
+     * in front of large, read-only bases:
+     * <ul>
+     * <li>new vertices and edges are added to the overlay</li>
+     * <li>a vertex or edge whose properties are changed is first copied, with its merged properties, into the overlay.
+     * Thereafter, the properties of the copy take the place of the properties in the other bases</li>
+     * <li>a vertex or edge is removed by removing it from the overlay, if present,
+     * and if it is also present in any of the other bases, hiding it behind a "tombstone", which is kept in memory.
+     * Removing a vertex also removes its edges</li>
+     * </ul>
+     * The overlay must keep the ids supplied to it, as copies are found by the ids of the originals
+     * (e.g. a TinkerGraph may serve as the overlay, but not a Neo4jGraph).
+     * New vertices and edges with no supplied id are given ids by the overlay,
+     * skipping those which are in use by another base or by a removed vertex or edge.
+     * The changes may later be applied to the bases in a batch, by copying the contents of the overlay
+     * and removing the vertices and edges with the ids given by <code>getRemovedVertexIds</code>
+     * and <code>getRemovedEdgeIds</code>.
+     * Note: while this graph is writable, each vertex and edge read from the other bases
+     * is also looked up in the overlay, to check for a copy; the overlay should be fast to access.
+     *
+     * @param writable whether this graph is writable
+     */
+    public void setWritable(final boolean writable) {
+        if (writable && 0 == bases.length) {
+            throw new IllegalStateException("a writable MultiGraph requires at least one base graph");
+        }
+
+        this.writable = writable;
+        clearCaches();
+    }
+
+    /**
+     * @return the string forms of the ids of all vertices which have been removed from the bases of this graph,
+     *         other than the overlay
+     */
+    public Set<String> getRemovedVertexIds() {
+        return Collections.unmodifiableSet(removedVertices);
+    }
+
+    /**
+     * @return the string forms of the ids of all edges which have been removed from the bases of this graph,
+     *         other than the overlay
+     */
+    public Set<String> getRemovedEdgeIds() {
+        return Collections.unmodifiableSet(removedEdges);
+    }
+
+    /**
+     * Sets a strategy which determines the base graphs in which a vertex or edge with a given id may be found.
+     * Lookups by id then search only those bases,
+     * and if the router declares the bases to be disjoint, iteration over all vertices or edges
+     * no longer checks for the same id in more than one base.
+     * By default, every base is searched.
+     *
+     * @param router the router to use, or null to search every base
+     */
+    public void setIdRouter(final IdRouter router) {
+        this.router = router;
+        clearCaches();
+    }
+
+    /**
+     * Enables the caching of the merged properties of each vertex and edge,
+     * which are then read from the base graphs, in order of precedence, only on first access.
+     * Subsequent calls to <code>getProperty</code> and <code>getPropertyKeys</code> are answered from the cache,
+     * until the graph is refreshed.
+     * Caching is disabled by default.
+     *
+     * @param enabled whether to cache properties
+     */
+    public void setPropertyCachingEnabled(final boolean enabled) {
+        propertyCachingEnabled = enabled;
+        propertyGeneration.incrementAndGet();
+    }
+
+    boolean isPropertyCachingEnabled() {
+        return propertyCachingEnabled;
+    }
+
+    /**
+     * @return a counter which is advanced whenever the bases are refreshed, invalidating all cached properties
+     */
+    int getPropertyGeneration() {
+        return propertyGeneration.get();
+    }
+
+    /**
+     * Enables a Bloom filter over the vertex ids, and another over the edge ids, of each base graph,
+     * so that a lookup by id skips those bases which certainly do not contain the id.
+     * This saves a wasted lookup in each base which does not contain the id (a "miss"),
+     * which is worthwhile for disk-based graphs.
+     * The filters are built immediately, with a full scan of each base.
+     * Filters are disabled by default.
+     *
+     * @param falsePositiveRate the approximate proportion of misses which are not filtered out,
+     *                          e.g. 0.01, or 0 to disable filtering.
+     *                          The filters take about 10 bits per vertex or edge at a rate of 0.01,
+     *                          and about 5 bits per additional halving of the rate.
+     */
+    public void setFilterFalsePositiveRate(final double falsePositiveRate) {
+        if (!(falsePositiveRate >= 0 && falsePositiveRate < 1)) {
+            throw new IllegalArgumentException("false positive rate out of range: " + falsePositiveRate);
+        }
+
+        filterFalsePositiveRate = falsePositiveRate;
+
+        if (0 == falsePositiveRate) {
+            synchronized (filterLock) {
+                filterGeneration++;
+                pendingIds = null;
+                vertexFilters = null;
+                edgeFilters = null;
+            }
+        } else {
+            startRebuild().run();
+        }
+    }
+
+    /**
+     * Rebuilds the Bloom filters in the background, using the executor of this graph if there is one,
+     * otherwise a new thread.
+     * While the filters are being rebuilt, lookups search every base.
+     *
+     * @return the rebuilding task, which is complete once the new filters are in use
+     * @throws IllegalStateException if filtering is disabled
+     */
+    public Future<?> rebuildFilters() {
+        if (0 == filterFalsePositiveRate) {
+            throw new IllegalStateException("membership filters are disabled");
+        }
+
+        FutureTask<Object> task = new FutureTask<Object>(startRebuild(), null);
+
+        ExecutorService ex = executor;
+        if (null == ex) {
+            Thread t = new Thread(task, "MultiGraph filter rebuild");
+            t.setDaemon(true);
+            t.start();
+        } else {
+            ex.execute(task);
+        }
+
+        return task;
+    }
+
+    /**
+     * Sets an executor through which the base graphs are probed concurrently, in vertex and edge lookups by id.
+     * This is worthwhile when the bases are remote or otherwise slow to access,
+     * as a lookup then takes about as long as the slowest base, rather than all of the bases together.
+     * By default, the bases are probed one after another, in the calling thread.
+     *
+     * @param executor the executor to use, or null to probe the bases sequentially.
+     *                 The executor is not shut down along with this graph.
+     */
+    public void setExecutor(final ExecutorService executor) {
+        this.executor = executor;
+    }
+
+    /**
+     * Enables a least-recently-used cache of the vertices and edges found by id,
+     * so that repeated lookups of the same ids do not probe the base graphs again.
+     * Caching is disabled by default.
+     * Note: cached vertices and edges do not reflect vertices and edges subsequently added to or removed from the bases;
+     * use <code>refresh</code> after changing a base.
+     *
+     * @param capacity the maximum number of vertices, and of edges, to cache, or 0 to disable caching
+     */
+    public void setCacheSize(final int capacity) {
+        if (capacity < 0) {
+            throw new IllegalArgumentException("negative cache size: " + capacity);
+        }
+
+        vertexCache = 0 == capacity ? null : new LRUMap<Object, Vertex>(capacity);
+        edgeCache = 0 == capacity ? null : new LRUMap<Object, Edge>(capacity);
+    }
+
+    /**
+     * Discards all cached vertices, edges and properties, so that they are found again in the base graphs,
+     * and rebuilds the Bloom filters of the bases in the background.
+     * This method should be called whenever the bases are changed (if caching or filtering is enabled).
+     */
+    public void refresh() {
+        clearCaches();
+        propertyGeneration.incrementAndGet();
+
+        if (0 != filterFalsePositiveRate) {
+            rebuildFilters();
+        }
+    }
+
+    /**
+     * Discards any cached vertex or edge with the given id, so that it is found again in the base graphs,
+     * invalidates cached properties, and adds the id to the Bloom filters of the bases.
+     * This method may be called instead of the more expensive <code>refresh()</code>
+     * when only a few vertices or edges of the bases are changed.
+     *
+     * @param id the id of a vertex or edge which has been added to or changed in a base graph
+     */
+    public void refresh(final Object id) {
+        // cached properties are not kept by id, so all of them are invalidated
+        propertyGeneration.incrementAndGet();
+
+        invalidate(id);
+
+        synchronized (filterLock) {
+            addToFilters(id);
+            if (null != pendingIds) {
+                pendingIds.add(id);
+            }
+        }
+    }
+
+    private void clearCaches() {
+        Map<Object, Vertex> vc = vertexCache;
+        if (null != vc) {
+            synchronized (vc) {
+                vc.clear();
+            }
+        }
+
+        Map<Object, Edge> ec = edgeCache;
+        if (null != ec) {
+            synchronized (ec) {
+                ec.clear();
+            }
+        }
+    }
+
+    // note: the base containing the id is not known, so the id is added to the filters of all bases
+    private void addToFilters(final Object id) {
+        for (BloomFilter[] filters : new BloomFilter[][]{vertexFilters, edgeFilters}) {
+            if (null != filters) {
+                for (BloomFilter f : filters) {
+                    f.add(id);
+                }
+            }
+        }
+    }
+
+    /**
+     * Disables the current filters and prepares a task which builds and publishes new ones,
+     * unless the filters are disabled or rebuilt again in the meantime.
+     */
+    private Runnable startRebuild() {
+        final int generation;
+        final double rate;
+        synchronized (filterLock) {
+            generation = ++filterGeneration;
+            rate = filterFalsePositiveRate;
+            pendingIds = 0 == rate ? null : new LinkedList<Object>();
+            vertexFilters = null;
+            edgeFilters = null;
+        }
+
+        return new Runnable() {
+            public void run() {
+                // filtering may have been disabled in the meantime
+                if (0 == rate) {
+                    return;
+                }
+
+                BloomFilter[] vf = new BloomFilter[bases.length];
+                BloomFilter[] ef = new BloomFilter[bases.length];
+                for (int i = 0; i < bases.length; i++) {
+                    vf[i] = buildFilter(bases[i].getVertices(), rate);
+                    ef[i] = buildFilter(bases[i].getEdges(), rate);
+                }
+
+                synchronized (filterLock) {
+                    if (generation == filterGeneration) {
+                        vertexFilters = vf;
+                        edgeFilters = ef;
+                        for (Object id : pendingIds) {
+                            addToFilters(id);
+                        }
+                        pendingIds = null;
+                    }
+                }
+            }
+        };
+    }
+
+    // reads the elements once, keeping only the hashes of their ids until the size of the filter is known
+    private static BloomFilter buildFilter(final Iterable<? extends Element> elements,
+                                           final double falsePositiveRate) {
+        int[] hashes = new int[1024];
+        int count = 0;
+        for (Element e : elements) {
+            if (count == hashes.length) {
+                int[] h = new int[hashes.length * 2];
+                System.arraycopy(hashes, 0, h, 0, count);
+                hashes = h;
+            }
+            hashes[count++] = BloomFilter.hashOf(e.getId());
+        }
+
+        BloomFilter f = new BloomFilter(count, falsePositiveRate);
+        for (int i = 0; i < count; i++) {
+            f.addHash(hashes[i]);
+        }
+
+        return f;
     }
 
     public Vertex addVertex(Object id) {
-        throw new UnsupportedOperationException(READONLY_MSG);
+        checkWritable();
+
+        if (null != id) {
+            if (null != getVertex(id)) {
+                throw new IllegalArgumentException("vertex with id already exists: " + id);
+            }
+
+            removedVertices.remove(id.toString());
+        }
+
+        Vertex v = bases[0].addVertex(id);
+
+        // an id chosen by the overlay may belong to a vertex of another base, or to a removed vertex
+        if (!sameId(id, v.getId())) {
+            List<Vertex> rejected = new LinkedList<Vertex>();
+            while (isTaken(VERTICES, v.getId())) {
+                rejected.add(v);
+                if (rejected.size() >= MAX_ID_ATTEMPTS) {
+                    for (Vertex r : rejected) {
+                        bases[0].removeVertex(r);
+                    }
+                    throw new IllegalStateException("overlay failed to generate an unused vertex id");
+                }
+
+                v = bases[0].addVertex(id);
+            }
+
+            for (Vertex r : rejected) {
+                bases[0].removeVertex(r);
+            }
+        }
+
+        invalidate(v.getId());
+        return getVertex(v.getId());
     }
 
     public Vertex getVertex(Object id) {
-        Collection<Vertex> baseVertices = new LinkedList<Vertex>();
+        if (isRemoved(VERTICES, id)) {
+            return null;
+        }
 
-        // TODO: allow bases to be refreshed
-        for (Graph g : bases) {
-            Vertex v = g.getVertex(id);
-            if (null != v) {
-                baseVertices.add(v);
-            }
+        Map<Object, Vertex> cache = vertexCache;
+        Vertex v = getCached(cache, id);
+        if (null != v) {
+            return v;
         }
 
+        int[] positions = new int[bases.length];
+        List<Vertex> baseVertices = probe(VERTICES, id, positions);
+
         if (baseVertices.size() > 0) {
-            return new MultiVertex(this, id, baseVertices);
+            v = new MultiVertex(this, id, baseVertices, positions);
+            putCached(cache, id, v);
+            return v;
         } else {
             return null;
         }
     }
 
     public void removeVertex(Vertex vertex) {
-        throw new UnsupportedOperationException(READONLY_MSG);
+        checkWritable();
+
+        Object id = vertex.getId();
+        Vertex v = getVertex(id);
+        if (null == v) {
+            return;
+        }
+
+        // the edges of the vertex are removed along with it
+        List<Edge> edges = new LinkedList<Edge>();
+        for (Edge e : v.getOutEdges()) {
+            edges.add(e);
+        }
+        for (Edge e : v.getInEdges()) {
+            edges.add(e);
+        }
+        for (Edge e : edges) {
+            removeEdge(e);
+        }
+
+        Vertex copy = bases[0].getVertex(id);
+        if (null != copy) {
+            bases[0].removeVertex(copy);
+        }
+
+        // a vertex which exists only in the overlay needs no tombstone
+        if (isInBases(VERTICES, id)) {
+            removedVertices.add(id.toString());
+        }
+        invalidate(id);
     }
 
     public Edge addEdge(Object id, Vertex outVertex, Vertex inVertex, String label) {
-        throw new UnsupportedOperationException(READONLY_MSG);
+        checkWritable();
+
+        if (null != id) {
+            if (null != getEdge(id)) {
+                throw new IllegalArgumentException("edge with id already exists: " + id);
+            }
+
+            removedEdges.remove(id.toString());
+        }
+
+        Vertex out = copyToOverlay(outVertex);
+        Vertex in = copyToOverlay(inVertex);
+        Edge e = bases[0].addEdge(id, out, in, label);
+
+        // an id chosen by the overlay may belong to an edge of another base, or to a removed edge
+        if (!sameId(id, e.getId())) {
+            List<Edge> rejected = new LinkedList<Edge>();
+            while (isTaken(EDGES, e.getId())) {
+                rejected.add(e);
+                if (rejected.size() >= MAX_ID_ATTEMPTS) {
+                    for (Edge r : rejected) {
+                        bases[0].removeEdge(r);
+                    }
+                    throw new IllegalStateException("overlay failed to generate an unused edge id");
+                }
+
+                e = bases[0].addEdge(id, out, in, label);
+            }
+
+            for (Edge r : rejected) {
+                bases[0].removeEdge(r);
+            }
+        }
+
+        invalidate(e.getId());
+        return getEdge(e.getId());
     }
 
     public Edge getEdge(Object id) {
-        Collection<Edge> baseEdges = new LinkedList<Edge>();
+        if (isRemoved(EDGES, id)) {
+            return null;
+        }
 
-        // TODO: allow bases to be refreshed
-        for (Graph g : bases) {
-            Edge e = g.getEdge(id);
-            if (null != e) {
-                baseEdges.add(e);
-            }
+        Map<Object, Edge> cache = edgeCache;
+        Edge e = getCached(cache, id);
+        if (null != e) {
+            return e;
         }
 
+        List<Edge> baseEdges = probe(EDGES, id, new int[bases.length]);
+
         if (baseEdges.size() > 0) {
-            return new MultiEdge(this, id, baseEdges);
+            e = new MultiEdge(this, id, baseEdges);
+            putCached(cache, id, e);
+            return e;
         } else {
             return null;
         }
     }
 
     public void removeEdge(Edge edge) {
-        throw new UnsupportedOperationException(READONLY_MSG);
-    }
+        checkWritable();
 
-    public Iterable<Vertex> getVertices() {
-        Collection<Iterable<Vertex>> base = new LinkedList<Iterable<Vertex>>();
+        Object id = edge.getId();
+        // an edge removed twice (e.g. a self-loop of a removed vertex) is ignored
+        if (isRemoved(EDGES, id)) {
+            return;
+        }
 
-        for (int pos = 0; pos < bases.length; pos++) {
-            base.add(new MultiVertexIterable(pos));
+        Edge copy = bases[0].getEdge(id);
+        if (null != copy) {
+            bases[0].removeEdge(copy);
         }
 
-        return new MultiIterable<Vertex>(base);
+        if (isInBases(EDGES, id)) {
+            removedEdges.add(id.toString());
+        }
+        invalidate(id);
     }
 
-    public Iterable<Edge> getEdges() {
-        Collection<Iterable<Edge>> base = new LinkedList<Iterable<Edge>>();
-
-        for (int pos = 0; pos < bases.length; pos++) {
-            base.add(new MultiEdgeIterable(pos));
-        }
+    public Iterable<Vertex> getVertices() {
+        return new ScanIterable<Vertex>(VERTICES);
+    }
 
-        return new MultiIterable<Edge>(base);
+    public Iterable<Edge> getEdges() {
+        return new ScanIterable<Edge>(EDGES);
     }
 
     public void clear() {
+        // Note: not supported even if the graph is writable, as it would require a tombstone for every element
         throw new UnsupportedOperationException(READONLY_MSG);
     }
 
@@ -117,99 +581,455 @@ public class MultiGraph implements Graph {
         }
     }
 
-    private class MultiVertexIterable implements Iterable<Vertex> {
-        private final int pos;
+    void checkWritable() {
+        if (!writable) {
+            throw new UnsupportedOperationException(READONLY_MSG);
+        }
+    }
 
-        public MultiVertexIterable(int pos) {
-            this.pos = pos;
+    /**
+     * @return the overlay graph, if this graph is writable, otherwise null
+     */
+    Graph getOverlay() {
+        return writable ? bases[0] : null;
+    }
+
+    /**
+     * Finds or creates the copy of a vertex or edge in the overlay, copying the merged properties of a new copy.
+     * The vertices of a copied edge are also copied.
+     *
+     * @param element a vertex or edge of this graph
+     * @return the copy of the vertex or edge in the overlay
+     */
+    Element copyToOverlay(final Element element) {
+        checkWritable();
+
+        Graph overlay = bases[0];
+        Object id = element.getId();
+
+        Element copy;
+        if (element instanceof Vertex) {
+            copy = overlay.getVertex(id);
+            if (null == copy) {
+                Vertex v = getVertex(id);
+                if (null == v) {
+                    throw new IllegalArgumentException("no such vertex: " + id);
+                }
+
+                Map<String, Object> properties = getProperties(v);
+                copy = overlay.addVertex(id);
+                if (!sameId(id, copy.getId())) {
+                    overlay.removeVertex((Vertex) copy);
+                    throw new IllegalStateException("overlay did not keep the id of copied vertex " + id);
+                }
+                setProperties(copy, properties);
+            }
+        } else {
+            copy = overlay.getEdge(id);
+            if (null == copy) {
+                Edge e = getEdge(id);
+                if (null == e) {
+                    throw new IllegalArgumentException("no such edge: " + id);
+                }
+
+                Map<String, Object> properties = getProperties(e);
+                copy = overlay.addEdge(id, copyToOverlay(e.getOutVertex()), copyToOverlay(e.getInVertex()), e.getLabel());
+                if (!sameId(id, copy.getId())) {
+                    overlay.removeEdge((Edge) copy);
+                    throw new IllegalStateException("overlay did not keep the id of copied edge " + id);
+                }
+                setProperties(copy, properties);
+            }
         }
 
-        public Iterator<Vertex> iterator() {
-            return new Iterator<Vertex>() {
-                private Iterator<Vertex> iter = bases[pos].getVertices().iterator();
-                private Vertex next;
+        invalidate(id);
+        return copy;
+    }
 
-                public boolean hasNext() {
-                    while (null == next) {
-                        if (iter.hasNext()) {
-                            Object id = iter.next().getId();
-
-                            boolean repeat = false;
-                            for (int i = 0; i < pos; i++) {
-                                if (null != bases[i].getVertex(id)) {
-                                    repeat = true;
-                                    break;
-                                }
-                            }
+    private Vertex copyToOverlay(final Vertex vertex) {
+        return (Vertex) copyToOverlay((Element) vertex);
+    }
 
-                            if (!repeat) {
-                                next = getVertex(id);
-                                return true;
-                            }
-                        } else {
-                            return false;
-                        }
-                    }
+    // note: the properties are read before the copy is made, as the copy hides the properties of the original
+    private Map<String, Object> getProperties(final Element element) {
+        Map<String, Object> properties = new HashMap<String, Object>();
+        for (String key : element.getPropertyKeys()) {
+            properties.put(key, element.getProperty(key));
+        }
 
-                    return true;
+        return properties;
+    }
+
+    private void setProperties(final Element element,
+                               final Map<String, Object> properties) {
+        for (Map.Entry<String, Object> entry : properties.entrySet()) {
+            element.setProperty(entry.getKey(), entry.getValue());
+        }
+    }
+
+    // discards the cached vertex or edge with the given id, after a change
+    private void invalidate(final Object id) {
+        Map<Object, Vertex> vc = vertexCache;
+        if (null != vc) {
+            synchronized (vc) {
+                vc.remove(id);
+            }
+        }
+
+        Map<Object, Edge> ec = edgeCache;
+        if (null != ec) {
+            synchronized (ec) {
+                ec.remove(id);
+            }
+        }
+    }
+
+    private boolean isRemoved(final Kind<?> kind,
+                              final Object id) {
+        Set<String> removed = VERTICES == kind ? removedVertices : removedEdges;
+        return !removed.isEmpty() && null != id && removed.contains(id.toString());
+    }
+
+    /**
+     * @return whether any base graph other than the overlay contains a vertex or edge with the given id
+     */
+    private boolean isInBases(final Kind<?> kind,
+                              final Object id) {
+        for (int i : candidates(kind, id)) {
+            if (i > 0 && null != kind.get(bases[i], id)) {
+                return true;
+            }
+        }
+
+        return false;
+    }
+
+    // whether an id may not be given to a new vertex or edge of the overlay
+    private boolean isTaken(final Kind<?> kind,
+                            final Object id) {
+        return isRemoved(kind, id) || isInBases(kind, id);
+    }
+
+    // compares ids by their string forms, as the tombstones do
+    private static boolean sameId(final Object requested,
+                                  final Object actual) {
+        return null != requested && requested.toString().equals(actual.toString());
+    }
+
+    /**
+     * @param pos the position of the base graph in which the vertex or edge was found
+     * @return whether the vertex or edge with the given id has been removed,
+     *         or is shadowed by a copy in the overlay
+     */
+    private boolean isHidden(final Kind<?> kind,
+                             final Object id,
+                             final int pos) {
+        return isRemoved(kind, id)
+                || (pos > 0 && writable && null != kind.get(bases[0], id));
+    }
+
+    boolean isHiddenEdge(final Object id,
+                         final int pos) {
+        return isHidden(EDGES, id, pos);
+    }
+
+    /**
+     * Unifies an edge of a base graph, reached through one of its vertices,
+     * with the corresponding edges of all of the other bases, so that the result is the same edge as
+     * <code>getEdge</code> would give.
+     * This includes the bases which precede the one in which the edge was found,
+     * as the edge may be present in a base in which the vertex is not.
+     *
+     * @param edge an edge of a base graph
+     * @param pos  the position of the base graph in which the edge was found
+     * @return the unified edge
+     */
+    Edge unifyEdge(final Edge edge,
+                   final int pos) {
+        return unify(EDGES, edge, pos, false);
+    }
+
+    /**
+     * @param followingOnly whether the element is known not to be in any of the bases which precede
+     *                      the one in which it was found, so that only the bases which follow it are searched
+     */
+    private <T extends Element> T unify(final Kind<T> kind,
+                                        final T found,
+                                        final int pos,
+                                        final boolean followingOnly) {
+        Object id = found.getId();
+
+        List<T> baseElements = new ArrayList<T>(bases.length);
+        int[] positions = new int[bases.length];
+        boolean foundAdded = false;
+
+        // a copy in the overlay is unified with the original, even in disjoint bases
+        IdRouter r = router;
+        if (null == r || !r.isDisjoint() || (0 == pos && writable)) {
+            for (int i : candidates(kind, id)) {
+                if (i == pos || (i < pos && followingOnly)) {
+                    continue;
                 }
 
-                public Vertex next() {
-                    // Note: requires hasNext to have been called
-                    Vertex v = next;
-                    next = null;
-                    return v;
+                // the elements are kept in the order of the bases
+                if (i > pos && !foundAdded) {
+                    positions[baseElements.size()] = pos;
+                    baseElements.add(found);
+                    foundAdded = true;
                 }
 
-                public void remove() {
-                    throw new UnsupportedOperationException();
+                T other = kind.get(bases[i], id);
+                if (null != other) {
+                    positions[baseElements.size()] = i;
+                    baseElements.add(other);
                 }
-            };
+            }
+        }
+
+        if (!foundAdded) {
+            positions[baseElements.size()] = pos;
+            baseElements.add(found);
+        }
+
+        return kind.unify(this, id, baseElements, positions);
+    }
+
+    /**
+     * @return the positions of the bases which may contain the given id, according to the router and filters.
+     *         The overlay of a writable graph is always included, as it is changed without regard to either.
+     */
+    private int[] candidates(final Kind<?> kind,
+                             final Object id) {
+        IdRouter r = router;
+        int[] routes = null == r ? allBases : r.getBases(id);
+
+        boolean w = writable;
+        boolean addOverlay = w && (0 == routes.length || 0 != routes[0]);
+
+        BloomFilter[] filters = VERTICES == kind ? vertexFilters : edgeFilters;
+        if (null == filters && !addOverlay) {
+            return routes;
+        }
+
+        int count = 0;
+        int[] matches = new int[addOverlay ? routes.length + 1 : routes.length];
+        if (addOverlay) {
+            matches[count++] = 0;
+        }
+        for (int i : routes) {
+            if (null == filters || (w && 0 == i) || filters[i].mightContain(id)) {
+                matches[count++] = i;
+            }
+        }
+
+        if (count == matches.length) {
+            return matches;
+        } else {
+            int[] result = new int[count];
+            System.arraycopy(matches, 0, result, 0, count);
+            return result;
+        }
+    }
+
+    /**
+     * @param positions an array, as long as the array of bases,
+     *                  into which the position of the base of each of the elements found is placed
+     * @return the elements with the given id in each of the base graphs, in the order of the bases
+     */
+    private <T> List<T> probe(final Kind<T> kind,
+                              final Object id,
+                              final int[] positions) {
+        int[] routes = candidates(kind, id);
+
+        List<T> results = new ArrayList<T>(routes.length);
+
+        ExecutorService ex = executor;
+        if (null == ex || routes.length < 2) {
+            for (int i : routes) {
+                T t = kind.get(bases[i], id);
+                if (null != t) {
+                    positions[results.size()] = i;
+                    results.add(t);
+                }
+            }
+        } else {
+            List<Future<T>> futures = new ArrayList<Future<T>>(routes.length);
+            for (int i : routes) {
+                final Graph g = bases[i];
+                futures.add(ex.submit(new Callable<T>() {
+                    public T call() throws Exception {
+                        return kind.get(g, id);
+                    }
+                }));
+            }
+
+            try {
+                for (int i = 0; i < routes.length; i++) {
+                    T t = futures.get(i).get();
+                    if (null != t) {
+                        positions[results.size()] = routes[i];
+                        results.add(t);
+                    }
+                }
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                throw new RuntimeException(e);
+            } catch (ExecutionException e) {
+                Throwable cause = e.getCause();
+                if (cause instanceof RuntimeException) {
+                    throw (RuntimeException) cause;
+                } else if (cause instanceof Error) {
+                    throw (Error) cause;
+                } else {
+                    throw new RuntimeException(cause);
+                }
+            } finally {
+                for (Future<T> f : futures) {
+                    f.cancel(true);
+                }
+            }
+        }
+
+        return results;
+    }
+
+    private <T> T getCached(final Map<Object, T> cache,
+                            final Object id) {
+        if (null == cache) {
+            return null;
+        }
+
+        synchronized (cache) {
+            return cache.get(id);
+        }
+    }
+
+    private <T> void putCached(final Map<Object, T> cache,
+                               final Object id,
+                               final T element) {
+        if (null != cache) {
+            synchronized (cache) {
+                cache.put(id, element);
+            }
+        }
+    }
+
+    // access to either the vertices or the edges of a graph
+    private interface Kind<T> {
+        T get(Graph g, Object id);
+
+        Iterable<T> getAll(Graph g);
+
+        T unify(MultiGraph graph, Object id, List<T> baseElements, int[] positions);
+    }
+
+    private static final Kind<Vertex> VERTICES = new Kind<Vertex>() {
+        public Vertex get(final Graph g, final Object id) {
+            return g.getVertex(id);
+        }
+
+        public Iterable<Vertex> getAll(final Graph g) {
+            return g.getVertices();
+        }
+
+        public Vertex unify(final MultiGraph graph, final Object id, final List<Vertex> baseElements, final int[] positions) {
+            return new MultiVertex(graph, id, baseElements, positions);
+        }
+    };
+
+    private static final Kind<Edge> EDGES = new Kind<Edge>() {
+        public Edge get(final Graph g, final Object id) {
+            return g.getEdge(id);
+        }
+
+        public Iterable<Edge> getAll(final Graph g) {
+            return g.getEdges();
+        }
+
+        public Edge unify(final MultiGraph graph, final Object id, final List<Edge> baseElements, final int[] positions) {
+            return new MultiEdge(graph, id, baseElements);
+        }
+    };
+
+    private static class LRUMap<K, V> extends LinkedHashMap<K, V> {
+        private static final long serialVersionUID = 5107490562527565026L;
+
+        private final int capacity;
+
+        public LRUMap(final int capacity) {
+            super(16, 0.75f, true);
+            this.capacity = capacity;
+        }
+
+        @Override
+        protected boolean removeEldestEntry(final Map.Entry<K, V> eldest) {
+            return size() > capacity;
         }
     }
 
-    private class MultiEdgeIterable implements Iterable<Edge> {
-        private final int pos;
+    /**
+     * An iteration over the elements of all bases, in which each unified element appears once.
+     * The bases are read one after another, and each id is remembered when it is first seen,
+     * so that the elements of later bases which have already been produced are skipped.
+     * A new element is looked up only in the bases which follow the one in which it is found,
+     * as it cannot be in any of the bases which have already been read.
+     * If the bases are known to be disjoint, ids are neither remembered nor looked up at all.
+     */
+    private class ScanIterable<T extends Element> implements Iterable<T> {
+        private final Kind<T> kind;
 
-        public MultiEdgeIterable(int pos) {
-            this.pos = pos;
+        public ScanIterable(final Kind<T> kind) {
+            this.kind = kind;
         }
 
-        public Iterator<Edge> iterator() {
-            return new Iterator<Edge>() {
-                private Iterator<Edge> iter = bases[pos].getEdges().iterator();
-                private Edge next;
+        public Iterator<T> iterator() {
+            final IdRouter r = router;
+
+            return new Iterator<T>() {
+                private final IdSet seen = null != r && r.isDisjoint() ? null : new IdSet();
+                private int pos = -1;
+                private Iterator<T> iter;
+                private T next;
 
                 public boolean hasNext() {
                     while (null == next) {
-                        if (iter.hasNext()) {
-                            Object id = iter.next().getId();
-
-                            boolean repeat = false;
-                            for (int i = 0; i < pos; i++) {
-                                if (null != bases[i].getEdge(id)) {
-                                    repeat = true;
-                                    break;
-                                }
+                        if (null == iter || !iter.hasNext()) {
+                            if (++pos >= bases.length) {
+                                return false;
                             }
 
-                            if (!repeat) {
-                                next = getEdge(id);
-                                return true;
-                            }
-                        } else {
-                            return false;
+                            iter = kind.getAll(bases[pos]).iterator();
+                            continue;
+                        }
+
+                        T t = iter.next();
+                        Object id = t.getId();
+
+                        if (isHidden(kind, id, pos)) {
+                            continue;
+                        }
+
+                        // the ids of the last base need not be remembered
+                        boolean repeat = null != seen && (pos == bases.length - 1
+                                ? seen.contains(id)
+                                : !seen.add(id));
+
+                        if (!repeat) {
+                            next = unify(kind, t, pos, true);
                         }
                     }
 
                     return true;
                 }
 
-                public Edge next() {
-                    // Note: requires hasNext to have been called
-                    Edge v = next;
+                public T next() {
+                    if (!hasNext()) {
+                        throw new NoSuchElementException();
+                    }
+
+                    T t = next;
                     next = null;
-                    return v;
+                    return t;
                 }
 
                 public void remove() {
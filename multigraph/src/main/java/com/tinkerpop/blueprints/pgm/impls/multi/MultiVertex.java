@@ -2,61 +2,142 @@ package com.tinkerpop.blueprints.pgm.impls.multi;
 
 import com.tinkerpop.blueprints.pgm.Edge;
 import com.tinkerpop.blueprints.pgm.Element;
+import com.tinkerpop.blueprints.pgm.Graph;
 import com.tinkerpop.blueprints.pgm.Vertex;
 
+import java.util.ArrayList;
 import java.util.Collection;
-import java.util.HashMap;
-import java.util.Map;
+import java.util.Iterator;
+import java.util.List;
+import java.util.NoSuchElementException;
 
 /**
  * @author Joshua Shinavier (http://fortytwo.net)
  */
 class MultiVertex extends MultiElement implements Vertex {
-    private final Collection<Vertex> bases;
+    private final List<Vertex> bases;
+    private final int[] positions;
 
+    /**
+     * @param graph     the graph of this vertex
+     * @param id        the id of this vertex
+     * @param bases     the corresponding vertices of the base graphs, in the order of the bases
+     * @param positions the position of the base graph of each corresponding vertex
+     */
     public MultiVertex(final MultiGraph graph,
                        final Object id,
-                       final Collection<Vertex> bases) {
+                       final List<Vertex> bases,
+                       final int[] positions) {
         super(graph, id);
         this.bases = bases;
+        this.positions = positions;
     }
 
-    public Iterable<Edge> getOutEdges(String... labels) {
-        // TODO: the hashmap is time-efficient but not scalable
-        Map<Object, Edge> results = new HashMap<Object, Edge>();
+    public Iterable<Edge> getOutEdges(final String... labels) {
+        return new EdgeIterable(true, labels);
+    }
 
-        for (Vertex v : bases) {
-            for (Edge e : v.getOutEdges(labels)) {
-                Object id = e.getId();
+    public Iterable<Edge> getInEdges(final String... labels) {
+        return new EdgeIterable(false, labels);
+    }
 
-                if (null == results.get(id)) {
-                    results.put(id, graph.getEdge(id));
-                }
-            }
-        }
+    protected Collection<Element> getBases() {
+        return (Collection<Element>) (Collection) bases;
+    }
 
-        return results.values();
+    protected Element getOverlayCopy() {
+        Graph overlay = graph.getOverlay();
+        return null == overlay ? null : overlay.getVertex(id);
     }
 
-    public Iterable<Edge> getInEdges(String... labels) {
-        // TODO: the hashmap is time-efficient but not scalable
-        Map<Object, Edge> results = new HashMap<Object, Edge>();
+    /**
+     * The edges of each of the corresponding base vertices in turn, skipping those edges already produced.
+     * Edges are unified as they are reached, so that the edges of a vertex are never all held in memory
+     * (only their ids, and only if the vertex is found in more than one base).
+     * Each edge is unified just as by <code>getEdge</code>, including with any edge with the same id
+     * in a base in which this vertex is not found.
+     * In a writable graph, the edges of the copy of the vertex in the overlay come first,
+     * and removed edges, as well as edges shadowed by copies in the overlay, are skipped.
+     */
+    private class EdgeIterable implements Iterable<Edge> {
+        private final boolean out;
+        private final String[] labels;
 
-        for (Vertex v : bases) {
-            for (Edge e : v.getInEdges(labels)) {
-                Object id = e.getId();
+        public EdgeIterable(final boolean out,
+                            final String[] labels) {
+            this.out = out;
+            this.labels = labels;
+        }
 
-                if (null == results.get(id)) {
-                    results.put(id, graph.getEdge(id));
-                }
+        public Iterator<Edge> iterator() {
+            final List<Vertex> vertices;
+            final int[] vertexPositions;
+
+            // the vertex may have been copied into the overlay since this object was created
+            Graph overlay = graph.getOverlay();
+            Vertex copy = null == overlay || (bases.size() > 0 && 0 == positions[0]) ? null : overlay.getVertex(id);
+            if (null == copy) {
+                vertices = bases;
+                vertexPositions = positions;
+            } else {
+                vertices = new ArrayList<Vertex>(bases.size() + 1);
+                vertexPositions = new int[bases.size() + 1];
+                vertices.add(copy);
+                vertices.addAll(bases);
+                System.arraycopy(positions, 0, vertexPositions, 1, bases.size());
             }
-        }
 
-        return results.values();
-    }
+            return new Iterator<Edge>() {
+                // edges of a single base vertex need no de-duplication
+                private final IdSet seen = vertices.size() > 1 ? new IdSet() : null;
+                private int pos = -1;
+                private Iterator<Edge> iter;
+                private Edge next;
 
-    protected Collection<Element> getBases() {
-        return (Collection<Element>) (Collection) bases;
-    }
+                public boolean hasNext() {
+                    while (null == next) {
+                        if (null == iter || !iter.hasNext()) {
+                            if (++pos >= vertices.size()) {
+                                return false;
+                            }
+
+                            Vertex v = vertices.get(pos);
+                            iter = (out ? v.getOutEdges(labels) : v.getInEdges(labels)).iterator();
+                            continue;
+                        }
+
+                        Edge e = iter.next();
+
+                        if (graph.isHiddenEdge(e.getId(), vertexPositions[pos])) {
+                            continue;
+                        }
+
+                        boolean repeat = null != seen && (pos == vertices.size() - 1
+                                ? seen.contains(e.getId())
+                                : !seen.add(e.getId()));
+
+                        if (!repeat) {
+                            next = graph.unifyEdge(e, vertexPositions[pos]);
+                        }
+                    }
+
+                    return true;
+                }
+
+                public Edge next() {
+                    if (!hasNext()) {
+                        throw new NoSuchElementException();
+                    }
+
+                    Edge e = next;
+                    next = null;
+                    return e;
+                }
 
+                public void remove() {
+                    throw new UnsupportedOperationException();
+                }
+            };
+        }
+    }
 }
@@ -0,0 +1,140 @@
+package com.tinkerpop.blueprints.pgm.impls.multi;
+
+import java.util.AbstractSet;
+import java.util.Iterator;
+import java.util.NoSuchElementException;
+import java.util.Set;
+
+/**
+ * The merged properties of a unified vertex or edge, in a compact open-addressing table.
+ * A map is filled in order of precedence (the first value put for a key is kept), then only read.
+ *
+ * @author Joshua Shinavier (http://fortytwo.net)
+ */
+class PropertyMap {
+    private final int generation;
+
+    private String[] keys;
+    private Object[] values;
+    private int size;
+
+    private Set<String> keySet;
+
+    /**
+     * @param generation the property generation of the graph at the time the map is built
+     */
+    public PropertyMap(final int generation) {
+        this.generation = generation;
+
+        keys = new String[8];
+        values = new Object[8];
+    }
+
+    public int getGeneration() {
+        return generation;
+    }
+
+    /**
+     * Adds a property, unless a value for the same key has already been added
+     */
+    public void putIfAbsent(final String key,
+                            final Object value) {
+        int i = slotOf(keys, key);
+        if (null == keys[i]) {
+            keys[i] = key;
+            values[i] = value;
+
+            if (++size * 2 > keys.length) {
+                resize();
+            }
+        }
+    }
+
+    public Object get(final String key) {
+        return values[slotOf(keys, key)];
+    }
+
+    /**
+     * @return the keys of this map, as an unmodifiable set
+     */
+    public Set<String> keySet() {
+        if (null == keySet) {
+            keySet = new KeySet();
+        }
+
+        return keySet;
+    }
+
+    // finds either the slot of the given key or the empty slot at which it would be added
+    private static int slotOf(final String[] keys,
+                              final String key) {
+        int mask = keys.length - 1;
+        int h = key.hashCode();
+        int i = (h ^ (h >>> 16)) & mask;
+        while (null != keys[i] && !key.equals(keys[i])) {
+            i = (i + 1) & mask;
+        }
+
+        return i;
+    }
+
+    private void resize() {
+        String[] newKeys = new String[keys.length * 2];
+        Object[] newValues = new Object[keys.length * 2];
+        for (int i = 0; i < keys.length; i++) {
+            if (null != keys[i]) {
+                int j = slotOf(newKeys, keys[i]);
+                newKeys[j] = keys[i];
+                newValues[j] = values[i];
+            }
+        }
+
+        keys = newKeys;
+        values = newValues;
+    }
+
+    private class KeySet extends AbstractSet<String> {
+        @Override
+        public Iterator<String> iterator() {
+            return new Iterator<String>() {
+                private int i = advance(0);
+
+                public boolean hasNext() {
+                    return i < keys.length;
+                }
+
+                public String next() {
+                    if (!hasNext()) {
+                        throw new NoSuchElementException();
+                    }
+
+                    String key = keys[i];
+                    i = advance(i + 1);
+                    return key;
+                }
+
+                public void remove() {
+                    throw new UnsupportedOperationException();
+                }
+
+                private int advance(int from) {
+                    while (from < keys.length && null == keys[from]) {
+                        from++;
+                    }
+
+                    return from;
+                }
+            };
+        }
+
+        @Override
+        public int size() {
+            return size;
+        }
+
+        @Override
+        public boolean contains(final Object o) {
+            return o instanceof String && null != keys[slotOf(keys, (String) o)];
+        }
+    }
+}
@@ -10,11 +10,21 @@ import org.junit.Test;
 
 import java.util.Collection;
 import java.util.HashSet;
+import java.util.Iterator;
 import java.util.LinkedList;
+import java.util.NoSuchElementException;
 import java.util.Set;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
 
 import static junit.framework.Assert.assertEquals;
+import static junit.framework.Assert.assertFalse;
+import static junit.framework.Assert.assertNotNull;
+import static junit.framework.Assert.assertNotSame;
+import static junit.framework.Assert.assertNull;
+import static junit.framework.Assert.assertSame;
 import static junit.framework.Assert.assertTrue;
+import static junit.framework.Assert.fail;
 
 /**
  * @author Joshua Shinavier (http://fortytwo.net)
@@ -131,6 +141,434 @@ public class MultiGraphTest {
         assertEquals("but not very well", e.getProperty("comment"));
     }
 
+    @Test
+    public void testScanOfThreeGraphs() throws Exception {
+        Graph base3 = new TinkerGraph();
+        Vertex arthur3 = base3.addVertex("Arthur");
+        Vertex trillian3 = base3.addVertex("Trillian");
+        arthur3.setProperty("species", "human");
+        base3.addEdge("Arthur knows Trillian", arthur3, trillian3, "knows");
+        base3.addEdge("Arthur knows Ford", arthur3, base3.addVertex("Ford"), "knows");
+
+        Graph g = new MultiGraph(base1, base2, base3);
+
+        Set<Object> ids = new HashSet<Object>();
+        int count = 0;
+        for (Vertex v : g.getVertices()) {
+            ids.add(v.getId());
+            count++;
+
+            // each vertex is unified with the corresponding vertices of all three graphs
+            if (v.getId().equals("Arthur")) {
+                assertEquals("he's a jerk", v.getProperty("comment"));
+                assertEquals("human", v.getProperty("species"));
+            }
+        }
+        assertEquals(6, count);
+        assertEquals(6, ids.size());
+
+        ids.clear();
+        count = 0;
+        for (Edge e : g.getEdges()) {
+            ids.add(e.getId());
+            count++;
+        }
+        assertEquals(6, count);
+        assertEquals(6, ids.size());
+    }
+
+    @Test
+    public void testEdgesOfVerticesInThreeGraphs() throws Exception {
+        Graph base3 = new TinkerGraph();
+        Vertex arthur3 = base3.addVertex("Arthur");
+        base3.addEdge("Arthur knows Trillian", arthur3, base3.addVertex("Trillian"), "knows");
+        base3.addEdge("Arthur knows Ford", arthur3, base3.addVertex("Ford"), "knows").setProperty("since", "1979");
+
+        Graph g = new MultiGraph(base1, base2, base3);
+        Vertex arthur = g.getVertex("Arthur");
+
+        Set<Object> ids = new HashSet<Object>();
+        for (Edge e : arthur.getOutEdges("knows")) {
+            assertTrue(ids.add(e.getId()));
+
+            // edges are unified with their counterparts in later graphs
+            if (e.getId().equals("Arthur knows Ford")) {
+                assertEquals("but not very well", e.getProperty("comment"));
+                assertEquals("1979", e.getProperty("since"));
+            }
+        }
+        assertEquals(3, ids.size());
+
+        assertEquals(4, asCollection(arthur.getOutEdges()).size());
+        assertEquals(0, asCollection(arthur.getInEdges()).size());
+
+        Iterator<Edge> iter = g.getVertex("Trillian").getInEdges().iterator();
+        assertEquals("Arthur", iter.next().getOutVertex().getId());
+        assertFalse(iter.hasNext());
+        try {
+            iter.next();
+            fail();
+        } catch (NoSuchElementException e) {
+            // expected
+        }
+    }
+
+    @Test
+    public void testEdgePrecedenceFromVertices() throws Exception {
+        Graph g1 = new TinkerGraph();
+        Graph g2 = new TinkerGraph();
+        g1.addEdge("e", g1.addVertex("a"), g1.addVertex("b"), "knows").setProperty("weight", 1);
+        Edge e2 = g2.addEdge("e", g2.addVertex("c"), g2.addVertex("d"), "knows");
+        e2.setProperty("weight", 2);
+        e2.setProperty("comment", "only in g2");
+        Graph g = new MultiGraph(g1, g2);
+
+        // an edge reached through a vertex which is only in g2 still takes the properties of the edge in g1
+        Edge e = g.getVertex("c").getOutEdges().iterator().next();
+        assertEquals(1, e.getProperty("weight"));
+        assertEquals("only in g2", e.getProperty("comment"));
+        assertEquals(g.getEdge("e").getOutVertex().getId(), e.getOutVertex().getId());
+        assertEquals(1, asCollection(g.getVertex("c").getOutEdges()).size());
+    }
+
+    @Test
+    public void testIdRouting() throws Exception {
+        MultiGraph mg = (MultiGraph) graph;
+
+        // only the routed base is searched
+        mg.setIdRouter(new IdRouter.PrefixRouter("A", "B"));
+        assertEquals("he's a jerk", graph.getVertex("Arthur").getProperty("comment"));
+        assertNotNull(graph.getVertex("Betelgeuse"));
+        assertNull(graph.getVertex("Ford"));
+        assertNull(graph.getEdge("Ford's home planet"));
+        assertEquals(3, asCollection(graph.getVertex("Arthur").getOutEdges()).size());
+
+        // disjoint bases are not checked for duplicates
+        assertEquals(7, asCollection(graph.getVertices()).size());
+        assertEquals(6, asCollection(graph.getEdges()).size());
+
+        IdRouter overlapping = new IdRouter.PrefixRouter("", "F");
+        assertFalse(overlapping.isDisjoint());
+        assertEquals(2, overlapping.getBases("Ford").length);
+        assertEquals(1, overlapping.getBases("Arthur").length);
+        mg.setIdRouter(overlapping);
+        assertEquals("a little odd", graph.getVertex("Ford").getProperty("comment"));
+        assertEquals(5, asCollection(graph.getVertices()).size());
+
+        IdRouter hash = new IdRouter.HashRouter(2);
+        assertTrue(hash.isDisjoint());
+        for (Object id : new Object[]{"Arthur", "Ford", 42L, -7}) {
+            int[] bases = hash.getBases(id);
+            assertEquals(1, bases.length);
+            assertTrue(bases[0] >= 0 && bases[0] < 2);
+        }
+        // ids are routed by their string form
+        assertEquals(hash.getBases("42")[0], hash.getBases(42L)[0]);
+        assertEquals(hash.getBases("42")[0], hash.getBases(42)[0]);
+
+        mg.setIdRouter(null);
+        assertEquals(5, asCollection(graph.getVertices()).size());
+        assertEquals("Earth", graph.getEdge("Ford's home planet").getInVertex().getId());
+    }
+
+    @Test
+    public void testMembershipFilters() throws Exception {
+        MultiGraph mg = (MultiGraph) graph;
+        mg.setFilterFalsePositiveRate(0.01);
+
+        assertEquals("a little odd", graph.getVertex("Ford").getProperty("comment"));
+        assertEquals("Earth", graph.getEdge("Ford's home planet").getInVertex().getId());
+        assertNotNull(graph.getVertex("Betelgeuse"));
+        assertNull(graph.getVertex("Trillian"));
+        assertEquals(2, asCollection(graph.getVertex("Zaphod").getInEdges()).size());
+
+        // the filters do not see vertices added behind the graph's back...
+        base2.addVertex("Trillian");
+        assertNull(graph.getVertex("Trillian"));
+        // ...until they are refreshed, either one id at a time...
+        mg.refresh("Trillian");
+        assertNotNull(graph.getVertex("Trillian"));
+        // ...or all at once
+        base1.addVertex("Marvin");
+        mg.rebuildFilters().get();
+        assertNotNull(graph.getVertex("Marvin"));
+
+        mg.setFilterFalsePositiveRate(0);
+        base1.addVertex("Slartibartfast");
+        assertNotNull(graph.getVertex("Slartibartfast"));
+
+        // disabled filters are not rebuilt
+        try {
+            mg.rebuildFilters();
+            fail();
+        } catch (IllegalStateException ex) {
+            // expected
+        }
+        mg.refresh();
+        assertNotNull(graph.getVertex("Slartibartfast"));
+    }
+
+    @Test
+    public void testBloomFilter() throws Exception {
+        BloomFilter f = new BloomFilter(1000, 0.01);
+        for (long l = 0; l < 1000; l++) {
+            f.add(l);
+        }
+
+        int falsePositives = 0;
+        for (long l = 0; l < 11000; l++) {
+            if (l < 1000) {
+                assertTrue(f.mightContain(l));
+                // ids are compared by their string form
+                assertTrue(f.mightContain("" + l));
+            } else if (f.mightContain(l)) {
+                falsePositives++;
+            }
+        }
+        assertTrue(falsePositives < 300);
+
+        for (double rate : new double[]{0, 1, -0.5, Double.NaN}) {
+            try {
+                new BloomFilter(1000, rate);
+                fail();
+            } catch (IllegalArgumentException ex) {
+                // expected
+            }
+        }
+    }
+
+    @Test
+    public void testCachedProperties() throws Exception {
+        MultiGraph mg = (MultiGraph) graph;
+        mg.setPropertyCachingEnabled(true);
+
+        base2.getVertex("Ford").setProperty("occupation", "researcher");
+        Vertex ford = graph.getVertex("Ford");
+        // Graph #1 still takes precedence
+        assertEquals("a little odd", ford.getProperty("comment"));
+        assertEquals("researcher", ford.getProperty("occupation"));
+        assertNull(ford.getProperty("species"));
+        Set<String> keys = ford.getPropertyKeys();
+        assertEquals(2, keys.size());
+        assertTrue(keys.contains("comment"));
+        assertTrue(keys.contains("occupation"));
+        assertFalse(keys.contains("species"));
+        assertEquals(2, asCollection(keys).size());
+
+        // cached properties do not see changes to the bases until they are refreshed
+        base1.getVertex("Ford").setProperty("comment", "surprisingly well travelled");
+        assertEquals("a little odd", ford.getProperty("comment"));
+        mg.refresh("Ford");
+        assertEquals("surprisingly well travelled", ford.getProperty("comment"));
+
+        // a map large enough to be resized
+        Vertex arthur = base1.getVertex("Arthur");
+        for (int i = 0; i < 100; i++) {
+            arthur.setProperty("p" + i, i);
+        }
+        mg.refresh();
+        assertEquals(101, graph.getVertex("Arthur").getPropertyKeys().size());
+        assertEquals(42, graph.getVertex("Arthur").getProperty("p42"));
+
+        assertEquals("but not very well", graph.getEdge("Arthur knows Ford").getProperty("comment"));
+
+        mg.setPropertyCachingEnabled(false);
+        base1.getVertex("Ford").setProperty("comment", "a little odd");
+        assertEquals("a little odd", ford.getProperty("comment"));
+    }
+
+    @Test
+    public void testWritableOverlay() throws Exception {
+        Graph overlay = new TinkerGraph();
+        MultiGraph g = new MultiGraph(overlay, base1, base2);
+        g.setWritable(true);
+
+        // new vertices and edges go to the overlay
+        Vertex trillian = g.addVertex("Trillian");
+        Vertex arthur = g.getVertex("Arthur");
+        g.addEdge("Arthur knows Trillian", arthur, trillian, "knows");
+        assertNotNull(overlay.getVertex("Trillian"));
+        assertNotNull(overlay.getEdge("Arthur knows Trillian"));
+        assertNull(base1.getEdge("Arthur knows Trillian"));
+        assertEquals(3, asCollection(arthur.getOutEdges("knows")).size());
+        assertEquals(1, asCollection(g.getVertex("Trillian").getInEdges()).size());
+
+        // changed vertices are copied into the overlay, with their merged properties
+        Vertex ford = g.getVertex("Ford");
+        ford.setProperty("occupation", "researcher");
+        assertEquals("researcher", g.getVertex("Ford").getProperty("occupation"));
+        assertEquals("a little odd", overlay.getVertex("Ford").getProperty("comment"));
+        assertNull(base1.getVertex("Ford").getProperty("occupation"));
+        assertEquals("a little odd", ford.removeProperty("comment"));
+        assertNull(ford.getProperty("comment"));
+        assertEquals("a little odd", base1.getVertex("Ford").getProperty("comment"));
+
+        // the same goes for edges, and their vertices
+        Edge e = g.getEdge("Arthur's home planet");
+        e.setProperty("comment", "mostly harmless");
+        assertEquals("mostly harmless", g.getEdge("Arthur's home planet").getProperty("comment"));
+        assertEquals("Earth", overlay.getEdge("Arthur's home planet").getInVertex().getId());
+        assertNull(base1.getEdge("Arthur's home planet").getProperty("comment"));
+
+        // copies do not duplicate the original vertices and edges
+        assertEquals(6, asCollection(g.getVertices()).size());
+        assertEquals(6, asCollection(g.getEdges()).size());
+        assertEquals(4, asCollection(g.getVertex("Arthur").getOutEdges()).size());
+
+        // removed vertices and edges are hidden, but remain in the bases
+        g.removeEdge(g.getEdge("Arthur knows Zaphod"));
+        assertNull(g.getEdge("Arthur knows Zaphod"));
+        assertEquals(1, asCollection(g.getVertex("Zaphod").getInEdges()).size());
+        g.removeVertex(g.getVertex("Ford"));
+        assertNull(g.getVertex("Ford"));
+        assertNull(g.getEdge("Ford knows Zaphod"));
+        assertNull(g.getEdge("Arthur knows Ford"));
+        assertEquals(0, asCollection(g.getVertex("Zaphod").getInEdges()).size());
+        assertEquals(2, asCollection(g.getVertex("Arthur").getOutEdges()).size());
+        assertEquals(5, asCollection(g.getVertices()).size());
+        assertEquals(2, asCollection(g.getEdges()).size());
+        assertNotNull(base1.getVertex("Ford"));
+        assertNotNull(base2.getEdge("Ford knows Zaphod"));
+        assertNull(overlay.getVertex("Ford"));
+        assertTrue(g.getRemovedVertexIds().contains("Ford"));
+        assertTrue(g.getRemovedEdgeIds().contains("Ford's home planet"));
+
+        // a removed id may be reused, for a new vertex
+        ford = g.addVertex("Ford");
+        assertEquals(0, ford.getPropertyKeys().size());
+        assertEquals(0, asCollection(ford.getOutEdges()).size());
+
+        try {
+            g.addVertex("Arthur");
+            fail();
+        } catch (IllegalArgumentException ex) {
+            // expected
+        }
+
+        g.setWritable(false);
+        try {
+            g.addVertex("Marvin");
+            fail();
+        } catch (UnsupportedOperationException ex) {
+            // expected
+        }
+    }
+
+    @Test
+    public void testOverlayIds() throws Exception {
+        Graph base = new TinkerGraph();
+        Vertex zero = base.addVertex("0");
+        zero.setProperty("name", "zero");
+        base.addEdge("2", zero, base.addVertex("1"), "knows");
+
+        Graph overlay = new TinkerGraph();
+        MultiGraph g = new MultiGraph(overlay, base);
+        g.setWritable(true);
+
+        // ids generated by the overlay skip those of the other base, and those of removed vertices
+        g.removeVertex(g.getVertex("1"));
+        assertTrue(g.getRemovedVertexIds().contains("1"));
+        Vertex v = g.addVertex(null);
+        assertNotNull(v);
+        assertFalse("0".equals(v.getId()));
+        assertFalse("1".equals(v.getId()));
+        assertEquals("zero", g.getVertex("0").getProperty("name"));
+        assertEquals(2, asCollection(g.getVertices()).size());
+        Edge e = g.addEdge(null, v, g.getVertex("0"), "knows");
+        assertFalse("2".equals(e.getId()));
+        assertEquals(1, asCollection(g.getVertex("0").getInEdges()).size());
+
+        // vertices and edges which exist only in the overlay leave no tombstones
+        g.removeEdge(e);
+        g.removeVertex(g.getVertex(v.getId()));
+        assertEquals(1, g.getRemovedVertexIds().size());
+        assertEquals(1, g.getRemovedEdgeIds().size());
+
+        // an overlay which ignores supplied ids cannot hold copies
+        Graph ignoring = new TinkerGraph() {
+            @Override
+            public Vertex addVertex(final Object id) {
+                return super.addVertex(null);
+            }
+        };
+        g = new MultiGraph(ignoring, base);
+        g.setWritable(true);
+        try {
+            g.getVertex("1").setProperty("name", "one");
+            fail();
+        } catch (IllegalStateException ex) {
+            // expected
+        }
+        assertEquals(0, asCollection(ignoring.getVertices()).size());
+    }
+
+    @Test
+    public void testIdSet() throws Exception {
+        IdSet s = new IdSet();
+        for (long l = -1000; l < 1000; l++) {
+            assertTrue(s.add(l * 31));
+        }
+        assertTrue(s.add(Long.MIN_VALUE));
+        assertTrue(s.add("Arthur"));
+        // ids of different types are distinct, as they are in a HashSet
+        assertTrue(s.add(31));
+
+        for (long l = -1000; l < 1000; l++) {
+            assertTrue(s.contains(l * 31));
+            assertFalse(s.add(l * 31));
+            assertFalse(s.contains(l * 31 + 1));
+        }
+        assertFalse(s.add(Long.MIN_VALUE));
+        assertFalse(s.add("Arthur"));
+        assertFalse(s.contains("Ford"));
+        assertFalse(s.contains(62));
+    }
+
+    @Test
+    public void testParallelLookups() throws Exception {
+        ExecutorService executor = Executors.newFixedThreadPool(2);
+        try {
+            ((MultiGraph) graph).setExecutor(executor);
+
+            // Graph #1 still takes precedence
+            assertEquals("a little odd", graph.getVertex("Ford").getProperty("comment"));
+            assertEquals("Earth", graph.getEdge("Ford's home planet").getInVertex().getId());
+            assertEquals("Betelgeuse", graph.getVertex("Betelgeuse").getId());
+            assertNull(graph.getVertex("Trillian"));
+            assertNull(graph.getEdge("Arthur knows Trillian"));
+        } finally {
+            executor.shutdown();
+        }
+    }
+
+    @Test
+    public void testCachedLookups() throws Exception {
+        MultiGraph mg = (MultiGraph) graph;
+        mg.setCacheSize(2);
+
+        Vertex arthur = graph.getVertex("Arthur");
+        assertSame(arthur, graph.getVertex("Arthur"));
+        Edge e = graph.getEdge("Arthur knows Ford");
+        assertSame(e, graph.getEdge("Arthur knows Ford"));
+
+        // cached vertices do not see changes to the bases until they are refreshed
+        base2.addVertex("Arthur").setProperty("planet", "Earth");
+        assertNull(graph.getVertex("Arthur").getProperty("planet"));
+        mg.refresh("Arthur");
+        assertEquals("Earth", graph.getVertex("Arthur").getProperty("planet"));
+
+        // the least recently used vertex is evicted
+        graph.getVertex("Ford");
+        graph.getVertex("Zaphod");
+        assertNotSame(arthur, graph.getVertex("Arthur"));
+
+        mg.refresh();
+        assertNotSame(e, graph.getEdge("Arthur knows Ford"));
+
+        mg.setCacheSize(0);
+        assertNotSame(graph.getVertex("Ford"), graph.getVertex("Ford"));
+    }
+
     @Test(expected = UnsupportedOperationException.class)
     public void testClearUnsupported() throws Exception {
         graph.clear();
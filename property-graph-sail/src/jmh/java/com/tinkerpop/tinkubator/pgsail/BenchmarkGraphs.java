@@ -0,0 +1,88 @@
+package com.tinkerpop.tinkubator.pgsail;
+
+import com.tinkerpop.blueprints.Edge;
+import com.tinkerpop.blueprints.Graph;
+import com.tinkerpop.blueprints.TransactionalGraph;
+import com.tinkerpop.blueprints.Vertex;
+import com.tinkerpop.blueprints.impls.tg.TinkerGraph;
+
+import java.util.Random;
+
+/**
+ * Synthetic graphs for benchmarks.
+ *
+ * @author Joshua Shinavier (http://fortytwo.net)
+ */
+class BenchmarkGraphs {
+    public static final String[] LABELS = {"knows", "created"};
+
+    public static final int COMMIT_INTERVAL = 10000;
+
+    /**
+     * Creates a random graph with roughly ten edges per vertex.
+     * Each vertex has a unique <code>name</code> ("vertex0", "vertex1", etc.) and an integer <code>rank</code>,
+     * and each edge has a float <code>weight</code>.
+     *
+     * @param elements the total number of vertices and edges
+     * @return a new TinkerGraph
+     */
+    public static Graph create(final int elements) {
+        Graph g = new TinkerGraph();
+        populate(g, elements);
+        return g;
+    }
+
+    /**
+     * Adds the random graph described by {@link #create(int)} to the given (empty) graph.
+     * A transactional graph is committed every {@link #COMMIT_INTERVAL} elements.
+     *
+     * @param g        the graph to populate
+     * @param elements the total number of vertices and edges
+     */
+    public static void populate(final Graph g,
+                                final int elements) {
+        int vertices = vertexCount(elements);
+        int edges = elements - vertices;
+
+        TransactionalGraph tg = g instanceof TransactionalGraph ? (TransactionalGraph) g : null;
+        Random random = new Random(42);
+
+        Object[] ids = new Object[vertices];
+        for (int i = 0; i < vertices; i++) {
+            Vertex v = g.addVertex(null);
+            v.setProperty("name", nameOf(i));
+            v.setProperty("rank", random.nextInt(100));
+            ids[i] = v.getId();
+            commitIfDue(tg, i + 1);
+        }
+
+        for (int i = 0; i < edges; i++) {
+            Edge e = g.addEdge(null, g.getVertex(ids[random.nextInt(vertices)]), g.getVertex(ids[random.nextInt(vertices)]),
+                    LABELS[i % LABELS.length]);
+            e.setProperty("weight", random.nextFloat());
+            commitIfDue(tg, vertices + i + 1);
+        }
+
+        if (null != tg) {
+            tg.stopTransaction(TransactionalGraph.Conclusion.SUCCESS);
+        }
+    }
+
+    /**
+     * @return the number of vertices in a graph created with the given number of elements
+     */
+    public static int vertexCount(final int elements) {
+        return Math.max(1, elements / 11);
+    }
+
+    public static String nameOf(final int vertexIndex) {
+        return "vertex" + vertexIndex;
+    }
+
+    private static void commitIfDue(final TransactionalGraph tg,
+                                    final int count) {
+        if (null != tg && 0 == count % COMMIT_INTERVAL) {
+            tg.stopTransaction(TransactionalGraph.Conclusion.SUCCESS);
+        }
+    }
+}
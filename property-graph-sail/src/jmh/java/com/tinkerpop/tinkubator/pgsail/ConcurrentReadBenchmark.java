@@ -0,0 +1,213 @@
+package com.tinkerpop.tinkubator.pgsail;
+
+import com.tinkerpop.blueprints.Graph;
+import com.tinkerpop.blueprints.impls.neo4j.Neo4jGraph;
+import com.tinkerpop.blueprints.impls.tg.TinkerGraph;
+import info.aduna.iteration.CloseableIteration;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.infra.Blackhole;
+import org.openrdf.model.Literal;
+import org.openrdf.model.Statement;
+import org.openrdf.model.URI;
+import org.openrdf.model.ValueFactory;
+import org.openrdf.query.BindingSet;
+import org.openrdf.query.QueryEvaluationException;
+import org.openrdf.query.algebra.evaluation.QueryBindingSet;
+import org.openrdf.query.parser.ParsedQuery;
+import org.openrdf.query.parser.sparql.SPARQLParser;
+import org.openrdf.sail.SailConnection;
+import org.openrdf.sail.SailException;
+
+import java.io.File;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Read throughput of a single Sail shared by several threads, each with its own connection.
+ * Run with various thread counts to see how reads scale, e.g.
+ * <code>java -jar target/benchmarks.jar ConcurrentReadBenchmark -t 1</code>, then <code>-t 2</code>,
+ * <code>-t 4</code> and <code>-t 8</code>.
+ *
+ * @author Joshua Shinavier (http://fortytwo.net)
+ */
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 3)
+@Measurement(iterations = 5)
+@Fork(1)
+public class ConcurrentReadBenchmark {
+    private static final int SAMPLE_SIZE = 1024;
+
+    // a one-step traversal
+    private static final String FRIENDS_QUERY = "PREFIX pgm: <" + PropertyGraphSail.ONTOLOGY_NS + ">\n"
+            + "PREFIX prop: <" + PropertyGraphSail.PROPERTY_NS + ">\n"
+            + "SELECT ?friend WHERE {\n"
+            + "   ?v prop:name ?name.\n"
+            + "   ?e pgm:tail ?v.\n"
+            + "   ?e pgm:label \"knows\".\n"
+            + "   ?e pgm:head ?f.\n"
+            + "   ?f prop:name ?friend.\n"
+            + "}";
+
+    /**
+     * The Sail, and the graph beneath it, shared by all threads
+     */
+    @State(Scope.Benchmark)
+    public static class SharedSail {
+        @Param({"tinker", "neo4j"})
+        public String graph;
+
+        @Param({"100000"})
+        public int elements;
+
+        private Graph g;
+        private File dir;
+
+        PropertyGraphSail sail;
+        URI[] vertices;
+        Literal[] names;
+        URI rank;
+        ParsedQuery friendsQuery;
+
+        @Setup(Level.Trial)
+        public void setUp() throws Exception {
+            if (graph.equals("neo4j")) {
+                dir = File.createTempFile("pgsail-benchmark", "");
+                dir.delete();
+                g = new Neo4jGraph(dir.getPath());
+            } else {
+                g = new TinkerGraph();
+            }
+            BenchmarkGraphs.populate(g, elements);
+
+            sail = new PropertyGraphSail(g);
+            if (graph.equals("neo4j")) {
+                sail.setIdCodec(new IdCodec.LongCodec());
+            }
+            sail.initialize();
+
+            ValueFactory vf = sail.getValueFactory();
+            rank = vf.createURI(PropertyGraphSail.PROPERTY_NS + "rank");
+            friendsQuery = new SPARQLParser().parseQuery(FRIENDS_QUERY, "http://example.org/");
+
+            // vertex URIs are found through the Sail, as their ids depend on the graph
+            SailConnection sc = sail.getConnection();
+            try {
+                Random random = new Random(42);
+                int count = BenchmarkGraphs.vertexCount(elements);
+                vertices = new URI[SAMPLE_SIZE];
+                names = new Literal[SAMPLE_SIZE];
+                URI name = vf.createURI(PropertyGraphSail.PROPERTY_NS + "name");
+                for (int i = 0; i < SAMPLE_SIZE; i++) {
+                    names[i] = vf.createLiteral(BenchmarkGraphs.nameOf(random.nextInt(count)));
+                    CloseableIteration<? extends Statement, SailException> iter
+                            = sc.getStatements(null, name, names[i], false);
+                    try {
+                        vertices[i] = (URI) iter.next().getSubject();
+                    } finally {
+                        iter.close();
+                    }
+                }
+            } finally {
+                sc.close();
+            }
+        }
+
+        @TearDown(Level.Trial)
+        public void tearDown() throws Exception {
+            sail.shutDown();
+            g.shutdown();
+            if (null != dir) {
+                deleteRecursively(dir);
+            }
+        }
+    }
+
+    /**
+     * A connection of one thread
+     */
+    @State(Scope.Thread)
+    public static class Reader {
+        SailConnection sc;
+        private int next;
+
+        @Setup(Level.Trial)
+        public void setUp(final SharedSail shared) throws Exception {
+            sc = shared.sail.getConnection();
+            next = (int) Thread.currentThread().getId() % SAMPLE_SIZE;
+        }
+
+        @TearDown(Level.Trial)
+        public void tearDown() throws Exception {
+            sc.close();
+        }
+
+        int nextIndex() {
+            next = (next + 1) % SAMPLE_SIZE;
+            return next;
+        }
+    }
+
+    @Benchmark
+    public long propertyLookup(final SharedSail shared,
+                               final Reader reader,
+                               final Blackhole bh) throws Exception {
+        long count = 0;
+        CloseableIteration<? extends Statement, SailException> iter
+                = reader.sc.getStatements(shared.vertices[reader.nextIndex()], shared.rank, null, false);
+        try {
+            while (iter.hasNext()) {
+                bh.consume(iter.next());
+                count++;
+            }
+        } finally {
+            iter.close();
+        }
+
+        return count;
+    }
+
+    @Benchmark
+    public long friends(final SharedSail shared,
+                        final Reader reader,
+                        final Blackhole bh) throws Exception {
+        QueryBindingSet bindings = new QueryBindingSet();
+        bindings.addBinding("name", shared.names[reader.nextIndex()]);
+
+        long count = 0;
+        CloseableIteration<? extends BindingSet, QueryEvaluationException> iter = reader.sc.evaluate(
+                shared.friendsQuery.getTupleExpr(), shared.friendsQuery.getDataset(), bindings, false);
+        try {
+            while (iter.hasNext()) {
+                bh.consume(iter.next());
+                count++;
+            }
+        } finally {
+            iter.close();
+        }
+
+        return count;
+    }
+
+    private static void deleteRecursively(final File file) {
+        File[] children = file.listFiles();
+        if (null != children) {
+            for (File child : children) {
+                deleteRecursively(child);
+            }
+        }
+        file.delete();
+    }
+}
@@ -0,0 +1,150 @@
+package com.tinkerpop.tinkubator.pgsail;
+
+import com.tinkerpop.blueprints.Graph;
+import info.aduna.iteration.CloseableIteration;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.infra.Blackhole;
+import org.openrdf.model.Literal;
+import org.openrdf.model.ValueFactory;
+import org.openrdf.query.BindingSet;
+import org.openrdf.query.QueryEvaluationException;
+import org.openrdf.query.algebra.evaluation.QueryBindingSet;
+import org.openrdf.query.parser.ParsedQuery;
+import org.openrdf.query.parser.sparql.SPARQLParser;
+import org.openrdf.sail.SailConnection;
+
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Throughput of typical SPARQL queries over synthetic graphs of various sizes.
+ * Each query is parameterized by the name of a vertex, drawn from a fixed random sample.
+ *
+ * @author Joshua Shinavier (http://fortytwo.net)
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 3)
+@Measurement(iterations = 5)
+@Fork(1)
+public class SparqlQueryBenchmark {
+    private static final int SAMPLE_SIZE = 1024;
+
+    private static final String PREFIXES = "PREFIX pgm: <" + PropertyGraphSail.ONTOLOGY_NS + ">\n"
+            + "PREFIX prop: <" + PropertyGraphSail.PROPERTY_NS + ">\n";
+
+    // a property lookup
+    private static final String RANK_QUERY = PREFIXES
+            + "SELECT ?rank WHERE {\n"
+            + "   ?v prop:rank ?rank.\n"
+            + "   ?v prop:name ?name.\n"
+            + "}";
+
+    // a one-step traversal
+    private static final String FRIENDS_QUERY = PREFIXES
+            + "SELECT ?friend WHERE {\n"
+            + "   ?v prop:name ?name.\n"
+            + "   ?e pgm:tail ?v.\n"
+            + "   ?e pgm:label \"knows\".\n"
+            + "   ?e pgm:head ?f.\n"
+            + "   ?f prop:name ?friend.\n"
+            + "}";
+
+    // a two-step traversal
+    private static final String FRIENDS_OF_FRIENDS_QUERY = PREFIXES
+            + "SELECT DISTINCT ?fof WHERE {\n"
+            + "   ?v prop:name ?name.\n"
+            + "   ?e1 pgm:tail ?v.\n"
+            + "   ?e1 pgm:label \"knows\".\n"
+            + "   ?e1 pgm:head ?f.\n"
+            + "   ?e2 pgm:tail ?f.\n"
+            + "   ?e2 pgm:label \"knows\".\n"
+            + "   ?e2 pgm:head ?fof.\n"
+            + "}";
+
+    @Param({"10000", "100000", "1000000"})
+    public int elements;
+
+    private PropertyGraphSail sail;
+    private SailConnection sc;
+
+    private ParsedQuery rankQuery, friendsQuery, friendsOfFriendsQuery;
+    private Literal[] names;
+    private int next = 0;
+
+    @Setup(Level.Trial)
+    public void setUp() throws Exception {
+        Graph g = BenchmarkGraphs.create(elements);
+        sail = new PropertyGraphSail(g);
+        sail.initialize();
+        sc = sail.getConnection();
+
+        SPARQLParser parser = new SPARQLParser();
+        rankQuery = parser.parseQuery(RANK_QUERY, "http://example.org/");
+        friendsQuery = parser.parseQuery(FRIENDS_QUERY, "http://example.org/");
+        friendsOfFriendsQuery = parser.parseQuery(FRIENDS_OF_FRIENDS_QUERY, "http://example.org/");
+
+        ValueFactory vf = sail.getValueFactory();
+        Random random = new Random(42);
+        int vertices = BenchmarkGraphs.vertexCount(elements);
+        names = new Literal[SAMPLE_SIZE];
+        for (int i = 0; i < SAMPLE_SIZE; i++) {
+            names[i] = vf.createLiteral(BenchmarkGraphs.nameOf(random.nextInt(vertices)));
+        }
+    }
+
+    @TearDown(Level.Trial)
+    public void tearDown() throws Exception {
+        sc.close();
+        sail.shutDown();
+    }
+
+    @Benchmark
+    public long rank(final Blackhole bh) throws Exception {
+        return evaluate(rankQuery, bh);
+    }
+
+    @Benchmark
+    public long friends(final Blackhole bh) throws Exception {
+        return evaluate(friendsQuery, bh);
+    }
+
+    @Benchmark
+    public long friendsOfFriends(final Blackhole bh) throws Exception {
+        return evaluate(friendsOfFriendsQuery, bh);
+    }
+
+    private long evaluate(final ParsedQuery query,
+                          final Blackhole bh) throws Exception {
+        next = (next + 1) % SAMPLE_SIZE;
+        QueryBindingSet bindings = new QueryBindingSet();
+        bindings.addBinding("name", names[next]);
+
+        long count = 0;
+        CloseableIteration<? extends BindingSet, QueryEvaluationException> iter
+                = sc.evaluate(query.getTupleExpr(), query.getDataset(), bindings, false);
+        try {
+            while (iter.hasNext()) {
+                bh.consume(iter.next());
+                count++;
+            }
+        } finally {
+            iter.close();
+        }
+
+        return count;
+    }
+}
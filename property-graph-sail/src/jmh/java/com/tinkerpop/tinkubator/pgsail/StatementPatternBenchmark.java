@@ -0,0 +1,158 @@
+package com.tinkerpop.tinkubator.pgsail;
+
+import com.tinkerpop.blueprints.Graph;
+import com.tinkerpop.blueprints.Vertex;
+import info.aduna.iteration.CloseableIteration;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.infra.Blackhole;
+import org.openrdf.model.Literal;
+import org.openrdf.model.Statement;
+import org.openrdf.model.URI;
+import org.openrdf.model.ValueFactory;
+import org.openrdf.sail.SailConnection;
+import org.openrdf.sail.SailException;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Throughput of each of the eight triple pattern shapes, and of <code>size()</code>,
+ * over synthetic graphs of various sizes.
+ * Subject-bound and object-bound patterns draw their subjects and objects from a fixed random sample of vertices.
+ * Run with <code>-prof gc</code> for allocation rates (e.g. bytes per statement of the full scan, <code>xxx</code>),
+ * and with <code>-p elements=10000000</code> for the largest graphs.
+ *
+ * @author Joshua Shinavier (http://fortytwo.net)
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 3)
+@Measurement(iterations = 5)
+@Fork(1)
+public class StatementPatternBenchmark {
+    private static final int SAMPLE_SIZE = 1024;
+
+    @Param({"10000", "100000", "1000000"})
+    public int elements;
+
+    private PropertyGraphSail sail;
+    private SailConnection sc;
+
+    private URI name;
+    private URI[] vertices;
+    private Literal[] names;
+    private int next = 0;
+
+    @Setup(Level.Trial)
+    public void setUp() throws SailException {
+        Graph g = BenchmarkGraphs.create(elements);
+        sail = new PropertyGraphSail(g);
+        sail.initialize();
+        sc = sail.getConnection();
+
+        ValueFactory vf = sail.getValueFactory();
+        name = vf.createURI(PropertyGraphSail.PROPERTY_NS + "name");
+
+        List<Vertex> all = new ArrayList<Vertex>();
+        for (Vertex v : g.getVertices()) {
+            all.add(v);
+        }
+
+        Random random = new Random(42);
+        vertices = new URI[SAMPLE_SIZE];
+        names = new Literal[SAMPLE_SIZE];
+        for (int i = 0; i < SAMPLE_SIZE; i++) {
+            Vertex v = all.get(random.nextInt(all.size()));
+            vertices[i] = vf.createURI(PropertyGraphSail.VERTEX_NS + v.getId());
+            names[i] = vf.createLiteral((String) v.getProperty("name"));
+        }
+    }
+
+    @TearDown(Level.Trial)
+    public void tearDown() throws SailException {
+        sc.close();
+        sail.shutDown();
+    }
+
+    @Benchmark
+    public long xxx(final Blackhole bh) throws SailException {
+        return drain(sc.getStatements(null, null, null, false), bh);
+    }
+
+    @Benchmark
+    public long xPx(final Blackhole bh) throws SailException {
+        return drain(sc.getStatements(null, name, null, false), bh);
+    }
+
+    @Benchmark
+    public long xxO(final Blackhole bh) throws SailException {
+        return drain(sc.getStatements(null, null, names[nextSample()], false), bh);
+    }
+
+    @Benchmark
+    public long xPO(final Blackhole bh) throws SailException {
+        return drain(sc.getStatements(null, name, names[nextSample()], false), bh);
+    }
+
+    @Benchmark
+    public long Sxx(final Blackhole bh) throws SailException {
+        return drain(sc.getStatements(vertices[nextSample()], null, null, false), bh);
+    }
+
+    @Benchmark
+    public long SPx(final Blackhole bh) throws SailException {
+        return drain(sc.getStatements(vertices[nextSample()], name, null, false), bh);
+    }
+
+    @Benchmark
+    public long SxO(final Blackhole bh) throws SailException {
+        int i = nextSample();
+        return drain(sc.getStatements(vertices[i], null, names[i], false), bh);
+    }
+
+    @Benchmark
+    public long SPO(final Blackhole bh) throws SailException {
+        int i = nextSample();
+        return drain(sc.getStatements(vertices[i], name, names[i], false), bh);
+    }
+
+    @Benchmark
+    public long size() throws SailException {
+        return sc.size();
+    }
+
+    private int nextSample() {
+        next = (next + 1) % SAMPLE_SIZE;
+        return next;
+    }
+
+    private long drain(final CloseableIteration<? extends Statement, SailException> iter,
+                       final Blackhole bh) throws SailException {
+        long count = 0;
+        try {
+            while (iter.hasNext()) {
+                bh.consume(iter.next());
+                count++;
+            }
+        } finally {
+            iter.close();
+        }
+
+        return count;
+    }
+}
@@ -0,0 +1,170 @@
+package com.tinkerpop.tinkubator.pgsail;
+
+import com.tinkerpop.blueprints.Edge;
+import com.tinkerpop.blueprints.Graph;
+import com.tinkerpop.blueprints.Vertex;
+import com.tinkerpop.blueprints.util.wrappers.event.listener.GraphChangedListener;
+
+import java.util.Collections;
+import java.util.Iterator;
+import java.util.Map;
+import java.util.NoSuchElementException;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * An in-memory index of the edges of a graph by label.
+ * Only edge ids are kept in the index; edges are fetched from the graph at lookup time,
+ * and entries for edges which no longer exist (or whose label has changed) are skipped.
+ *
+ * @author Joshua Shinavier (http://fortytwo.net)
+ */
+class EdgeLabelIndex implements GraphChangedListener {
+    private final Graph graph;
+    private volatile Map<String, Set<Object>> idsByLabel = new ConcurrentHashMap<String, Set<Object>>();
+    // the index being built by rebuild(), if any, which also receives changes made during the rebuild
+    private volatile Map<String, Set<Object>> rebuilding;
+
+    public EdgeLabelIndex(final Graph graph) {
+        this.graph = graph;
+    }
+
+    /**
+     * Re-indexes all edges in the graph into a new index, which then replaces the current one
+     */
+    public synchronized void rebuild() {
+        // lookups continue against the current index until the new one is complete
+        Map<String, Set<Object>> fresh = new ConcurrentHashMap<String, Set<Object>>();
+        rebuilding = fresh;
+        try {
+            for (Edge e : graph.getEdges()) {
+                add(fresh, e);
+            }
+
+            idsByLabel = fresh;
+        } finally {
+            rebuilding = null;
+        }
+    }
+
+    public void add(final Edge e) {
+        add(idsByLabel, e);
+
+        Map<String, Set<Object>> r = rebuilding;
+        if (null != r) {
+            add(r, e);
+        }
+    }
+
+    public void remove(final Edge e) {
+        remove(idsByLabel, e);
+
+        Map<String, Set<Object>> r = rebuilding;
+        if (null != r) {
+            remove(r, e);
+        }
+    }
+
+    private static void add(final Map<String, Set<Object>> index,
+                            final Edge e) {
+        String label = e.getLabel();
+        Set<Object> ids = index.get(label);
+        if (null == ids) {
+            synchronized (index) {
+                ids = index.get(label);
+                if (null == ids) {
+                    ids = Collections.newSetFromMap(new ConcurrentHashMap<Object, Boolean>());
+                    index.put(label, ids);
+                }
+            }
+        }
+
+        ids.add(e.getId());
+    }
+
+    private static void remove(final Map<String, Set<Object>> index,
+                               final Edge e) {
+        Set<Object> ids = index.get(e.getLabel());
+        if (null != ids) {
+            ids.remove(e.getId());
+        }
+    }
+
+    /**
+     * @param label an edge label
+     * @return an iterator over all edges in the graph with the given label
+     */
+    public Iterator<Edge> getEdges(final String label) {
+        Set<Object> ids = idsByLabel.get(label);
+        if (null == ids) {
+            return Collections.<Edge>emptyList().iterator();
+        }
+
+        final Iterator<Object> idIterator = ids.iterator();
+
+        return new Iterator<Edge>() {
+            private Edge next;
+
+            public boolean hasNext() {
+                while (null == next) {
+                    if (idIterator.hasNext()) {
+                        Edge e = graph.getEdge(idIterator.next());
+                        if (null != e && e.getLabel().equals(label)) {
+                            next = e;
+                        }
+                    } else {
+                        return false;
+                    }
+                }
+
+                return true;
+            }
+
+            public Edge next() {
+                if (!hasNext()) {
+                    throw new NoSuchElementException();
+                }
+
+                Edge e = next;
+                next = null;
+                return e;
+            }
+
+            public void remove() {
+                throw new UnsupportedOperationException();
+            }
+        };
+    }
+
+    public void vertexAdded(final Vertex vertex) {
+        // Do nothing.
+    }
+
+    public void vertexPropertyChanged(final Vertex vertex, final String key, final Object setValue) {
+        // Do nothing.
+    }
+
+    public void vertexPropertyRemoved(final Vertex vertex, final String key, final Object removedValue) {
+        // Do nothing.
+    }
+
+    public void vertexRemoved(final Vertex vertex) {
+        // Do nothing.  Entries for the edges of the removed vertex are skipped at lookup time.
+    }
+
+    public void edgeAdded(final Edge edge) {
+        add(edge);
+    }
+
+    public void edgePropertyChanged(final Edge edge, final String key, final Object setValue) {
+        // Do nothing.
+    }
+
+    public void edgePropertyRemoved(final Edge edge, final String key, final Object removedValue) {
+        // Do nothing.
+    }
+
+    public void edgeRemoved(final Edge edge) {
+        remove(edge);
+    }
+}
@@ -0,0 +1,315 @@
+package com.tinkerpop.tinkubator.pgsail;
+
+import com.tinkerpop.blueprints.Direction;
+import com.tinkerpop.blueprints.Edge;
+import com.tinkerpop.blueprints.Vertex;
+import info.aduna.iteration.CloseableIteration;
+import info.aduna.iteration.EmptyIteration;
+import org.openrdf.model.URI;
+import org.openrdf.model.Value;
+import org.openrdf.query.BindingSet;
+import org.openrdf.query.QueryEvaluationException;
+import org.openrdf.query.algebra.QueryModelNode;
+import org.openrdf.query.algebra.QueryModelVisitor;
+import org.openrdf.query.algebra.StatementPattern;
+import org.openrdf.query.algebra.Var;
+import org.openrdf.query.algebra.evaluation.QueryBindingSet;
+import org.openrdf.query.algebra.evaluation.impl.ExternalSet;
+
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.LinkedList;
+import java.util.List;
+import java.util.ListIterator;
+import java.util.Set;
+
+/**
+ * A group of triple patterns which together describe a single edge, for example
+ * <code>?e pgm:tail ?a . ?e pgm:head ?b . ?e pgm:label "knows"</code>.
+ * Rather than as a join of separate triple lookups, the group is evaluated as a single traversal:
+ * of the out-edges of the tail vertex or the in-edges of the head vertex, if either is bound,
+ * otherwise of the edges with the given label, or finally of all edges.
+ *
+ * @author Joshua Shinavier (http://fortytwo.net)
+ */
+class EdgePattern extends ExternalSet {
+    private final PropertyGraphSailConnection connection;
+    private Var edgeVar;
+    private Var headVar;
+    private Var tailVar;
+    private Var labelVar;
+    private List<StatementPattern> patterns;
+
+    /**
+     * @param connection the connection through which the pattern is evaluated
+     * @param edgeVar    the (unbound) subject of the grouped patterns
+     * @param headVar    the object of the <code>pgm:head</code> pattern, if any
+     * @param tailVar    the object of the <code>pgm:tail</code> pattern, if any
+     * @param labelVar   the object of the <code>pgm:label</code> pattern, if any
+     * @param patterns   the triple patterns replaced by this pattern.
+     *                   These are not evaluated, but are visited as children of this node,
+     *                   so that the join optimizer can see which variables the pattern binds.
+     */
+    public EdgePattern(final PropertyGraphSailConnection connection,
+                       final Var edgeVar,
+                       final Var headVar,
+                       final Var tailVar,
+                       final Var labelVar,
+                       final Collection<StatementPattern> patterns) {
+        this.connection = connection;
+        this.edgeVar = edgeVar;
+        this.headVar = headVar;
+        this.tailVar = tailVar;
+        this.labelVar = labelVar;
+
+        this.patterns = new LinkedList<StatementPattern>();
+        for (StatementPattern sp : patterns) {
+            StatementPattern child = sp.clone();
+            child.setParentNode(this);
+            this.patterns.add(child);
+        }
+    }
+
+    public Var getEdgeVar() {
+        return edgeVar;
+    }
+
+    public Var getHeadVar() {
+        return headVar;
+    }
+
+    public Var getTailVar() {
+        return tailVar;
+    }
+
+    public Var getLabelVar() {
+        return labelVar;
+    }
+
+    @Override
+    public <X extends Exception> void visitChildren(final QueryModelVisitor<X> visitor) throws X {
+        for (StatementPattern sp : patterns) {
+            sp.visit(visitor);
+        }
+    }
+
+    @Override
+    public void replaceChildNode(final QueryModelNode current,
+                                 final QueryModelNode replacement) {
+        if (replacement instanceof StatementPattern) {
+            ListIterator<StatementPattern> iter = patterns.listIterator();
+            while (iter.hasNext()) {
+                if (iter.next() == current) {
+                    iter.set((StatementPattern) replacement);
+                    replacement.setParentNode(this);
+                    return;
+                }
+            }
+        }
+
+        super.replaceChildNode(current, replacement);
+    }
+
+    @Override
+    public EdgePattern clone() {
+        EdgePattern clone = (EdgePattern) super.clone();
+
+        clone.edgeVar = cloneOf(edgeVar);
+        clone.headVar = cloneOf(headVar);
+        clone.tailVar = cloneOf(tailVar);
+        clone.labelVar = cloneOf(labelVar);
+
+        clone.patterns = new LinkedList<StatementPattern>();
+        for (StatementPattern sp : patterns) {
+            StatementPattern child = sp.clone();
+            child.setParentNode(clone);
+            clone.patterns.add(child);
+        }
+
+        return clone;
+    }
+
+    @Override
+    public Set<String> getBindingNames() {
+        Set<String> names = new HashSet<String>();
+        for (Var v : new Var[]{edgeVar, headVar, tailVar, labelVar}) {
+            if (null != v && !v.hasValue()) {
+                names.add(v.getName());
+            }
+        }
+
+        return names;
+    }
+
+    @Override
+    public Set<String> getAssuredBindingNames() {
+        return getBindingNames();
+    }
+
+    @Override
+    public String getSignature() {
+        StringBuilder sb = new StringBuilder(super.getSignature());
+        sb.append(" (edge: ").append(edgeVar.getName());
+        if (null != tailVar) {
+            sb.append(", tail: ").append(tailVar.getSignature());
+        }
+        if (null != headVar) {
+            sb.append(", head: ").append(headVar.getSignature());
+        }
+        if (null != labelVar) {
+            sb.append(", label: ").append(labelVar.getSignature());
+        }
+        sb.append(")");
+        return sb.toString();
+    }
+
+    @Override
+    public CloseableIteration<BindingSet, QueryEvaluationException> evaluate(final BindingSet bindings) throws QueryEvaluationException {
+        Value edgeValue = valueOf(edgeVar, bindings);
+        Value headValue = valueOf(headVar, bindings);
+        Value tailValue = valueOf(tailVar, bindings);
+        Value labelValue = valueOf(labelVar, bindings);
+
+        Vertex head = null;
+        if (null != headValue) {
+            head = headValue instanceof URI ? connection.vertexForURI((URI) headValue) : null;
+            if (null == head) {
+                return new EmptyIteration<BindingSet, QueryEvaluationException>();
+            }
+        }
+
+        Vertex tail = null;
+        if (null != tailValue) {
+            tail = tailValue instanceof URI ? connection.vertexForURI((URI) tailValue) : null;
+            if (null == tail) {
+                return new EmptyIteration<BindingSet, QueryEvaluationException>();
+            }
+        }
+
+        String label = null;
+        if (null != labelValue) {
+            Object o = connection.literalToObject(labelValue);
+            if (!(o instanceof String)) {
+                return new EmptyIteration<BindingSet, QueryEvaluationException>();
+            }
+            label = (String) o;
+        }
+
+        Iterator<Edge> candidates;
+        if (null != edgeValue) {
+            Edge e = edgeValue instanceof URI ? connection.edgeForURI((URI) edgeValue) : null;
+            if (null == e) {
+                return new EmptyIteration<BindingSet, QueryEvaluationException>();
+            }
+            candidates = Collections.singleton(e).iterator();
+        } else if (null != tail) {
+            candidates = (null == label
+                    ? tail.getEdges(Direction.OUT)
+                    : tail.getEdges(Direction.OUT, label)).iterator();
+        } else if (null != head) {
+            candidates = (null == label
+                    ? head.getEdges(Direction.IN)
+                    : head.getEdges(Direction.IN, label)).iterator();
+        } else if (null != label) {
+            candidates = connection.edgesWithLabel(label);
+        } else {
+            candidates = connection.allEdges();
+        }
+
+        return new EdgeIteration(candidates, bindings, head, tail, label);
+    }
+
+    private static Var cloneOf(final Var var) {
+        return null == var ? null : var.clone();
+    }
+
+    private Value valueOf(final Var var,
+                          final BindingSet bindings) {
+        return null == var
+                ? null
+                : var.hasValue()
+                ? var.getValue()
+                : bindings.getValue(var.getName());
+    }
+
+    private class EdgeIteration extends InterruptibleIteration<BindingSet> {
+        private final Iterator<Edge> candidates;
+        private final BindingSet bindings;
+        private final Vertex head;
+        private final Vertex tail;
+        private final String label;
+
+        public EdgeIteration(final Iterator<Edge> candidates,
+                             final BindingSet bindings,
+                             final Vertex head,
+                             final Vertex tail,
+                             final String label) {
+            super(connection);
+            this.candidates = candidates;
+            this.bindings = bindings;
+            this.head = head;
+            this.tail = tail;
+            this.label = label;
+        }
+
+        @Override
+        protected BindingSet getNextElement() throws QueryEvaluationException {
+            while (!isStopped() && candidates.hasNext()) {
+                Edge e = candidates.next();
+
+                if (null != label && !label.equals(e.getLabel())) {
+                    continue;
+                }
+
+                Vertex in = null;
+                if (null != head || isFree(headVar)) {
+                    in = e.getVertex(Direction.IN);
+                    if (null != head && !head.equals(in)) {
+                        continue;
+                    }
+                }
+
+                Vertex out = null;
+                if (null != tail || isFree(tailVar)) {
+                    out = e.getVertex(Direction.OUT);
+                    if (null != tail && !tail.equals(out)) {
+                        continue;
+                    }
+                }
+
+                QueryBindingSet result = new QueryBindingSet(bindings);
+                if (bind(result, edgeVar, connection.uriForEdge(e))
+                        && (!isFree(headVar) || bind(result, headVar, connection.uriForVertex(in)))
+                        && (!isFree(tailVar) || bind(result, tailVar, connection.uriForVertex(out)))
+                        && (!isFree(labelVar) || bind(result, labelVar, connection.literalForLabel(e.getLabel())))) {
+                    return result;
+                }
+            }
+
+            return null;
+        }
+
+        private boolean isFree(final Var var) {
+            return null != var && !var.hasValue() && !bindings.hasBinding(var.getName());
+        }
+
+        // Note: a variable may appear in more than one position, e.g. as both head and tail
+        private boolean bind(final QueryBindingSet result,
+                             final Var var,
+                             final Value value) {
+            if (!isFree(var)) {
+                return true;
+            }
+
+            Value existing = result.getValue(var.getName());
+            if (null == existing) {
+                result.addBinding(var.getName(), value);
+                return true;
+            } else {
+                return existing.equals(value);
+            }
+        }
+    }
+}
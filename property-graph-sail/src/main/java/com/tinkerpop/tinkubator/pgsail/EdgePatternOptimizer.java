@@ -0,0 +1,153 @@
+package com.tinkerpop.tinkubator.pgsail;
+
+import org.openrdf.model.Value;
+import org.openrdf.query.BindingSet;
+import org.openrdf.query.Dataset;
+import org.openrdf.query.algebra.Join;
+import org.openrdf.query.algebra.StatementPattern;
+import org.openrdf.query.algebra.TupleExpr;
+import org.openrdf.query.algebra.Var;
+import org.openrdf.query.algebra.evaluation.QueryOptimizer;
+import org.openrdf.query.algebra.helpers.QueryModelVisitorBase;
+
+import java.util.HashMap;
+import java.util.IdentityHashMap;
+import java.util.LinkedHashMap;
+import java.util.LinkedList;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * A query optimizer which replaces groups of joined <code>pgm:head</code>, <code>pgm:tail</code>
+ * and <code>pgm:label</code> triple patterns on a common edge variable with a single {@link EdgePattern}.
+ *
+ * @author Joshua Shinavier (http://fortytwo.net)
+ */
+class EdgePatternOptimizer implements QueryOptimizer {
+    private final PropertyGraphSailConnection connection;
+
+    public EdgePatternOptimizer(final PropertyGraphSailConnection connection) {
+        this.connection = connection;
+    }
+
+    public void optimize(final TupleExpr tupleExpr,
+                         final Dataset dataset,
+                         final BindingSet bindings) {
+        // edge patterns are evaluated against the whole graph, regardless of any dataset
+        if (null == dataset) {
+            tupleExpr.visit(new JoinVisitor());
+        }
+    }
+
+    private class JoinVisitor extends QueryModelVisitorBase<RuntimeException> {
+        @Override
+        public void meet(final Join node) {
+            List<TupleExpr> args = new LinkedList<TupleExpr>();
+            collectJoinArgs(node, args);
+
+            for (TupleExpr arg : args) {
+                arg.visit(this);
+            }
+
+            List<TupleExpr> newArgs = groupEdgePatterns(args);
+            if (null != newArgs) {
+                TupleExpr replacement = newArgs.get(0);
+                for (int i = 1; i < newArgs.size(); i++) {
+                    replacement = new Join(replacement, newArgs.get(i));
+                }
+
+                node.replaceWith(replacement);
+            }
+        }
+    }
+
+    private void collectJoinArgs(final TupleExpr expr,
+                                 final List<TupleExpr> args) {
+        if (expr instanceof Join) {
+            collectJoinArgs(((Join) expr).getLeftArg(), args);
+            collectJoinArgs(((Join) expr).getRightArg(), args);
+        } else {
+            args.add(expr);
+        }
+    }
+
+    /**
+     * @return the join arguments with edge patterns substituted for groups of statement patterns,
+     *         or null if there are no such groups
+     */
+    private List<TupleExpr> groupEdgePatterns(final List<TupleExpr> args) {
+        // statement patterns by edge variable, then by predicate
+        Map<String, Map<Value, StatementPattern>> groups = new LinkedHashMap<String, Map<Value, StatementPattern>>();
+        for (TupleExpr arg : args) {
+            if (isEdgeStatementPattern(arg)) {
+                StatementPattern sp = (StatementPattern) arg;
+                String edge = sp.getSubjectVar().getName();
+                Map<Value, StatementPattern> group = groups.get(edge);
+                if (null == group) {
+                    group = new HashMap<Value, StatementPattern>();
+                    groups.put(edge, group);
+                }
+
+                Value predicate = sp.getPredicateVar().getValue();
+                if (!group.containsKey(predicate)) {
+                    group.put(predicate, sp);
+                }
+            }
+        }
+
+        Map<StatementPattern, EdgePattern> replacements = new IdentityHashMap<StatementPattern, EdgePattern>();
+        for (Map<Value, StatementPattern> group : groups.values()) {
+            StatementPattern head = group.get(PropertyGraphSail.HEAD);
+            StatementPattern tail = group.get(PropertyGraphSail.TAIL);
+            StatementPattern label = group.get(PropertyGraphSail.LABEL);
+
+            if (group.size() > 1 && (null != head || null != tail)) {
+                EdgePattern p = new EdgePattern(connection,
+                        (null == tail ? head : tail).getSubjectVar(),
+                        null == head ? null : head.getObjectVar(),
+                        null == tail ? null : tail.getObjectVar(),
+                        null == label ? null : label.getObjectVar(),
+                        group.values());
+
+                for (StatementPattern sp : group.values()) {
+                    replacements.put(sp, p);
+                }
+            }
+        }
+
+        if (replacements.isEmpty()) {
+            return null;
+        }
+
+        // each edge pattern takes the place of the first of its statement patterns
+        List<TupleExpr> newArgs = new LinkedList<TupleExpr>();
+        for (TupleExpr arg : args) {
+            EdgePattern p = replacements.get(arg);
+            if (null == p) {
+                newArgs.add(arg);
+            } else if (!newArgs.contains(p)) {
+                newArgs.add(p);
+            }
+        }
+
+        return newArgs;
+    }
+
+    private boolean isEdgeStatementPattern(final TupleExpr expr) {
+        if (!(expr instanceof StatementPattern)) {
+            return false;
+        }
+
+        StatementPattern sp = (StatementPattern) expr;
+        Var subj = sp.getSubjectVar();
+        Var pred = sp.getPredicateVar();
+
+        return StatementPattern.Scope.DEFAULT_CONTEXTS == sp.getScope()
+                && null == sp.getContextVar()
+                && !subj.hasValue()
+                && pred.hasValue()
+                && (pred.getValue().equals(PropertyGraphSail.HEAD)
+                || pred.getValue().equals(PropertyGraphSail.TAIL)
+                || pred.getValue().equals(PropertyGraphSail.LABEL));
+    }
+}
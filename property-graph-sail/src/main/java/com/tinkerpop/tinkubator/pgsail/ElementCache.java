@@ -0,0 +1,152 @@
+package com.tinkerpop.tinkubator.pgsail;
+
+import com.tinkerpop.blueprints.Edge;
+import com.tinkerpop.blueprints.Element;
+import com.tinkerpop.blueprints.Vertex;
+import com.tinkerpop.blueprints.util.wrappers.event.listener.GraphChangedListener;
+
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * A bounded, least-recently-used cache of element URIs,
+ * both by the string form of the URI and by the id of the vertex or edge.
+ * If the graph is an <code>EventGraph</code>, entries are removed as the corresponding elements are removed
+ * (the entire cache is cleared when a vertex is removed);
+ * otherwise, the cache must be cleared after elements are removed from the graph.
+ *
+ * @author Joshua Shinavier (http://fortytwo.net)
+ */
+class ElementCache implements GraphChangedListener {
+    private final Map<String, ElementURI> byURI;
+    private final Map<Object, ElementURI> byVertexId;
+    private final Map<Object, ElementURI> byEdgeId;
+
+    /**
+     * @param capacity the maximum number of elements to cache (in each direction)
+     */
+    public ElementCache(final int capacity) {
+        byURI = new LRUMap<String, ElementURI>(capacity);
+        byVertexId = new LRUMap<Object, ElementURI>(capacity);
+        byEdgeId = new LRUMap<Object, ElementURI>(capacity);
+    }
+
+    public void clear() {
+        synchronized (byURI) {
+            byURI.clear();
+        }
+        synchronized (byVertexId) {
+            byVertexId.clear();
+        }
+        synchronized (byEdgeId) {
+            byEdgeId.clear();
+        }
+    }
+
+    /**
+     * @return the cached element URI with the given string form, if any
+     */
+    public ElementURI getByURI(final String uri) {
+        synchronized (byURI) {
+            return byURI.get(uri);
+        }
+    }
+
+    /**
+     * @return the cached URI of the given vertex, if any
+     */
+    public ElementURI getByVertex(final Vertex v) {
+        synchronized (byVertexId) {
+            return byVertexId.get(v.getId());
+        }
+    }
+
+    /**
+     * @return the cached URI of the given edge, if any
+     */
+    public ElementURI getByEdge(final Edge e) {
+        synchronized (byEdgeId) {
+            return byEdgeId.get(e.getId());
+        }
+    }
+
+    public void put(final ElementURI uri) {
+        Element e = uri.getElement();
+        if (e instanceof Vertex) {
+            synchronized (byVertexId) {
+                byVertexId.put(e.getId(), uri);
+            }
+        } else {
+            synchronized (byEdgeId) {
+                byEdgeId.put(e.getId(), uri);
+            }
+        }
+
+        synchronized (byURI) {
+            byURI.put(uri.stringValue(), uri);
+        }
+    }
+
+    private void remove(final Map<Object, ElementURI> byId,
+                        final Element e) {
+        ElementURI uri;
+        synchronized (byId) {
+            uri = byId.remove(e.getId());
+        }
+
+        if (null != uri) {
+            synchronized (byURI) {
+                byURI.remove(uri.stringValue());
+            }
+        }
+    }
+
+    public void vertexAdded(final Vertex vertex) {
+        // Do nothing.
+    }
+
+    public void vertexPropertyChanged(final Vertex vertex, final String key, final Object setValue) {
+        // Do nothing.
+    }
+
+    public void vertexPropertyRemoved(final Vertex vertex, final String key, final Object removedValue) {
+        // Do nothing.
+    }
+
+    public void vertexRemoved(final Vertex vertex) {
+        // The edges of the removed vertex are removed along with it, without events of their own.
+        clear();
+    }
+
+    public void edgeAdded(final Edge edge) {
+        // Do nothing.
+    }
+
+    public void edgePropertyChanged(final Edge edge, final String key, final Object setValue) {
+        // Do nothing.
+    }
+
+    public void edgePropertyRemoved(final Edge edge, final String key, final Object removedValue) {
+        // Do nothing.
+    }
+
+    public void edgeRemoved(final Edge edge) {
+        remove(byEdgeId, edge);
+    }
+
+    private static class LRUMap<K, V> extends LinkedHashMap<K, V> {
+        private static final long serialVersionUID = 331006432707104762L;
+
+        private final int capacity;
+
+        public LRUMap(final int capacity) {
+            super(16, 0.75f, true);
+            this.capacity = capacity;
+        }
+
+        @Override
+        protected boolean removeEldestEntry(final Map.Entry<K, V> eldest) {
+            return size() > capacity;
+        }
+    }
+}
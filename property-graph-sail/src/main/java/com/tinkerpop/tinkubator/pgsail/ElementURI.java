@@ -0,0 +1,138 @@
+package com.tinkerpop.tinkubator.pgsail;
+
+import com.tinkerpop.blueprints.Element;
+import com.tinkerpop.blueprints.Graph;
+import org.openrdf.model.URI;
+
+import java.io.IOException;
+import java.io.ObjectOutputStream;
+
+/**
+ * A URI which identifies a vertex or edge and which carries the element itself,
+ * so that the element can be recovered without parsing the URI or looking up its id in the graph.
+ * The string form of the URI is built only when needed.
+ * Element URIs are equal to any other URI with the same string form.
+ * <p/>
+ * The carried element is only a hint: it may since have been removed from the graph,
+ * and it is not serialized, so that a deserialized element URI is resolved by its id like any other URI.
+ *
+ * @author Joshua Shinavier (http://fortytwo.net)
+ */
+class ElementURI implements URI {
+    private static final long serialVersionUID = -3237841867897570861L;
+
+    private final transient Graph graph;
+    private final transient Element element;
+    private final transient IdCodec codec;
+    private final transient long removalCount;
+    private final String namespace;
+    private String localName;
+    private String uri;
+
+    /**
+     * @param graph        the graph containing the element
+     * @param element      the vertex or edge identified by this URI
+     * @param namespace    either the vertex or the edge namespace
+     * @param codec        the codec with which to encode the id of the element as the local name of this URI
+     * @param removalCount the number of removals from the graph at the time this URI is created,
+     *                     as given by <code>PropertyGraphStatistics.getRemovalCount</code>
+     */
+    public ElementURI(final Graph graph,
+                      final Element element,
+                      final String namespace,
+                      final IdCodec codec,
+                      final long removalCount) {
+        this(graph, element, namespace, codec, null, removalCount);
+    }
+
+    /**
+     * @param graph        the graph containing the element
+     * @param element      the vertex or edge identified by this URI
+     * @param namespace    either the vertex or the edge namespace
+     * @param codec        the codec with which the local name of this URI is decoded to the id of the element
+     * @param localName    the local name of this URI, if already known, or null to encode it when needed
+     * @param removalCount the number of removals from the graph at the time this URI is created,
+     *                     as given by <code>PropertyGraphStatistics.getRemovalCount</code>
+     */
+    public ElementURI(final Graph graph,
+                      final Element element,
+                      final String namespace,
+                      final IdCodec codec,
+                      final String localName,
+                      final long removalCount) {
+        this.graph = graph;
+        this.element = element;
+        this.namespace = namespace;
+        this.codec = codec;
+        this.localName = localName;
+        this.removalCount = removalCount;
+    }
+
+    /**
+     * @return the graph containing the element, or null if this URI has been deserialized
+     */
+    public Graph getGraph() {
+        return graph;
+    }
+
+    /**
+     * @return the element identified by this URI, or null if this URI has been deserialized
+     */
+    public Element getElement() {
+        return element;
+    }
+
+    /**
+     * @return the codec with which this URI was created, or null if this URI has been deserialized.
+     *         The carried element is identified by this URI only as long as the codec is in use
+     */
+    public IdCodec getCodec() {
+        return codec;
+    }
+
+    public long getRemovalCount() {
+        return removalCount;
+    }
+
+    public String getNamespace() {
+        return namespace;
+    }
+
+    public String getLocalName() {
+        if (null == localName) {
+            localName = codec.encode(element.getId());
+        }
+
+        return localName;
+    }
+
+    public String stringValue() {
+        if (null == uri) {
+            uri = namespace + getLocalName();
+        }
+
+        return uri;
+    }
+
+    private void writeObject(final ObjectOutputStream out) throws IOException {
+        // the local name can not be built without the codec, which is not serialized
+        stringValue();
+        out.defaultWriteObject();
+    }
+
+    @Override
+    public String toString() {
+        return stringValue();
+    }
+
+    @Override
+    public boolean equals(final Object other) {
+        return this == other
+                || other instanceof URI && stringValue().equals(other.toString());
+    }
+
+    @Override
+    public int hashCode() {
+        return stringValue().hashCode();
+    }
+}
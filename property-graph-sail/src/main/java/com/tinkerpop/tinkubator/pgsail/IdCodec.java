@@ -0,0 +1,84 @@
+package com.tinkerpop.tinkubator.pgsail;
+
+/**
+ * A mapping between the ids of vertices and edges and the local names of their URIs.
+ * The default codec uses the string form of an id as its local name, and the local name itself as the id,
+ * which is appropriate for graphs with string ids, such as TinkerGraph.
+ * Graphs with numeric ids, such as Neo4jGraph, require a codec which decodes local names to numbers.
+ *
+ * @author Joshua Shinavier (http://fortytwo.net)
+ */
+public interface IdCodec {
+    /**
+     * @param id the id of a vertex or edge
+     * @return the local name of the URI of the vertex or edge
+     */
+    String encode(Object id);
+
+    /**
+     * @param localName the local name of a vertex or edge URI
+     * @return the id of the vertex or edge, or null if the local name can not be the local name of any element
+     */
+    Object decode(String localName);
+
+    /**
+     * A codec for graphs with string ids
+     */
+    public static class StringCodec implements IdCodec {
+        public String encode(final Object id) {
+            return id.toString();
+        }
+
+        public Object decode(final String localName) {
+            return localName;
+        }
+    }
+
+    /**
+     * A codec for graphs with <code>Long</code> ids
+     */
+    public static class LongCodec implements IdCodec {
+        public String encode(final Object id) {
+            return id.toString();
+        }
+
+        public Object decode(final String localName) {
+            try {
+                return Long.valueOf(localName);
+            } catch (NumberFormatException e) {
+                return null;
+            }
+        }
+    }
+
+    /**
+     * A codec for graphs with ids of more than one type, for example both <code>Long</code> and string ids.
+     * Local names carry a one-character prefix which identifies the type of the id:
+     * <code>n</code> for <code>Long</code> ids and <code>s</code> for all other ids,
+     * which are decoded as strings.
+     */
+    public static class PrefixCodec implements IdCodec {
+        public String encode(final Object id) {
+            return (id instanceof Long ? "n" : "s") + id.toString();
+        }
+
+        public Object decode(final String localName) {
+            if (0 == localName.length()) {
+                return null;
+            }
+
+            switch (localName.charAt(0)) {
+                case 'n':
+                    try {
+                        return Long.valueOf(localName.substring(1));
+                    } catch (NumberFormatException e) {
+                        return null;
+                    }
+                case 's':
+                    return localName.substring(1);
+                default:
+                    return null;
+            }
+        }
+    }
+}
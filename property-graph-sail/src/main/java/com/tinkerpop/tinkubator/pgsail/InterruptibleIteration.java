@@ -0,0 +1,36 @@
+package com.tinkerpop.tinkubator.pgsail;
+
+import info.aduna.iteration.LookAheadIteration;
+import org.openrdf.query.QueryEvaluationException;
+
+/**
+ * An iteration over query solutions read directly from the base graph.
+ * The iteration is registered with its connection for as long as it is open, so that closing the connection stops it,
+ * and it may also be closed from another thread; in either case, it stops before the next element is read.
+ *
+ * @author Joshua Shinavier (http://fortytwo.net)
+ */
+abstract class InterruptibleIteration<E> extends LookAheadIteration<E, QueryEvaluationException> {
+    private final PropertyGraphSailConnection connection;
+    private volatile boolean stopped = false;
+
+    protected InterruptibleIteration(final PropertyGraphSailConnection connection) {
+        this.connection = connection;
+        connection.registerIteration(this);
+    }
+
+    /**
+     * @return whether the iteration has been closed.
+     *         Implementations should check this between elements of the base graph.
+     */
+    protected boolean isStopped() {
+        return stopped;
+    }
+
+    @Override
+    protected void handleClose() throws QueryEvaluationException {
+        stopped = true;
+        connection.unregisterIteration(this);
+        super.handleClose();
+    }
+}
@@ -0,0 +1,173 @@
+package com.tinkerpop.tinkubator.pgsail;
+
+import com.tinkerpop.blueprints.Edge;
+import com.tinkerpop.blueprints.Element;
+import com.tinkerpop.blueprints.Vertex;
+import info.aduna.iteration.CloseableIteration;
+import org.openrdf.model.Namespace;
+import org.openrdf.model.Statement;
+import org.openrdf.rio.RDFHandler;
+import org.openrdf.rio.RDFHandlerException;
+import org.openrdf.sail.SailException;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicReference;
+
+/**
+ * Exports the RDF view of a graph using multiple threads.
+ * Vertices and edges are read from the graph in batches, on the calling thread,
+ * and the statements about each batch are generated on a pool of worker threads.
+ * Statements are passed to the handler one batch at a time, and in no particular order.
+ * The number of batches in memory at any one time is bounded, so that export requires constant space.
+ *
+ * @author Joshua Shinavier (http://fortytwo.net)
+ */
+class ParallelExporter {
+    private final PropertyGraphSail.PropertyGraphContext context;
+    private final int threads;
+    private final int batchSize;
+
+    /**
+     * @param context   the graph to export
+     * @param threads   the number of worker threads
+     * @param batchSize the number of vertices or edges in each batch
+     */
+    public ParallelExporter(final PropertyGraphSail.PropertyGraphContext context,
+                            final int threads,
+                            final int batchSize) {
+        if (threads < 1) {
+            throw new IllegalArgumentException("at least one thread is required");
+        }
+        if (batchSize < 1) {
+            throw new IllegalArgumentException("batch size must be positive");
+        }
+
+        this.context = context;
+        this.threads = threads;
+        this.batchSize = batchSize;
+    }
+
+    public void export(final RDFHandler handler) throws SailException, RDFHandlerException {
+        PropertyGraphSailConnection connection = new PropertyGraphSailConnection(context);
+        try {
+            handler.startRDF();
+
+            CloseableIteration<? extends Namespace, SailException> namespaces = connection.getNamespaces();
+            try {
+                while (namespaces.hasNext()) {
+                    Namespace n = namespaces.next();
+                    handler.handleNamespace(n.getPrefix(), n.getName());
+                }
+            } finally {
+                namespaces.close();
+            }
+
+            new Export(connection, handler).run();
+
+            handler.endRDF();
+        } finally {
+            connection.close();
+        }
+    }
+
+    private class Export {
+        private final PropertyGraphSailConnection connection;
+        private final RDFHandler handler;
+        private final ExecutorService executor = Executors.newFixedThreadPool(threads);
+        // limits the number of batches which have been read, but not yet handled
+        private final Semaphore permits = new Semaphore(2 * threads);
+        private final AtomicReference<Throwable> error = new AtomicReference<Throwable>();
+
+        public Export(final PropertyGraphSailConnection connection,
+                      final RDFHandler handler) {
+            this.connection = connection;
+            this.handler = handler;
+        }
+
+        public void run() throws SailException, RDFHandlerException {
+            try {
+                Collection<Element> batch = new ArrayList<Element>(batchSize);
+
+                for (Vertex v : context.graph.getVertices()) {
+                    batch.add(v);
+                    if (batch.size() == batchSize) {
+                        submit(batch);
+                        batch = new ArrayList<Element>(batchSize);
+                    }
+                }
+
+                for (Edge e : context.graph.getEdges()) {
+                    batch.add(e);
+                    if (batch.size() == batchSize) {
+                        submit(batch);
+                        batch = new ArrayList<Element>(batchSize);
+                    }
+                }
+
+                if (!batch.isEmpty()) {
+                    submit(batch);
+                }
+
+                executor.shutdown();
+                while (!executor.awaitTermination(1, TimeUnit.SECONDS)) {
+                    checkForError();
+                }
+                checkForError();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                throw new SailException("export interrupted");
+            } finally {
+                executor.shutdownNow();
+            }
+        }
+
+        private void submit(final Collection<Element> batch) throws InterruptedException, SailException, RDFHandlerException {
+            permits.acquire();
+            checkForError();
+
+            executor.execute(new Runnable() {
+                public void run() {
+                    try {
+                        if (null != error.get()) {
+                            return;
+                        }
+
+                        Collection<Statement> statements = new ArrayList<Statement>();
+                        connection.generateStatements(batch, statements);
+
+                        // the handler is not assumed to be thread-safe
+                        synchronized (handler) {
+                            for (Statement s : statements) {
+                                handler.handleStatement(s);
+                            }
+                        }
+                    } catch (Throwable t) {
+                        error.compareAndSet(null, t);
+                    } finally {
+                        permits.release();
+                    }
+                }
+            });
+        }
+
+        private void checkForError() throws SailException, RDFHandlerException {
+            Throwable t = error.get();
+            if (null != t) {
+                if (t instanceof RDFHandlerException) {
+                    throw (RDFHandlerException) t;
+                } else if (t instanceof RuntimeException) {
+                    throw (RuntimeException) t;
+                } else if (t instanceof Error) {
+                    throw (Error) t;
+                } else {
+                    throw new SailException(t);
+                }
+            }
+        }
+    }
+}
@@ -0,0 +1,114 @@
+package com.tinkerpop.tinkubator.pgsail;
+
+import org.openrdf.model.Resource;
+import org.openrdf.model.URI;
+import org.openrdf.model.Value;
+
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * Counters of triple pattern lookups, by the shape of the pattern.
+ * A shape names the bound positions of a pattern in subject, predicate, object order,
+ * with <code>x</code> for an unbound position: for example, <code>xxx</code> is a full scan,
+ * and <code>SPx</code> is a lookup of a property of a given vertex or edge.
+ * Shapes such as <code>xxO</code> with a high ratio of elements touched to statements produced
+ * are a sign of patterns answered by scanning the graph.
+ *
+ * @author Joshua Shinavier (http://fortytwo.net)
+ */
+public class PatternMetrics implements PatternMetricsMXBean {
+    private static final String[] SHAPES = {"xxx", "xxO", "xPx", "xPO", "Sxx", "SxO", "SPx", "SPO"};
+
+    private final AtomicLongArray calls = new AtomicLongArray(SHAPES.length);
+    private final AtomicLongArray elements = new AtomicLongArray(SHAPES.length);
+    private final AtomicLongArray statements = new AtomicLongArray(SHAPES.length);
+    private final AtomicLongArray nanos = new AtomicLongArray(SHAPES.length);
+
+    /**
+     * @return the index of the shape of the given pattern
+     */
+    static int shapeOf(final Resource subject,
+                       final URI predicate,
+                       final Value object) {
+        return (null == subject ? 0 : 4) + (null == predicate ? 0 : 2) + (null == object ? 0 : 1);
+    }
+
+    static String shapeName(final int shape) {
+        return SHAPES[shape];
+    }
+
+    void record(final int shape,
+                final long elementCount,
+                final long statementCount,
+                final long nanoTime) {
+        calls.incrementAndGet(shape);
+        elements.addAndGet(shape, elementCount);
+        statements.addAndGet(shape, statementCount);
+        nanos.addAndGet(shape, nanoTime);
+    }
+
+    public long getCallCount(final String shape) {
+        return calls.get(indexOf(shape));
+    }
+
+    public long getElementCount(final String shape) {
+        return elements.get(indexOf(shape));
+    }
+
+    public long getStatementCount(final String shape) {
+        return statements.get(indexOf(shape));
+    }
+
+    public long getNanoTime(final String shape) {
+        return nanos.get(indexOf(shape));
+    }
+
+    public Map<String, Long> getCalls() {
+        return toMap(calls, false);
+    }
+
+    public Map<String, Long> getElementsTouched() {
+        return toMap(elements, false);
+    }
+
+    public Map<String, Long> getStatementsProduced() {
+        return toMap(statements, false);
+    }
+
+    public Map<String, Long> getTimeMillis() {
+        return toMap(nanos, true);
+    }
+
+    public void reset() {
+        for (int i = 0; i < SHAPES.length; i++) {
+            calls.set(i, 0);
+            elements.set(i, 0);
+            statements.set(i, 0);
+            nanos.set(i, 0);
+        }
+    }
+
+    private int indexOf(final String shape) {
+        for (int i = 0; i < SHAPES.length; i++) {
+            if (SHAPES[i].equals(shape)) {
+                return i;
+            }
+        }
+
+        throw new IllegalArgumentException("no such shape: " + shape);
+    }
+
+    private Map<String, Long> toMap(final AtomicLongArray counters,
+                                    final boolean nanosToMillis) {
+        Map<String, Long> map = new LinkedHashMap<String, Long>();
+        for (int i = 0; i < SHAPES.length; i++) {
+            long c = counters.get(i);
+            map.put(SHAPES[i], nanosToMillis ? TimeUnit.NANOSECONDS.toMillis(c) : c);
+        }
+
+        return map;
+    }
+}
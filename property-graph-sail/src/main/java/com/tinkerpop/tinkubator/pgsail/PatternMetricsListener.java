@@ -0,0 +1,23 @@
+package com.tinkerpop.tinkubator.pgsail;
+
+/**
+ * A receiver of per-lookup metrics from a {@link PropertyGraphSail} with metrics enabled.
+ * The listener is called on the thread which closes (or exhausts) each statement iteration,
+ * so it should return quickly.
+ *
+ * @author Joshua Shinavier (http://fortytwo.net)
+ */
+public interface PatternMetricsListener {
+    /**
+     * @param connectionId the id of the connection through which the triple pattern was evaluated
+     * @param shape        the shape of the triple pattern, e.g. <code>xPO</code>
+     * @param elements     the number of vertices and edges read from the base graph
+     * @param statements   the number of statements produced
+     * @param nanos        the time spent producing statements, in nanoseconds
+     */
+    void patternEvaluated(long connectionId,
+                          String shape,
+                          long elements,
+                          long statements,
+                          long nanos);
+}
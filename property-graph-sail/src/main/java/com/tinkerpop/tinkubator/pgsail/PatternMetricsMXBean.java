@@ -0,0 +1,36 @@
+package com.tinkerpop.tinkubator.pgsail;
+
+import java.util.Map;
+
+/**
+ * The JMX view of {@link PatternMetrics}.
+ * Each attribute is a table keyed by triple pattern shape, e.g. <code>xPO</code> for a pattern with a bound predicate and object.
+ *
+ * @author Joshua Shinavier (http://fortytwo.net)
+ */
+public interface PatternMetricsMXBean {
+    /**
+     * @return the number of triple pattern lookups of each shape
+     */
+    Map<String, Long> getCalls();
+
+    /**
+     * @return the number of vertices and edges read from the base graph for each shape
+     */
+    Map<String, Long> getElementsTouched();
+
+    /**
+     * @return the number of statements produced for each shape
+     */
+    Map<String, Long> getStatementsProduced();
+
+    /**
+     * @return the time, in milliseconds, spent producing statements for each shape
+     */
+    Map<String, Long> getTimeMillis();
+
+    /**
+     * Sets all counters to zero
+     */
+    void reset();
+}
@@ -0,0 +1,151 @@
+package com.tinkerpop.tinkubator.pgsail;
+
+import org.openrdf.model.Literal;
+import org.openrdf.model.URI;
+import org.openrdf.model.Value;
+import org.openrdf.model.vocabulary.RDF;
+import org.openrdf.query.algebra.StatementPattern;
+import org.openrdf.query.algebra.Var;
+import org.openrdf.query.algebra.evaluation.impl.EvaluationStatistics;
+import org.openrdf.query.algebra.evaluation.impl.ExternalSet;
+
+/**
+ * Cardinality estimates for triple patterns, edge patterns and range patterns over a property graph,
+ * based on the vertex and edge counts, label histogram and property key counts of the graph.
+ * These allow the standard join optimizer to begin with the most selective patterns of a query.
+ *
+ * @author Joshua Shinavier (http://fortytwo.net)
+ */
+class PropertyGraphEvaluationStatistics extends EvaluationStatistics {
+    private final PropertyGraphStatistics.Snapshot stats;
+
+    public PropertyGraphEvaluationStatistics(final PropertyGraphStatistics.Snapshot stats) {
+        this.stats = stats;
+    }
+
+    @Override
+    protected CardinalityCalculator createCardinalityCalculator() {
+        return new PropertyGraphCardinalityCalculator();
+    }
+
+    private class PropertyGraphCardinalityCalculator extends CardinalityCalculator {
+        @Override
+        protected double getCardinality(final StatementPattern sp) {
+            Var subj = sp.getSubjectVar();
+            Var pred = sp.getPredicateVar();
+            Var obj = sp.getObjectVar();
+
+            long vertices = stats.getVertexCount();
+            long edges = stats.getEdgeCount();
+            long elements = vertices + edges;
+
+            if (!pred.hasValue()) {
+                long statements = stats.getStatementCount();
+
+                if (subj.hasValue()) {
+                    return obj.hasValue() ? 1 : ratio(statements, elements);
+                } else if (obj.hasValue()) {
+                    // a vertex is the object of the head and tail statements of its edges
+                    return obj.getValue() instanceof Literal
+                            ? Math.sqrt(stats.getPropertyCount())
+                            : 1 + ratio(2 * edges, vertices);
+                } else {
+                    return statements;
+                }
+            }
+
+            // there is at most one statement with a given subject and property graph predicate
+            if (subj.hasValue()) {
+                return 1;
+            }
+
+            Value p = pred.getValue();
+            Value o = obj.hasValue() ? obj.getValue() : null;
+
+            if (p.equals(RDF.TYPE)) {
+                return null == o
+                        ? elements
+                        : o.equals(PropertyGraphSail.VERTEX)
+                        ? vertices
+                        : o.equals(PropertyGraphSail.EDGE)
+                        ? edges
+                        : 0;
+            } else if (p.equals(PropertyGraphSail.ID)) {
+                return null == o ? elements : 1;
+            } else if (p.equals(PropertyGraphSail.LABEL)) {
+                return null == o
+                        ? edges
+                        : o instanceof Literal
+                        ? stats.getLabelCount(((Literal) o).getLabel())
+                        : 0;
+            } else if (p.equals(PropertyGraphSail.HEAD) || p.equals(PropertyGraphSail.TAIL)) {
+                return null == o ? edges : ratio(edges, vertices);
+            } else if (p instanceof URI && p.stringValue().startsWith(PropertyGraphSail.PROPERTY_NS)) {
+                String key = p.stringValue().substring(PropertyGraphSail.PROPERTY_NS.length());
+                long count = stats.getVertexKeyCount(key) + stats.getEdgeKeyCount(key);
+
+                // Note: no statistics are kept on distinct values; the square root is a rough guess
+                return null == o ? count : Math.sqrt(count);
+            } else {
+                return 0;
+            }
+        }
+
+        @Override
+        protected void meetExternalSet(final ExternalSet node) {
+            if (node instanceof EdgePattern) {
+                cardinality = getCardinality((EdgePattern) node);
+            } else if (node instanceof RangePattern) {
+                cardinality = getCardinality((RangePattern) node);
+            } else {
+                super.meetExternalSet(node);
+            }
+        }
+
+        private double getCardinality(final EdgePattern p) {
+            if (hasValue(p.getEdgeVar())) {
+                return 1;
+            }
+
+            long vertices = stats.getVertexCount();
+            long edges = stats.getEdgeCount();
+
+            double c;
+            if (hasValue(p.getLabelVar())) {
+                Value label = p.getLabelVar().getValue();
+                c = label instanceof Literal ? stats.getLabelCount(((Literal) label).getLabel()) : 0;
+            } else {
+                c = edges;
+            }
+
+            if (hasValue(p.getTailVar())) {
+                c = c / Math.max(1, vertices);
+            }
+            if (hasValue(p.getHeadVar())) {
+                c = c / Math.max(1, vertices);
+            }
+
+            return c;
+        }
+
+        private double getCardinality(final RangePattern p) {
+            double c = getCardinality(p.getPattern());
+
+            // Note: as for bound values, these are rough guesses
+            for (RangePattern.Condition condition : p.getConditions()) {
+                c = condition.isEquality() ? Math.sqrt(c) : c / 3;
+            }
+
+            return c;
+        }
+
+        private boolean hasValue(final Var v) {
+            return null != v && v.hasValue();
+        }
+
+        private double ratio(final long a,
+                             final long b) {
+            return 0 == b ? 0 : (double) a / b;
+        }
+    }
+}
@@ -0,0 +1,54 @@
+package com.tinkerpop.tinkubator.pgsail;
+
+import info.aduna.iteration.CloseableIteration;
+import info.aduna.iteration.IterationWrapper;
+import org.openrdf.query.BindingSet;
+import org.openrdf.query.Dataset;
+import org.openrdf.query.QueryEvaluationException;
+import org.openrdf.query.algebra.Slice;
+import org.openrdf.query.algebra.evaluation.TripleSource;
+import org.openrdf.query.algebra.evaluation.impl.EvaluationStrategyImpl;
+
+/**
+ * An evaluation strategy which releases the resources of a query as soon as its LIMIT has been reached,
+ * rather than when the query result is closed.
+ * As ASK queries are evaluated with a limit of one, they also stop at the first match.
+ *
+ * @author Joshua Shinavier (http://fortytwo.net)
+ */
+class PropertyGraphEvaluationStrategy extends EvaluationStrategyImpl {
+    public PropertyGraphEvaluationStrategy(final TripleSource tripleSource,
+                                           final Dataset dataset) {
+        super(tripleSource, dataset);
+    }
+
+    @Override
+    public CloseableIteration<BindingSet, QueryEvaluationException> evaluate(final Slice slice,
+                                                                            final BindingSet bindings) throws QueryEvaluationException {
+        CloseableIteration<BindingSet, QueryEvaluationException> result = super.evaluate(slice, bindings);
+
+        return slice.hasLimit()
+                ? new CloseWhenExhaustedIteration(result)
+                : result;
+    }
+
+    private static class CloseWhenExhaustedIteration extends IterationWrapper<BindingSet, QueryEvaluationException> {
+        public CloseWhenExhaustedIteration(final CloseableIteration<BindingSet, QueryEvaluationException> wrapped) {
+            super(wrapped);
+        }
+
+        @Override
+        public boolean hasNext() throws QueryEvaluationException {
+            if (isClosed()) {
+                return false;
+            }
+
+            boolean b = super.hasNext();
+            if (!b) {
+                close();
+            }
+
+            return b;
+        }
+    }
+}
@@ -1,14 +1,28 @@
 package com.tinkerpop.tinkubator.pgsail;
 
+import com.tinkerpop.blueprints.Edge;
 import com.tinkerpop.blueprints.Graph;
+import com.tinkerpop.blueprints.Index;
+import com.tinkerpop.blueprints.IndexableGraph;
+import com.tinkerpop.blueprints.KeyIndexableGraph;
+import com.tinkerpop.blueprints.Vertex;
+import com.tinkerpop.blueprints.util.wrappers.event.EventGraph;
 import org.openrdf.model.URI;
 import org.openrdf.model.ValueFactory;
 import org.openrdf.model.impl.URIImpl;
+import org.openrdf.rio.RDFHandler;
+import org.openrdf.rio.RDFHandlerException;
 import org.openrdf.sail.Sail;
 import org.openrdf.sail.SailConnection;
 import org.openrdf.sail.SailException;
 
+import javax.management.JMException;
+import javax.management.ObjectName;
 import java.io.File;
+import java.lang.management.ManagementFactory;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
 
 /**
  * A Sail implementation which provides an RDF view of any Blueprints graph.
@@ -21,6 +35,7 @@ public class PropertyGraphSail implements Sail {
     public static final String VERTEX_NS = "http://tinkerpop.com/pgm/vertex/";
     public static final String EDGE_NS = "http://tinkerpop.com/pgm/edge/";
     public static final String ONTOLOGY_NS = "http://tinkerpop.com/pgm/ontology#";
+    public static final String PARTITION_NS = "http://tinkerpop.com/pgm/partition/";
 
     public static final URI
             EDGE = new URIImpl(ONTOLOGY_NS + "Edge"),
@@ -30,6 +45,20 @@ public class PropertyGraphSail implements Sail {
             HEAD = new URIImpl(ONTOLOGY_NS + "head"),
             TAIL = new URIImpl(ONTOLOGY_NS + "tail");
 
+    /**
+     * The property key under which a writable Sail records the URI of each vertex and edge it adds
+     * to a graph which ignores supplied ids
+     */
+    public static final String URI_KEY = "pgsail.uri";
+
+    private static final int DEFAULT_EXPORT_BATCH_SIZE = 1000;
+    private static final int DEFAULT_COMMIT_BATCH_SIZE = 10000;
+
+    // the maximum number of partition URIs kept for reuse
+    static final int MAX_CACHED_PARTITIONS = 1000;
+
+    private static final String JMX_DOMAIN = "com.tinkerpop.tinkubator.pgsail";
+
     public enum Properties {
         sharability,
         weight,
@@ -43,22 +72,240 @@ public class PropertyGraphSail implements Sail {
      * @param graph the Blueprints Graph to expose as an RDF dataset
      */
     public PropertyGraphSail(final Graph graph) {
-        context = new PropertyGraphContext(graph, new PropertyGraphValueFactory(graph));
+        context = new PropertyGraphContext(graph);
+    }
 
-        //graph.getIndex("", Vertex.class);
+    /**
+     * Associates a property key with a vertex index of the graph.
+     * Triple patterns in which the property predicate and value are bound,
+     * such as <code>?v prop:name "marko"</code>, will then be answered by looking up the value in the index,
+     * using the property key as the index key, rather than by scanning all vertices.
+     * Keys indexed by a <code>KeyIndexableGraph</code> do not need to be registered in this way.
+     *
+     * @param key       the property key
+     * @param indexName the name of a vertex index of the graph, or null to remove any index for the key
+     */
+    public void setVertexPropertyIndex(final String key,
+                                       final String indexName) {
+        if (null == indexName) {
+            context.vertexIndices.remove(key);
+        } else {
+            Index<Vertex> i = indexableGraph().getIndex(indexName, Vertex.class);
+            if (null == i) {
+                throw new IllegalArgumentException("no such vertex index: " + indexName);
+            }
 
+            context.vertexIndices.put(key, i);
+        }
     }
 
-    public void setVertexPropertyIndex(final String label,
-                                       final String indexName) {
-        /*
-        Index<Vertex> i = context.graph.getIndex(indexName, Vertex.class);
-        if (null == i) {
-            throw new IllegalArgumentException("no such vertex index: " + indexName);
+    /**
+     * Associates a property key with an edge index of the graph.
+     *
+     * @param key       the property key
+     * @param indexName the name of an edge index of the graph, or null to remove any index for the key
+     * @see #setVertexPropertyIndex(String, String)
+     */
+    public void setEdgePropertyIndex(final String key,
+                                     final String indexName) {
+        if (null == indexName) {
+            context.edgeIndices.remove(key);
+        } else {
+            Index<Edge> i = indexableGraph().getIndex(indexName, Edge.class);
+            if (null == i) {
+                throw new IllegalArgumentException("no such edge index: " + indexName);
+            }
+
+            context.edgeIndices.put(key, i);
         }
+    }
 
-        context.indices.put(label, i);
-        */
+    private IndexableGraph indexableGraph() {
+        if (!(context.graph instanceof IndexableGraph)) {
+            throw new IllegalStateException("graph does not support indices");
+        }
+
+        return (IndexableGraph) context.graph;
+    }
+
+    /**
+     * Enables or disables an in-memory index of edges by label.
+     * When enabled, label-bound triple patterns such as <code>?e pgm:label "knows"</code>
+     * are answered in time proportional to the number of matching edges, rather than with a scan of all edges.
+     * The index is built from the current contents of the graph.
+     * If the graph is an <code>EventGraph</code>, the index is kept up to date as edges are added and removed;
+     * otherwise, it may be rebuilt after changes to the graph using <code>reindexEdgeLabels</code>.
+     *
+     * @param enabled whether to maintain and use an edge label index
+     */
+    public void setEdgeLabelIndexEnabled(final boolean enabled) {
+        EdgeLabelIndex old = context.labelIndex;
+        if (null != old && context.graph instanceof EventGraph) {
+            ((EventGraph) context.graph).removeListener(old);
+        }
+
+        if (enabled) {
+            EdgeLabelIndex index = new EdgeLabelIndex(context.graph);
+            if (context.graph instanceof EventGraph) {
+                ((EventGraph) context.graph).addListener(index);
+            }
+            index.rebuild();
+            context.labelIndex = index;
+        } else {
+            context.labelIndex = null;
+        }
+    }
+
+    /**
+     * Rebuilds the edge label index, if enabled, from the current contents of the graph
+     */
+    public void reindexEdgeLabels() {
+        EdgeLabelIndex index = context.labelIndex;
+        if (null != index) {
+            index.rebuild();
+        }
+    }
+
+    /**
+     * Sets the property key by which vertices and edges are partitioned into named graphs.
+     * Each element with a value for the key is placed in the context
+     * <code>PARTITION_NS + value</code> (with the value URL-encoded, in UTF-8),
+     * and all statements about the element are in that context;
+     * elements without a value for the key are in the default context.
+     * Scans restricted to partition contexts visit only the elements of those partitions,
+     * looking them up by property value (with an index, if one is registered for the key).
+     * Partition values are expected to be strings.
+     * Partitioning is disabled by default, in which case all statements are in the default context.
+     *
+     * @param key the partition key, or null to disable partitioning
+     */
+    public void setPartitionKey(final String key) {
+        context.partitionKey = key;
+    }
+
+    /**
+     * Sets the codec with which vertex and edge ids are mapped to and from the local names of their URIs.
+     * By default, ids are treated as strings.
+     *
+     * @param codec the id codec to use
+     * @see IdCodec
+     */
+    public void setIdCodec(final IdCodec codec) {
+        if (null == codec) {
+            throw new IllegalArgumentException("null id codec");
+        }
+
+        context.idCodec = codec;
+        clearElementCache();
+    }
+
+    /**
+     * Enables, resizes or disables a cache of vertex and edge URIs.
+     * Elements are cached both by URI and by id, so that frequently used URIs are resolved to elements
+     * without parsing or a lookup in the graph, and frequently used elements are mapped to URIs
+     * without building a new URI string.
+     * If the graph is an <code>EventGraph</code>, entries are removed from the cache as elements are removed;
+     * otherwise, the cache should be cleared with <code>clearElementCache</code> after elements are removed.
+     * The cache is disabled by default.
+     *
+     * @param capacity the maximum number of elements to cache, or 0 to disable the cache
+     */
+    public void setElementCacheSize(final int capacity) {
+        ElementCache old = context.elementCache;
+        if (null != old && context.graph instanceof EventGraph) {
+            ((EventGraph) context.graph).removeListener(old);
+        }
+
+        if (capacity > 0) {
+            ElementCache cache = new ElementCache(capacity);
+            if (context.graph instanceof EventGraph) {
+                ((EventGraph) context.graph).addListener(cache);
+            }
+            context.elementCache = cache;
+        } else {
+            context.elementCache = null;
+        }
+    }
+
+    /**
+     * Removes all entries from the element cache, if enabled
+     */
+    public void clearElementCache() {
+        ElementCache cache = context.elementCache;
+        if (null != cache) {
+            cache.clear();
+        }
+    }
+
+    /**
+     * Sets the maximum age of the graph statistics (vertex and edge counts, label and property key counts)
+     * used to choose the order in which the triple patterns of a query are evaluated.
+     * Statistics are gathered with a pass over the whole graph, on a background thread;
+     * until the first pass is complete, they are estimated from a sample of the graph,
+     * and while statistics are gathered again, queries use the previous statistics.
+     *
+     * @param maxAge the maximum age of the statistics, in milliseconds,
+     *               or a negative value if statistics are to be refreshed only with <code>refreshStatistics</code>
+     */
+    public void setStatisticsMaxAge(final long maxAge) {
+        context.statistics.setMaxAge(maxAge);
+    }
+
+    /**
+     * Sets the maximum age of the statement count reported by <code>SailConnection.size</code>.
+     * Statements are counted with a pass over the whole graph, and the count is reused for up to the maximum age
+     * (by default, ten seconds), after which statements are counted again on a background thread,
+     * while <code>size</code> continues to return the previous count.
+     * If the graph is an <code>EventGraph</code>, the count is instead kept up to date by change events,
+     * and <code>size</code> takes constant time.
+     * Only where the events leave the count uncertain (when a property is set, possibly replacing an old value,
+     * or a vertex is removed, possibly with edges) is the count estimated, and recounted in the background
+     * once the estimate is older than the maximum age.
+     * A maximum age of zero makes every count exact, at the cost of counting on the calling thread.
+     *
+     * @param maxAge the maximum age of the statement count, in milliseconds,
+     *               or a negative value if the count is to be refreshed only with <code>refreshStatistics</code>
+     */
+    public void setSizeMaxAge(final long maxAge) {
+        context.statistics.setSizeMaxAge(maxAge);
+    }
+
+    /**
+     * Marks the current graph statistics as out of date.
+     * Both the statement count and the statistics used for query optimization are gathered again
+     * in the background when next needed.
+     */
+    public void refreshStatistics() {
+        context.statistics.invalidate();
+    }
+
+    /**
+     * Writes all statements in the RDF view of the graph to a handler,
+     * generating statements on multiple threads.
+     * Statements are handled in no particular order, but never concurrently.
+     *
+     * @param handler   a handler for the exported statements
+     * @param threads   the number of threads with which to generate statements
+     * @param batchSize the number of vertices or edges handed to a thread at a time
+     * @throws SailException       if the export fails or is interrupted
+     * @throws RDFHandlerException if the handler throws an exception
+     */
+    public void exportStatements(final RDFHandler handler,
+                                 final int threads,
+                                 final int batchSize) throws SailException, RDFHandlerException {
+        new ParallelExporter(context, threads, batchSize).export(handler);
+    }
+
+    /**
+     * Writes all statements in the RDF view of the graph to a handler,
+     * with one thread per available processor.
+     *
+     * @param handler a handler for the exported statements
+     * @throws SailException       if the export fails or is interrupted
+     * @throws RDFHandlerException if the handler throws an exception
+     */
+    public void exportStatements(final RDFHandler handler) throws SailException, RDFHandlerException {
+        exportStatements(handler, Runtime.getRuntime().availableProcessors(), DEFAULT_EXPORT_BATCH_SIZE);
     }
 
     public void setDataDir(File file) {
@@ -74,11 +321,149 @@ public class PropertyGraphSail implements Sail {
     }
 
     public void shutDown() throws SailException {
-        // Do nothing.
+        setJmxName(null);
+        context.statistics.close();
+        // detach the label index and element cache from the graph
+        setEdgeLabelIndexEnabled(false);
+        setElementCacheSize(0);
     }
 
     public boolean isWritable() throws SailException {
-        return false;
+        return context.writable;
+    }
+
+    /**
+     * Enables or disables write access to the graph.
+     * When writable, statements added to a connection are mapped to vertex, edge and property mutations,
+     * which are buffered and applied to the graph when the connection is committed.
+     * Pending writes are not visible to queries, even through the same connection, until they are committed.
+     * Read-only by default.
+     * <p/>
+     * A graph which ignores supplied ids (such as Neo4jGraph) assigns ids of its own to added vertices and edges,
+     * so that they can not be found again by decoding their URIs.
+     * In such a graph, each added vertex and edge records the URI with which it was written,
+     * as the value of the <code>URI_KEY</code> property, and later writes find it by that property.
+     * If the graph is a <code>KeyIndexableGraph</code>, the property is indexed when the Sail is made writable;
+     * otherwise, finding an element by URI is a scan over all vertices or edges.
+     *
+     * @param writable whether the Sail accepts writes
+     */
+    public void setWritable(final boolean writable) {
+        if (writable && context.ignoresSuppliedIds && context.graph instanceof KeyIndexableGraph) {
+            KeyIndexableGraph g = (KeyIndexableGraph) context.graph;
+            if (!g.getIndexedKeys(Vertex.class).contains(URI_KEY)) {
+                g.createKeyIndex(URI_KEY, Vertex.class);
+            }
+            if (!g.getIndexedKeys(Edge.class).contains(URI_KEY)) {
+                g.createKeyIndex(URI_KEY, Edge.class);
+            }
+        }
+
+        context.writable = writable;
+    }
+
+
+    /**
+     * Sets the number of pending writes which are applied to the graph in a single transaction,
+     * if the graph is a <code>TransactionalGraph</code>.
+     * When a connection commits more writes than this, they are applied in several consecutive transactions,
+     * and if a write fails, only the transaction which contains it is rolled back:
+     * the batches before it remain in the graph, so that such a commit is not atomic, but partially applied.
+     * To commit all of a connection's writes atomically, set a batch size at least as large as the commit.
+     *
+     * @param batchSize the maximum number of writes per transaction
+     */
+    public void setCommitBatchSize(final int batchSize) {
+        if (batchSize < 1) {
+            throw new IllegalArgumentException("batch size must be positive");
+        }
+
+        context.commitBatchSize = batchSize;
+    }
+
+    /**
+     * Enables or disables metrics for triple pattern lookups.
+     * Connections opened while metrics are enabled count, for each shape of triple pattern,
+     * the number of lookups, the vertices and edges read from the graph, the statements produced and the time taken.
+     * The counts are kept both per connection and in aggregate (see <code>getMetrics</code>).
+     * Metrics are disabled by default, as timing each statement has a small cost.
+     *
+     * @param enabled whether connections opened from now on should collect metrics
+     * @see PatternMetrics
+     */
+    public void setMetricsEnabled(final boolean enabled) {
+        context.metricsEnabled = enabled;
+    }
+
+    /**
+     * @return the aggregate metrics of all connections which have collected metrics
+     */
+    public PatternMetrics getMetrics() {
+        return context.metrics;
+    }
+
+    /**
+     * @param listener a listener to receive the metrics of each triple pattern lookup, or null for no listener
+     */
+    public void setMetricsListener(final PatternMetricsListener listener) {
+        context.metricsListener = listener;
+    }
+
+    /**
+     * Exposes metrics through the platform MBean server.
+     * The aggregate metrics of this Sail are registered under
+     * <code>com.tinkerpop.tinkubator.pgsail:type=PropertyGraphSail,name=<i>name</i></code>,
+     * and those of each connection which collects metrics under
+     * <code>com.tinkerpop.tinkubator.pgsail:type=PropertyGraphSailConnection,sail=<i>name</i>,id=<i>n</i></code>,
+     * for as long as the connection is open.
+     *
+     * @param name a name for this Sail, unique within the JVM, or null to stop exposing metrics
+     * @throws SailException if the MBean can not be registered
+     */
+    public void setJmxName(final String name) throws SailException {
+        String old = context.jmxName;
+        if (null != old) {
+            context.jmxName = null;
+            unregisterMBean(objectName(old, null));
+        }
+
+        if (null != name) {
+            registerMBean(context.metrics, objectName(name, null));
+            context.jmxName = name;
+        }
+    }
+
+    /**
+     * @param sailName     the JMX name of a Sail
+     * @param connectionId the id of a connection of the Sail, or null for the Sail itself
+     */
+    static ObjectName objectName(final String sailName,
+                                 final Long connectionId) throws SailException {
+        try {
+            return new ObjectName(null == connectionId
+                    ? JMX_DOMAIN + ":type=PropertyGraphSail,name=" + ObjectName.quote(sailName)
+                    : JMX_DOMAIN + ":type=PropertyGraphSailConnection,sail=" + ObjectName.quote(sailName)
+                    + ",id=" + connectionId);
+        } catch (JMException e) {
+            throw new SailException(e);
+        }
+    }
+
+    static void registerMBean(final Object bean,
+                              final ObjectName name) throws SailException {
+        try {
+            ManagementFactory.getPlatformMBeanServer().registerMBean(bean, name);
+        } catch (JMException e) {
+            throw new SailException(e);
+        }
+    }
+
+    static void unregisterMBean(final ObjectName name) throws SailException {
+        try {
+            ManagementFactory.getPlatformMBeanServer().unregisterMBean(name);
+        } catch (JMException e) {
+            throw new SailException(e);
+        }
     }
 
     public SailConnection getConnection() throws SailException {
@@ -93,15 +478,39 @@ public class PropertyGraphSail implements Sail {
 
     static class PropertyGraphContext {
         public final Graph graph;
+        public final boolean ignoresSuppliedIds;
+
+        public final PropertyGraphValueFactory valueFactory;
+
+        public volatile EdgeLabelIndex labelIndex;
+
+        public volatile ElementCache elementCache;
+
+        public volatile IdCodec idCodec = new IdCodec.StringCodec();
+
+        public volatile String partitionKey;
+        public final Map<Object, URI> partitionURIs = new ConcurrentHashMap<Object, URI>();
+
+        public volatile boolean writable = false;
+        public volatile int commitBatchSize = DEFAULT_COMMIT_BATCH_SIZE;
+        public final Object commitLock = new Object();
+
+        public volatile boolean metricsEnabled = false;
+        public volatile PatternMetricsListener metricsListener;
+        public volatile String jmxName;
+        public final PatternMetrics metrics = new PatternMetrics();
+        public final AtomicLong connectionIds = new AtomicLong();
 
-        public final ValueFactory valueFactory;
+        public final PropertyGraphStatistics statistics;
 
-        //public final Map<String, Index<Vertex>> indices = new HashMap<String, Index<Vertex>>();
+        public final Map<String, Index<Vertex>> vertexIndices = new ConcurrentHashMap<String, Index<Vertex>>();
+        public final Map<String, Index<Edge>> edgeIndices = new ConcurrentHashMap<String, Index<Edge>>();
 
-        public PropertyGraphContext(final Graph graph,
-                                    final ValueFactory valueFactory) {
+        public PropertyGraphContext(final Graph graph) {
             this.graph = graph;
-            this.valueFactory = valueFactory;
+            this.ignoresSuppliedIds = Boolean.TRUE.equals(graph.getFeatures().ignoresSuppliedIds);
+            this.valueFactory = new PropertyGraphValueFactory(this);
+            this.statistics = new PropertyGraphStatistics(graph);
         }
     }
 }
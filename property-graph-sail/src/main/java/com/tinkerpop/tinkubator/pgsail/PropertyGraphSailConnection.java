@@ -1,10 +1,14 @@
 package com.tinkerpop.tinkubator.pgsail;
 
+import com.tinkerpop.blueprints.CloseableIterable;
 import com.tinkerpop.blueprints.Direction;
 import com.tinkerpop.blueprints.Edge;
 import com.tinkerpop.blueprints.Element;
+import com.tinkerpop.blueprints.Index;
+import com.tinkerpop.blueprints.KeyIndexableGraph;
 import com.tinkerpop.blueprints.Vertex;
 import info.aduna.iteration.CloseableIteration;
+import info.aduna.iteration.FilterIteration;
 import net.fortytwo.sesametools.SailConnectionTripleSource;
 import org.openrdf.model.Literal;
 import org.openrdf.model.Namespace;
@@ -12,26 +16,59 @@ import org.openrdf.model.Resource;
 import org.openrdf.model.Statement;
 import org.openrdf.model.URI;
 import org.openrdf.model.Value;
+import org.openrdf.model.impl.ContextStatementImpl;
 import org.openrdf.model.impl.NamespaceImpl;
+import org.openrdf.model.impl.StatementImpl;
 import org.openrdf.model.vocabulary.RDF;
 import org.openrdf.model.vocabulary.XMLSchema;
 import org.openrdf.query.BindingSet;
 import org.openrdf.query.Dataset;
 import org.openrdf.query.QueryEvaluationException;
+import org.openrdf.query.algebra.QueryRoot;
 import org.openrdf.query.algebra.TupleExpr;
 import org.openrdf.query.algebra.UpdateExpr;
 import org.openrdf.query.algebra.evaluation.TripleSource;
+import org.openrdf.query.algebra.evaluation.impl.BindingAssigner;
 import org.openrdf.query.algebra.evaluation.impl.EvaluationStrategyImpl;
+import org.openrdf.query.algebra.evaluation.impl.QueryJoinOptimizer;
 import org.openrdf.sail.SailConnection;
 import org.openrdf.sail.SailException;
 
+import javax.management.ObjectName;
+
+import java.io.UnsupportedEncodingException;
+import java.net.URLDecoder;
+import java.net.URLEncoder;
+import java.util.Arrays;
 import java.util.Collection;
+import java.util.Collections;
 import java.util.HashMap;
+import java.util.HashSet;
 import java.util.Iterator;
+import java.util.LinkedHashSet;
 import java.util.LinkedList;
+import java.util.List;
 import java.util.Map;
+import java.util.NoSuchElementException;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
 
 /**
+ * A connection to a property graph Sail.
+ * <p/>
+ * Any number of connections may read from the same Sail concurrently, each in its own thread.
+ * The state shared between connections (the statistics, label index, element cache and value factory of the Sail)
+ * is thread-safe, and the statement generators of a connection are immutable,
+ * so that the state of each lookup lives only in the iteration it returns.
+ * A single connection may also be shared among threads for reading, e.g. by the parallel exporter,
+ * while writes to a connection are serialized, and commits are serialized across all connections of the Sail.
+ * <p/>
+ * Note that reads do not see a snapshot of the graph: each element is read as it stands when it is reached,
+ * so that a query which runs concurrently with a commit may see some, but not all, of the committed changes.
+ * This is the isolation level of the underlying graph (e.g. read-committed, for Neo4j),
+ * which a Blueprints graph provides no means of raising.
+ *
  * @author Joshua Shinavier (http://fortytwo.net)
  */
 class PropertyGraphSailConnection implements SailConnection {
@@ -45,13 +82,86 @@ class PropertyGraphSailConnection implements SailConnection {
         addNamespace("rdf", RDF.NAMESPACE);
     }
 
+    private static final Map<URI, LiteralConverter> literalConverters = new HashMap<URI, LiteralConverter>();
+
+    static {
+        literalConverters.put(XMLSchema.STRING, new LiteralConverter() {
+            public Object convert(final Literal l) {
+                return l.stringValue();
+            }
+        });
+        literalConverters.put(XMLSchema.LONG, new LiteralConverter() {
+            public Object convert(final Literal l) {
+                return l.longValue();
+            }
+        });
+        literalConverters.put(XMLSchema.INT, new LiteralConverter() {
+            public Object convert(final Literal l) {
+                return l.intValue();
+            }
+        });
+        literalConverters.put(XMLSchema.INTEGER, new LiteralConverter() {
+            public Object convert(final Literal l) {
+                return l.integerValue();
+            }
+        });
+        literalConverters.put(XMLSchema.BYTE, new LiteralConverter() {
+            public Object convert(final Literal l) {
+                return l.byteValue();
+            }
+        });
+        literalConverters.put(XMLSchema.BOOLEAN, new LiteralConverter() {
+            public Object convert(final Literal l) {
+                return l.booleanValue();
+            }
+        });
+        literalConverters.put(XMLSchema.SHORT, new LiteralConverter() {
+            public Object convert(final Literal l) {
+                return l.shortValue();
+            }
+        });
+        literalConverters.put(XMLSchema.FLOAT, new LiteralConverter() {
+            public Object convert(final Literal l) {
+                return l.floatValue();
+            }
+        });
+        literalConverters.put(XMLSchema.DOUBLE, new LiteralConverter() {
+            public Object convert(final Literal l) {
+                return l.doubleValue();
+            }
+        });
+    }
+
+    // the kinds of statement produced by an element generator
+    private static final int
+            IDS = 1,
+            TYPES = 2,
+            PROPERTIES = 4,
+            LABELS = 8,
+            HEADS = 16,
+            TAILS = 32;
+
     private final PropertyGraphSail.PropertyGraphContext context;
 
-    private boolean open = true;
+    private volatile boolean open = true;
 
+    private final long id;
+
+    // these are null unless metrics are enabled
+    private final PatternMetrics metrics;
+    private final ThreadLocal<MeteredLookup> currentLookup;
+    private ObjectName mbeanName;
+
+    private final WriteBuffer writes;
+
+    // iterations which have been opened through this connection, but not yet closed.
+    // A concurrent set, as iterations are registered and unregistered on every lookup, possibly in many threads
+    private final Set<CloseableIteration<?, ?>> openIterations
+            = Collections.newSetFromMap(new ConcurrentHashMap<CloseableIteration<?, ?>, Boolean>());
+
+    // generators are immutable, and may be used by any number of threads at once
     private final VertexGenerator allVertexStatements;
     private final VertexGenerator vertexIds;
-    private final VertexGenerator vertexProps;
     private final VertexGenerator vertexTypes;
     private final EdgeGenerator allEdgeStatements;
     private final EdgeGenerator labels;
@@ -59,50 +169,36 @@ class PropertyGraphSailConnection implements SailConnection {
     private final EdgeGenerator tails;
     private final EdgeGenerator edgeTypes;
     private final EdgeGenerator edgeIds;
-    private final EdgeGenerator edgeProps;
 
-    public PropertyGraphSailConnection(final PropertyGraphSail.PropertyGraphContext context) {
+    public PropertyGraphSailConnection(final PropertyGraphSail.PropertyGraphContext context) throws SailException {
         this.context = context;
+        this.writes = new WriteBuffer(this, context);
+        this.id = context.connectionIds.incrementAndGet();
 
-        allVertexStatements = new VertexGenerator();
-        allVertexStatements.setDoId(true);
-        allVertexStatements.setDoProperties(true);
-        allVertexStatements.setDoType(true);
-
-        allEdgeStatements = new EdgeGenerator();
-        allEdgeStatements.setDoId(true);
-        allEdgeStatements.setDoProperties(true);
-        allEdgeStatements.setDoType(true);
-        allEdgeStatements.setDoHead(true);
-        allEdgeStatements.setDoTail(true);
-        allEdgeStatements.setDoLabel(true);
+        if (context.metricsEnabled) {
+            metrics = new PatternMetrics();
+            currentLookup = new ThreadLocal<MeteredLookup>();
 
-        vertexTypes = new VertexGenerator();
-        vertexTypes.setDoType(true);
-
-        edgeTypes = new EdgeGenerator();
-        edgeTypes.setDoType(true);
-
-        labels = new EdgeGenerator();
-        labels.setDoLabel(true);
-
-        heads = new EdgeGenerator();
-        heads.setDoHead(true);
-
-        tails = new EdgeGenerator();
-        tails.setDoTail(true);
-
-        vertexIds = new VertexGenerator();
-        vertexIds.setDoId(true);
-
-        edgeIds = new EdgeGenerator();
-        edgeIds.setDoId(true);
+            String jmxName = context.jmxName;
+            if (null != jmxName) {
+                mbeanName = PropertyGraphSail.objectName(jmxName, id);
+                PropertyGraphSail.registerMBean(metrics, mbeanName);
+            }
+        } else {
+            metrics = null;
+            currentLookup = null;
+        }
 
-        vertexProps = new VertexGenerator();
-        vertexProps.setDoProperties(true);
+        allVertexStatements = new VertexGenerator(IDS | TYPES | PROPERTIES);
+        allEdgeStatements = new EdgeGenerator(IDS | TYPES | PROPERTIES | LABELS | HEADS | TAILS);
 
-        edgeProps = new EdgeGenerator();
-        edgeProps.setDoProperties(true);
+        vertexTypes = new VertexGenerator(TYPES);
+        edgeTypes = new EdgeGenerator(TYPES);
+        labels = new EdgeGenerator(LABELS);
+        heads = new EdgeGenerator(HEADS);
+        tails = new EdgeGenerator(TAILS);
+        vertexIds = new VertexGenerator(IDS);
+        edgeIds = new EdgeGenerator(IDS);
     }
 
     private static void addNamespace(final String prefix,
@@ -117,16 +213,90 @@ class PropertyGraphSailConnection implements SailConnection {
 
     public void close() throws SailException {
         open = false;
+
+        try {
+            closeIterations();
+        } finally {
+            if (null != mbeanName) {
+                ObjectName name = mbeanName;
+                mbeanName = null;
+                PropertyGraphSail.unregisterMBean(name);
+            }
+        }
+    }
+
+    /**
+     * @return an id for this connection, unique within its Sail
+     */
+    long getId() {
+        return id;
+    }
+
+    /**
+     * @return the metrics of this connection, or null if metrics are not enabled
+     */
+    PatternMetrics getMetrics() {
+        return metrics;
+    }
+
+    void registerIteration(final CloseableIteration<?, ?> iteration) {
+        openIterations.add(iteration);
+    }
+
+    void unregisterIteration(final CloseableIteration<?, ?> iteration) {
+        openIterations.remove(iteration);
+    }
+
+    /**
+     * @return the number of iterations which have been opened through this connection, but not yet closed
+     */
+    int getOpenIterationCount() {
+        return openIterations.size();
+    }
+
+    // stops any queries and statement iterations which are still in progress
+    private void closeIterations() throws SailException {
+        Exception error = null;
+        for (CloseableIteration<?, ?> i : openIterations) {
+            // an iteration may also be closed concurrently; only the thread which removes it closes it here
+            if (!openIterations.remove(i)) {
+                continue;
+            }
+
+            try {
+                i.close();
+            } catch (Exception e) {
+                if (null == error) {
+                    error = e;
+                }
+            }
+        }
+
+        if (null != error) {
+            throw error instanceof SailException ? (SailException) error : new SailException(error);
+        }
     }
 
     public CloseableIteration<? extends BindingSet, QueryEvaluationException> evaluate(final TupleExpr query,
                                                                                        final Dataset dataset,
                                                                                        final BindingSet bindings,
                                                                                        final boolean includeInferred) throws SailException {
+        checkOpen();
+
         try {
+            TupleExpr expr = query.clone();
+            if (!(expr instanceof QueryRoot)) {
+                expr = new QueryRoot(expr);
+            }
+            new BindingAssigner().optimize(expr, dataset, bindings);
+            new EdgePatternOptimizer(this).optimize(expr, dataset, bindings);
+            new RangePatternOptimizer(this).optimize(expr, dataset, bindings);
+            new QueryJoinOptimizer(new PropertyGraphEvaluationStatistics(context.statistics.getSnapshot()))
+                    .optimize(expr, dataset, bindings);
+
             TripleSource tripleSource = new SailConnectionTripleSource(this, context.valueFactory, includeInferred);
-            EvaluationStrategyImpl strategy = new EvaluationStrategyImpl(tripleSource, dataset);
-            return strategy.evaluate(query, bindings);
+            EvaluationStrategyImpl strategy = new PropertyGraphEvaluationStrategy(tripleSource, dataset);
+            return strategy.evaluate(expr, bindings);
         } catch (QueryEvaluationException e) {
             throw new SailException(e);
         }
@@ -137,7 +307,86 @@ class PropertyGraphSailConnection implements SailConnection {
     }
 
     public CloseableIteration<? extends Resource, SailException> getContextIDs() throws SailException {
-        throw new UnsupportedOperationException();
+        checkOpen();
+
+        String key = context.partitionKey;
+        Set<Resource> ids = new LinkedHashSet<Resource>();
+
+        // Note: this is a scan over all elements
+        if (null != key) {
+            for (Vertex v : context.graph.getVertices()) {
+                Resource c = contextOf(v);
+                if (null != c) {
+                    ids.add(c);
+                }
+            }
+            for (Edge e : context.graph.getEdges()) {
+                Resource c = contextOf(e);
+                if (null != c) {
+                    ids.add(c);
+                }
+            }
+        }
+
+        return new SimpleCloseableIteration<Resource, SailException>(ids.iterator());
+    }
+
+    /**
+     * @return the context of the given element: a partition URI if partitioning is enabled
+     *         and the element has a value for the partition key, otherwise null (the default context)
+     */
+    Resource contextOf(final Element e) {
+        String key = context.partitionKey;
+        if (null == key) {
+            return null;
+        }
+
+        Object value = e.getProperty(key);
+        if (null == value) {
+            return null;
+        }
+
+        // there are typically few partitions, so their URIs are shared rather than created for each element
+        Map<Object, URI> uris = context.partitionURIs;
+        URI uri = uris.get(value);
+        if (null == uri) {
+            uri = context.valueFactory.createURI(PropertyGraphSail.PARTITION_NS + encodePartition(value.toString()));
+            if (uris.size() < PropertyGraphSail.MAX_CACHED_PARTITIONS) {
+                uris.put(value, uri);
+            }
+        }
+
+        return uri;
+    }
+
+    /**
+     * @return the partition value of the given context, or null if it is not a partition URI
+     */
+    private String partitionOf(final Resource context) {
+        String s = null == context ? null : context.stringValue();
+        return null != s && context instanceof URI && s.startsWith(PropertyGraphSail.PARTITION_NS)
+                ? decodePartition(s.substring(PropertyGraphSail.PARTITION_NS.length()))
+                : null;
+    }
+
+    // partition values are percent-encoded, so that any value gives a valid URI
+    private static String encodePartition(final String value) {
+        try {
+            return URLEncoder.encode(value, "UTF-8");
+        } catch (UnsupportedEncodingException e) {
+            throw new IllegalStateException(e);
+        }
+    }
+
+    private static String decodePartition(final String localName) {
+        try {
+            return URLDecoder.decode(localName, "UTF-8");
+        } catch (UnsupportedEncodingException e) {
+            throw new IllegalStateException(e);
+        } catch (IllegalArgumentException e) {
+            // not a well-formed partition URI
+            return null;
+        }
     }
 
     private boolean matchesNullContext(final Resource... contexts) {
@@ -159,12 +408,36 @@ class PropertyGraphSailConnection implements SailConnection {
                                                                                 final Value object,
                                                                                 final boolean includeInferred,
                                                                                 final Resource... contexts) throws SailException {
-        // Statements exist only in the default context.
-        if (!matchesNullContext(contexts)) {
-            return new StatementIteration();
+        checkOpen();
+
+        if (null == metrics) {
+            return getStatementsInternal(subject, predicate, object, contexts);
+        }
+
+        // the sources created for this lookup count the elements they read against it
+        MeteredLookup lookup = new MeteredLookup(PatternMetrics.shapeOf(subject, predicate, object));
+        long start = System.nanoTime();
+        currentLookup.set(lookup);
+        try {
+            return new MeteredIteration(getStatementsInternal(subject, predicate, object, contexts), lookup);
+        } finally {
+            currentLookup.remove();
+            lookup.nanos.addAndGet(System.nanoTime() - start);
         }
+    }
 
-        // TODO: elements embedded in URIs
+    private CloseableIteration<? extends Statement, SailException> getStatementsInternal(final Resource subject,
+                                                                                         final URI predicate,
+                                                                                         final Value object,
+                                                                                         final Resource... contexts) throws SailException {
+        if (null == context.partitionKey) {
+            // Statements exist only in the default context.
+            if (!matchesNullContext(contexts)) {
+                return new StatementIteration();
+            }
+        } else if (contexts.length > 0) {
+            return getStatementsInContexts(subject, predicate, object, contexts);
+        }
 
         if (null == subject) {
             if (null == object) {
@@ -197,11 +470,50 @@ class PropertyGraphSailConnection implements SailConnection {
         }
     }
 
+    private CloseableIteration<? extends Statement, SailException> getStatementsInContexts(final Resource subject,
+                                                                                         final URI predicate,
+                                                                                         final Value object,
+                                                                                         final Resource... contexts) throws SailException {
+        final Set<Resource> contextSet = new HashSet<Resource>(Arrays.asList(contexts));
+
+        CloseableIteration<? extends Statement, SailException> base;
+        if (null == subject && null == object && !contextSet.contains(null)) {
+            // iterate only over the elements of the given partitions
+            // if the predicate is bound, only the corresponding property (if any) is read from each element
+            String key = context.partitionKey;
+            VertexGenerator vertexGenerator = null == predicate ? allVertexStatements : vertexGeneratorFor(predicate);
+            EdgeGenerator edgeGenerator = null == predicate ? allEdgeStatements : edgeGeneratorFor(predicate);
+            List<Source> sources = new LinkedList<Source>();
+            for (Resource c : contextSet) {
+                String value = partitionOf(c);
+                if (null != value) {
+                    if (null != vertexGenerator) {
+                        sources.add(new Source<Vertex>(verticesWithProperty(key, value), vertexGenerator));
+                    }
+                    if (null != edgeGenerator) {
+                        sources.add(new Source<Edge>(edgesWithProperty(key, value), edgeGenerator));
+                    }
+                }
+            }
+            base = new StatementIteration(sources.toArray(new Source[sources.size()]));
+        } else {
+            base = getStatementsInternal(subject, predicate, object);
+        }
+
+        return new FilterIteration<Statement, SailException>(base) {
+            @Override
+            protected boolean accept(final Statement st) {
+                return (null == predicate || predicate.equals(st.getPredicate()))
+                        && contextSet.contains(st.getContext());
+            }
+        };
+    }
+
     private CloseableIteration<Statement, SailException> getStatements_xxx() throws SailException {
-        Iterator<Edge> edgeIterator = context.graph.getEdges().iterator();
-        Iterator<Vertex> vertexIterator = context.graph.getVertices().iterator();
-        Source<Edge> edges = new Source<Edge>(edgeIterator, allEdgeStatements);
-        Source<Vertex> vertices = new Source<Vertex>(vertexIterator, allVertexStatements);
+        Iterable<Edge> edgeIterable = context.graph.getEdges();
+        Iterable<Vertex> vertexIterable = context.graph.getVertices();
+        Source<Edge> edges = new Source<Edge>(edgeIterable, allEdgeStatements);
+        Source<Vertex> vertices = new Source<Vertex>(vertexIterable, allVertexStatements);
         return new StatementIteration(vertices, edges);
     }
 
@@ -366,14 +678,14 @@ class PropertyGraphSailConnection implements SailConnection {
                 if (null != v) {
                     Source<Vertex> vertices = new Source<Vertex>(
                             new SingleItemIterator<Vertex>(v),
-                            vertexPropertiesWithValue(val, (Literal) object));
+                            vertexPropertiesWithValue(val, (Literal) object, Collections.<String>emptySet()));
                     sources.add(vertices);
                 }
 
                 if (null != e) {
                     Source<Edge> edges = new Source<Edge>(
                             new SingleItemIterator<Edge>(e),
-                            edgePropertiesWithValue(val, (Literal) object));
+                            edgePropertiesWithValue(val, (Literal) object, Collections.<String>emptySet()));
                     sources.add(edges);
                 }
             }
@@ -519,17 +831,17 @@ class PropertyGraphSailConnection implements SailConnection {
             Vertex v = vertexForURI((URI) object);
             if (null == v) {
                 if (object.equals(PropertyGraphSail.VERTEX)) {
-                    Source<Vertex> vertices = new Source<Vertex>(context.graph.getVertices().iterator(), vertexTypes);
+                    Source<Vertex> vertices = new Source<Vertex>(context.graph.getVertices(), vertexTypes);
                     return new StatementIteration(vertices);
                 } else if (object.equals(PropertyGraphSail.EDGE)) {
-                    Source<Edge> edges = new Source<Edge>(context.graph.getEdges().iterator(), edgeTypes);
+                    Source<Edge> edges = new Source<Edge>(context.graph.getEdges(), edgeTypes);
                     return new StatementIteration(edges);
                 } else {
                     return new StatementIteration();
                 }
             } else {
-                Source<Edge> ins = new Source<Edge>(v.getEdges(Direction.IN).iterator(), heads);
-                Source<Edge> outs = new Source<Edge>(v.getEdges(Direction.OUT).iterator(), tails);
+                Source<Edge> ins = new Source<Edge>(v.getEdges(Direction.IN), heads);
+                Source<Edge> outs = new Source<Edge>(v.getEdges(Direction.OUT), tails);
                 return new StatementIteration(ins, outs);
             }
         } else {
@@ -553,10 +865,9 @@ class PropertyGraphSailConnection implements SailConnection {
 
                 // label
                 {
-                    // TODO: find matching edges faster using indices
                     if (val instanceof String) {
                         Source<Edge> s = new Source<Edge>(
-                                context.graph.getEdges().iterator(),
+                                edgesWithLabel((String) val),
                                 matchingLabels((String) val, object));
                         sources.add(s);
                     }
@@ -564,13 +875,26 @@ class PropertyGraphSailConnection implements SailConnection {
 
                 // properties
                 {
-                    // TODO: find matching vertices and edges faster using indices
+                    // indexed keys are looked up in their indices, while any other keys are matched by scanning
+                    Set<String> edgeKeys = indexedKeys(Edge.class);
+                    Set<String> vertexKeys = indexedKeys(Vertex.class);
+                    for (String key : edgeKeys) {
+                        sources.add(new Source<Edge>(
+                                edgesWithProperty(key, val),
+                                edgePropertiesWithKeyAndValue(key, predicateForPropertyKey(key), val, (Literal) object)));
+                    }
+                    for (String key : vertexKeys) {
+                        sources.add(new Source<Vertex>(
+                                verticesWithProperty(key, val),
+                                vertexPropertiesWithKeyAndValue(key, predicateForPropertyKey(key), val, (Literal) object)));
+                    }
+
                     Source<Edge> edges = new Source<Edge>(
-                            context.graph.getEdges().iterator(),
-                            edgePropertiesWithValue(val, (Literal) object));
+                            context.graph.getEdges(),
+                            edgePropertiesWithValue(val, (Literal) object, edgeKeys));
                     Source<Vertex> vertices = new Source<Vertex>(
-                            context.graph.getVertices().iterator(),
-                            vertexPropertiesWithValue(val, (Literal) object));
+                            context.graph.getVertices(),
+                            vertexPropertiesWithValue(val, (Literal) object, vertexKeys));
                     sources.add(edges);
                     sources.add(vertices);
                 }
@@ -590,10 +914,10 @@ class PropertyGraphSailConnection implements SailConnection {
                                                                            final Value object) throws SailException {
         if (predicate.equals(RDF.TYPE)) {
             if (object.equals(PropertyGraphSail.VERTEX)) {
-                Source<Vertex> s = new Source<Vertex>(context.graph.getVertices().iterator(), vertexTypes);
+                Source<Vertex> s = new Source<Vertex>(context.graph.getVertices(), vertexTypes);
                 return new StatementIteration(s);
             } else if (object.equals(PropertyGraphSail.EDGE)) {
-                Source<Edge> s = new Source<Edge>(context.graph.getEdges().iterator(), edgeTypes);
+                Source<Edge> s = new Source<Edge>(context.graph.getEdges(), edgeTypes);
                 return new StatementIteration(s);
             } else {
                 return new StatementIteration();
@@ -606,27 +930,28 @@ class PropertyGraphSailConnection implements SailConnection {
             } else {
                 Vertex v = context.graph.getVertex(id);
                 Edge e = context.graph.getEdge(id);
-                if (null == v && null == e) {
-                    return new StatementIteration();
-                } else {
-                    Collection<Statement> s = new LinkedList<Statement>();
-                    if (null != v) {
-                        vertexIds.generate(v, s);
+                if (null == v) {
+                    if (null == e) {
+                        return new StatementIteration();
+                    } else {
+                        return new StatementIteration(new Source<Edge>(new SingleItemIterator<Edge>(e), edgeIds));
                     }
-                    if (null != e) {
-                        edgeIds.generate(e, s);
+                } else {
+                    Source<Vertex> vertices = new Source<Vertex>(new SingleItemIterator<Vertex>(v), vertexIds);
+                    if (null == e) {
+                        return new StatementIteration(vertices);
+                    } else {
+                        return new StatementIteration(vertices, new Source<Edge>(new SingleItemIterator<Edge>(e), edgeIds));
                     }
-                    return new SimpleCloseableIteration<Statement, SailException>(s.iterator());
                 }
             }
         } else if (predicate.equals(PropertyGraphSail.LABEL)) {
-            // TODO: find edges faster using indices
             Object label = literalToObject(object);
             if (null == label || !(label instanceof String)) {
                 return new StatementIteration();
             } else {
                 Source<Edge> edges = new Source<Edge>(
-                        context.graph.getEdges().iterator(),
+                        edgesWithLabel((String) label),
                         matchingLabels((String) label, object));
                 return new StatementIteration(edges);
             }
@@ -637,8 +962,8 @@ class PropertyGraphSailConnection implements SailConnection {
             if (null == v) {
                 return new StatementIteration();
             } else {
-                Iterator<Edge> edgeIterator = v.getEdges(Direction.IN).iterator();
-                Source<Edge> edges = new Source<Edge>(edgeIterator, heads);
+                Iterable<Edge> edgeIterable = v.getEdges(Direction.IN);
+                Source<Edge> edges = new Source<Edge>(edgeIterable, heads);
                 return new StatementIteration(edges);
             }
         } else if (predicate.equals(PropertyGraphSail.TAIL)) {
@@ -648,8 +973,8 @@ class PropertyGraphSailConnection implements SailConnection {
             if (null == v) {
                 return new StatementIteration();
             } else {
-                Iterator<Edge> edgeIterator = v.getEdges(Direction.OUT).iterator();
-                Source<Edge> edges = new Source<Edge>(edgeIterator, tails);
+                Iterable<Edge> edgeIterable = v.getEdges(Direction.OUT);
+                Source<Edge> edges = new Source<Edge>(edgeIterable, tails);
                 return new StatementIteration(edges);
             }
         } else if (isPropertyPredicate(predicate)) {
@@ -657,13 +982,12 @@ class PropertyGraphSailConnection implements SailConnection {
             if (null == value) {
                 return new StatementIteration();
             } else {
-                // TODO: lookup matching vertices and edges faster using indices
                 String key = keyFromPredicate(predicate);
                 Source<Edge> edges = new Source<Edge>(
-                        context.graph.getEdges().iterator(),
+                        edgesWithProperty(key, value),
                         edgePropertiesWithKeyAndValue(key, predicate, value, (Literal) object));
                 Source<Vertex> vertices = new Source<Vertex>(
-                        context.graph.getVertices().iterator(),
+                        verticesWithProperty(key, value),
                         vertexPropertiesWithKeyAndValue(key, predicate, value, (Literal) object));
                 return new StatementIteration(vertices, edges);
             }
@@ -674,33 +998,33 @@ class PropertyGraphSailConnection implements SailConnection {
 
     private CloseableIteration<Statement, SailException> getStatements_xPx(final URI predicate) throws SailException {
         if (predicate.equals(RDF.TYPE)) {
-            Source<Edge> edges = new Source<Edge>(context.graph.getEdges().iterator(), edgeTypes);
-            Source<Vertex> vertices = new Source<Vertex>(context.graph.getVertices().iterator(), vertexTypes);
+            Source<Edge> edges = new Source<Edge>(context.graph.getEdges(), edgeTypes);
+            Source<Vertex> vertices = new Source<Vertex>(context.graph.getVertices(), vertexTypes);
             return new StatementIteration(vertices, edges);
         } else if (predicate.equals(PropertyGraphSail.ID)) {
-            Source<Edge> edges = new Source<Edge>(context.graph.getEdges().iterator(), edgeIds);
-            Source<Vertex> vertices = new Source<Vertex>(context.graph.getVertices().iterator(), vertexIds);
+            Source<Edge> edges = new Source<Edge>(context.graph.getEdges(), edgeIds);
+            Source<Vertex> vertices = new Source<Vertex>(context.graph.getVertices(), vertexIds);
             return new StatementIteration(vertices, edges);
         } else if (predicate.equals(PropertyGraphSail.LABEL)) {
-            Iterator<Edge> edgeIterator = context.graph.getEdges().iterator();
-            Source<Edge> edges = new Source<Edge>(edgeIterator, labels);
+            Iterable<Edge> edgeIterable = context.graph.getEdges();
+            Source<Edge> edges = new Source<Edge>(edgeIterable, labels);
             return new StatementIteration(edges);
         } else if (predicate.equals(PropertyGraphSail.HEAD)) {
-            Iterator<Edge> edgeIterator = context.graph.getEdges().iterator();
-            Source<Edge> edges = new Source<Edge>(edgeIterator, heads);
+            Iterable<Edge> edgeIterable = context.graph.getEdges();
+            Source<Edge> edges = new Source<Edge>(edgeIterable, heads);
             return new StatementIteration(edges);
         } else if (predicate.equals(PropertyGraphSail.TAIL)) {
-            Iterator<Edge> edgeIterator = context.graph.getEdges().iterator();
-            Source<Edge> edges = new Source<Edge>(edgeIterator, tails);
+            Iterable<Edge> edgeIterable = context.graph.getEdges();
+            Source<Edge> edges = new Source<Edge>(edgeIterable, tails);
             return new StatementIteration(edges);
         } else if (isPropertyPredicate(predicate)) {
             // TODO: find elements faster using indices
             String key = keyFromPredicate(predicate);
             Source<Edge> edges = new Source<Edge>(
-                    context.graph.getEdges().iterator(),
+                    context.graph.getEdges(),
                     edgePropertiesWithKey(key, predicate));
             Source<Vertex> vertices = new Source<Vertex>(
-                    context.graph.getVertices().iterator(),
+                    context.graph.getVertices(),
                     vertexPropertiesWithKey(key, predicate));
             return new StatementIteration(vertices, edges);
         } else {
@@ -708,6 +1032,50 @@ class PropertyGraphSailConnection implements SailConnection {
         }
     }
 
+    Iterator<Vertex> allVertices() {
+        return context.graph.getVertices().iterator();
+    }
+
+    Iterator<Edge> allEdges() {
+        return context.graph.getEdges().iterator();
+    }
+
+    Iterator<Edge> edgesWithLabel(final String label) {
+        EdgeLabelIndex index = context.labelIndex;
+        return null == index
+                ? context.graph.getEdges().iterator()
+                : index.getEdges(label);
+    }
+
+    private Iterable<Vertex> verticesWithProperty(final String key,
+                                                  final Object value) {
+        // Note: the graph itself will use a key index, if one exists for this key
+        Index<Vertex> index = context.vertexIndices.get(key);
+        return null == index
+                ? context.graph.getVertices(key, value)
+                : index.get(key, value);
+    }
+
+    private Iterable<Edge> edgesWithProperty(final String key,
+                                             final Object value) {
+        Index<Edge> index = context.edgeIndices.get(key);
+        return null == index
+                ? context.graph.getEdges(key, value)
+                : index.get(key, value);
+    }
+
+    private Set<String> indexedKeys(final Class<? extends Element> elementClass) {
+        Set<String> keys = new HashSet<String>();
+        keys.addAll(Vertex.class.equals(elementClass)
+                ? context.vertexIndices.keySet()
+                : context.edgeIndices.keySet());
+        if (context.graph instanceof KeyIndexableGraph) {
+            keys.addAll(((KeyIndexableGraph) context.graph).getIndexedKeys(elementClass));
+        }
+
+        return keys;
+    }
+
     private boolean isPropertyPredicate(final URI predicate) {
         return predicate.stringValue().startsWith(PropertyGraphSail.PROPERTY_NS);
     }
@@ -717,43 +1085,122 @@ class PropertyGraphSailConnection implements SailConnection {
     }
 
     public long size(final Resource... contexts) throws SailException {
-        if (!matchesNullContext(contexts)) {
-            return 0;
+        checkOpen();
+
+        if (null == context.partitionKey) {
+            if (!matchesNullContext(contexts)) {
+                return 0;
+            }
+        } else if (contexts.length > 0) {
+            long count = 0;
+            CloseableIteration<? extends Statement, SailException> iter
+                    = getStatementsInContexts(null, null, null, contexts);
+            try {
+                while (iter.hasNext()) {
+                    iter.next();
+                    count++;
+                }
+            } finally {
+                iter.close();
+            }
+            return count;
         }
 
-        long count = 0;
+        return context.statistics.getStatementCount();
+    }
 
-        for (Edge e : context.graph.getEdges()) {
-            count += 5  // type, id, label, head, tail
-                    + e.getPropertyKeys().size();
+    /**
+     * Generates all statements about each of the given vertices and edges.
+     * This method may be called concurrently from multiple threads.
+     *
+     * @param elements vertices and edges of the graph
+     * @param results  a collection to which the statements are added
+     */
+    void generateStatements(final Collection<Element> elements,
+                            final Collection<Statement> results) {
+        StatementBuffer buffer = new StatementBuffer();
+        for (Element e : elements) {
+            buffer.setContext(contextOf(e));
+            if (e instanceof Vertex) {
+                allVertexStatements.generate((Vertex) e, buffer);
+            } else {
+                allEdgeStatements.generate((Edge) e, buffer);
+            }
+
+            for (int i = 0; i < buffer.size(); i++) {
+                results.add(buffer.get(i));
+            }
+            buffer.clear();
         }
+    }
+
+    public synchronized void commit() throws SailException {
+        checkOpen();
 
-        for (Vertex v : context.graph.getVertices()) {
-            count += 2 // type, id
-                    + v.getPropertyKeys().size();
+        if (!writes.isEmpty()) {
+            // the graph sees the writes of one connection at a time
+            synchronized (context.commitLock) {
+                writes.apply(context.commitBatchSize);
+            }
         }
+    }
 
-        return count;
+    public synchronized void rollback() throws SailException {
+        checkOpen();
+
+        writes.clear();
     }
 
-    public void commit() throws SailException {
-        // Do nothing.
+    public synchronized void addStatement(final Resource subject,
+                                          final URI predicate,
+                                          final Value object,
+                                          final Resource... contexts) throws SailException {
+        if (null != context.partitionKey && 1 == contexts.length && null != partitionOf(contexts[0])) {
+            // adding a statement to a partition places its subject in the partition
+            checkWritable();
+            writes.add(subject, predicate, object);
+            writes.add(subject, predicateForPropertyKey(context.partitionKey),
+                    context.valueFactory.createLiteral(partitionOf(contexts[0])));
+        } else {
+            checkWritable(contexts);
+            writes.add(subject, predicate, object);
+        }
     }
 
-    public void rollback() throws SailException {
-        // Do nothing.
+    public synchronized void removeStatements(final Resource subject,
+                                              final URI predicate,
+                                              final Value object,
+                                              final Resource... contexts) throws SailException {
+        if (null != context.partitionKey && contexts.length > 0) {
+            // only the matching statements of elements in the given partitions (or the default context) are removed
+            checkWritable();
+            writes.remove(subject, predicate, object, contexts);
+        } else {
+            checkWritable(contexts);
+            writes.remove(subject, predicate, object);
+        }
     }
 
-    public void addStatement(Resource resource, URI uri, Value value, Resource... resources) throws SailException {
-        // Do nothing.
+    public void clear(final Resource... contexts) throws SailException {
+        removeStatements(null, null, null, contexts);
     }
 
-    public void removeStatements(Resource resource, URI uri, Value value, Resource... resources) throws SailException {
-        // Do nothing.
+    private void checkOpen() {
+        if (!open) {
+            throw new IllegalStateException("Connection has been closed");
+        }
     }
 
-    public void clear(Resource... resources) throws SailException {
-        // Do nothing.
+    private void checkWritable(final Resource... contexts) throws SailException {
+        checkOpen();
+
+        if (!context.writable) {
+            throw new SailException("Sail is read-only");
+        }
+
+        if (!matchesNullContext(contexts)) {
+            throw new SailException("graph contexts are not supported");
+        }
     }
 
     public CloseableIteration<? extends Namespace, SailException> getNamespaces() throws SailException {
@@ -799,23 +1246,67 @@ class PropertyGraphSailConnection implements SailConnection {
         }
     }
 
-    private Vertex vertexForURI(final URI uri) {
-        String s = uri.stringValue();
+    Vertex vertexForURI(final URI uri) {
+        Element e = elementForURI(uri);
+        return e instanceof Vertex ? (Vertex) e : null;
+    }
 
-        return s.startsWith(PropertyGraphSail.VERTEX_NS)
-                ? context.graph.getVertex(idFromString(s.substring(PropertyGraphSail.VERTEX_NS.length())))
-                : null;
+    Edge edgeForURI(final URI uri) {
+        Element e = elementForURI(uri);
+        return e instanceof Edge ? (Edge) e : null;
     }
 
-    private Edge edgeForURI(final URI uri) {
+    private Element elementForURI(final URI uri) {
+        long removals = context.statistics.getRemovalCount();
+
+        // an element URI created under another id codec may identify a different element, or none
+        if (uri instanceof ElementURI && ((ElementURI) uri).getGraph() == context.graph
+                && ((ElementURI) uri).getCodec() == context.idCodec) {
+            ElementURI eu = (ElementURI) uri;
+            Element e = eu.getElement();
+
+            // the carried element is current unless an element may have been removed since the URI was created
+            if (removals >= 0 && removals == eu.getRemovalCount()) {
+                return e;
+            } else {
+                return e instanceof Vertex
+                        ? context.graph.getVertex(e.getId())
+                        : context.graph.getEdge(e.getId());
+            }
+        }
+
         String s = uri.stringValue();
+        ElementCache cache = context.elementCache;
+        if (null != cache) {
+            ElementURI cached = cache.getByURI(s);
+            if (null != cached) {
+                return cached.getElement();
+            }
+        }
 
-        return s.startsWith(PropertyGraphSail.EDGE_NS)
-                ? context.graph.getEdge(idFromString(s.substring(PropertyGraphSail.EDGE_NS.length())))
-                : null;
+        IdCodec codec = context.idCodec;
+        Element e;
+        String ns;
+        if (s.startsWith(PropertyGraphSail.VERTEX_NS)) {
+            ns = PropertyGraphSail.VERTEX_NS;
+            Object id = codec.decode(s.substring(ns.length()));
+            e = null == id ? null : context.graph.getVertex(id);
+        } else if (s.startsWith(PropertyGraphSail.EDGE_NS)) {
+            ns = PropertyGraphSail.EDGE_NS;
+            Object id = codec.decode(s.substring(ns.length()));
+            e = null == id ? null : context.graph.getEdge(id);
+        } else {
+            return null;
+        }
+
+        if (null != e && null != cache) {
+            cache.put(new ElementURI(context.graph, e, ns, codec, removals));
+        }
+
+        return e;
     }
 
-    private Object literalToObject(final Value v) {
+    Object literalToObject(final Value v) {
         if (v instanceof Literal) {
             Literal l = (Literal) v;
 
@@ -823,78 +1314,81 @@ class PropertyGraphSailConnection implements SailConnection {
             if (null == type) {
                 return l.getLabel();
             } else {
-                if (type.equals(XMLSchema.STRING)) {
-                    return l.stringValue();
-                } else if (type.equals(XMLSchema.LONG)) {
-                    return l.longValue();
-                } else if (type.equals(XMLSchema.INT)) {
-                    return l.intValue();
-                } else if (type.equals(XMLSchema.INTEGER)) {
-                    return l.integerValue();
-                } else if (type.equals(XMLSchema.BYTE)) {
-                    return l.byteValue();
-                } else if (type.equals(XMLSchema.BOOLEAN)) {
-                    return l.booleanValue();
-                } else if (type.equals(XMLSchema.SHORT)) {
-                    return l.shortValue();
-                } else if (type.equals(XMLSchema.FLOAT)) {
-                    return l.floatValue();
-                } else if (type.equals(XMLSchema.DOUBLE)) {
-                    return l.doubleValue();
-                } else {
-                    return null;
-                }
+                LiteralConverter c = literalConverters.get(type);
+                return null == c ? null : c.convert(l);
             }
         } else {
             return null;
         }
     }
 
-    private URI uriForVertex(final Vertex v) {
-        return context.valueFactory.createURI(PropertyGraphSail.VERTEX_NS + idToString(v.getId()));
+    URI uriForVertex(final Vertex v) {
+        ElementCache cache = context.elementCache;
+        if (null == cache) {
+            return new ElementURI(context.graph, v, PropertyGraphSail.VERTEX_NS, context.idCodec,
+                    context.statistics.getRemovalCount());
+        }
+
+        // a URI cached before a removal from the graph is replaced, so that its element need not be verified
+        long removals = context.statistics.getRemovalCount();
+        ElementURI uri = cache.getByVertex(v);
+        if (null == uri || removals != uri.getRemovalCount()) {
+            uri = new ElementURI(context.graph, v, PropertyGraphSail.VERTEX_NS, context.idCodec, removals);
+            cache.put(uri);
+        }
+        return uri;
     }
 
-    private URI uriForEdge(final Edge e) {
-        return context.valueFactory.createURI(PropertyGraphSail.EDGE_NS + idToString(e.getId()));
+    URI uriForEdge(final Edge e) {
+        ElementCache cache = context.elementCache;
+        if (null == cache) {
+            return new ElementURI(context.graph, e, PropertyGraphSail.EDGE_NS, context.idCodec,
+                    context.statistics.getRemovalCount());
+        }
+
+        long removals = context.statistics.getRemovalCount();
+        ElementURI uri = cache.getByEdge(e);
+        if (null == uri || removals != uri.getRemovalCount()) {
+            uri = new ElementURI(context.graph, e, PropertyGraphSail.EDGE_NS, context.idCodec, removals);
+            cache.put(uri);
+        }
+        return uri;
     }
 
-    private Object idFromString(final String s) {
-        return s;
+    Literal literalForLabel(final String label) {
+        return context.valueFactory.createLiteral(label);
     }
 
-    private String idToString(final Object id) {
-        return id.toString();
+    private static interface LiteralConverter {
+        Object convert(Literal l);
     }
 
     private static interface StatementGenerator<T> {
-        void generate(T source, Collection<Statement> results);
+        void generate(T source, StatementBuffer results);
     }
 
     private abstract class ElementGenerator<T> implements StatementGenerator<T> {
-        protected boolean doId = false;
-        protected boolean doType = false;
-        protected boolean doProperties = false;
-        protected String[] properties = null;
-
-        public void setDoId(boolean doId) {
-            this.doId = doId;
-        }
-
-        public void setDoType(boolean doType) {
-            this.doType = doType;
-        }
-
-        public void setDoProperties(boolean doProperties) {
-            this.doProperties = doProperties;
-        }
-
-        public void setProperties(String[] properties) {
-            this.properties = properties;
+        protected final boolean doId;
+        protected final boolean doType;
+        protected final boolean doProperties;
+        protected final String[] properties;
+
+        /**
+         * @param kinds      the kinds of statement to generate, e.g. <code>IDS | PROPERTIES</code>
+         * @param properties the keys of the properties to generate statements for, if any, otherwise all properties.
+         *                   Only the given properties are read from each element.
+         */
+        protected ElementGenerator(final int kinds,
+                                   final String... properties) {
+            doId = 0 != (kinds & IDS);
+            doType = 0 != (kinds & TYPES);
+            doProperties = 0 != (kinds & PROPERTIES);
+            this.properties = 0 == properties.length ? null : properties;
         }
 
         protected void generateCommon(final Element source,
                                       final URI uri,
-                                      final Collection<Statement> results) {
+                                      final StatementBuffer results) {
             if (doProperties) {
                 if (null != properties) {
                     generatePropertyStatements(source, uri, results, properties);
@@ -910,7 +1404,12 @@ class PropertyGraphSailConnection implements SailConnection {
     }
 
     private class VertexGenerator extends ElementGenerator<Vertex> {
-        public void generate(Vertex source, Collection<Statement> results) {
+        public VertexGenerator(final int kinds,
+                               final String... properties) {
+            super(kinds, properties);
+        }
+
+        public void generate(Vertex source, StatementBuffer results) {
             URI uri = uriForVertex(source);
 
             if (doType) {
@@ -922,23 +1421,20 @@ class PropertyGraphSailConnection implements SailConnection {
     }
 
     private class EdgeGenerator extends ElementGenerator<Edge> {
-        protected boolean doLabel;
-        protected boolean doHead;
-        protected boolean doTail;
+        protected final boolean doLabel;
+        protected final boolean doHead;
+        protected final boolean doTail;
 
-        public void setDoLabel(boolean doLabel) {
-            this.doLabel = doLabel;
-        }
+        public EdgeGenerator(final int kinds,
+                             final String... properties) {
+            super(kinds, properties);
 
-        public void setDoHead(boolean doHead) {
-            this.doHead = doHead;
+            doLabel = 0 != (kinds & LABELS);
+            doHead = 0 != (kinds & HEADS);
+            doTail = 0 != (kinds & TAILS);
         }
 
-        public void setDoTail(boolean doTail) {
-            this.doTail = doTail;
-        }
-
-        public void generate(Edge source, Collection<Statement> results) {
+        public void generate(Edge source, StatementBuffer results) {
             URI uri = uriForEdge(source);
 
             generateCommon(source, uri, results);
@@ -963,13 +1459,50 @@ class PropertyGraphSailConnection implements SailConnection {
         }
     }
 
+    /**
+     * @return a generator of only those statements about a vertex which have the given predicate,
+     *         or null if there are no such statements about vertices
+     */
+    private VertexGenerator vertexGeneratorFor(final URI predicate) {
+        if (predicate.equals(RDF.TYPE)) {
+            return vertexTypes;
+        } else if (predicate.equals(PropertyGraphSail.ID)) {
+            return vertexIds;
+        } else if (isPropertyPredicate(predicate)) {
+            return new VertexGenerator(PROPERTIES, keyFromPredicate(predicate));
+        } else {
+            return null;
+        }
+    }
+
+    /**
+     * @return a generator of only those statements about an edge which have the given predicate,
+     *         or null if there are no such statements about edges
+     */
+    private EdgeGenerator edgeGeneratorFor(final URI predicate) {
+        if (predicate.equals(RDF.TYPE)) {
+            return edgeTypes;
+        } else if (predicate.equals(PropertyGraphSail.ID)) {
+            return edgeIds;
+        } else if (predicate.equals(PropertyGraphSail.LABEL)) {
+            return labels;
+        } else if (predicate.equals(PropertyGraphSail.HEAD)) {
+            return heads;
+        } else if (predicate.equals(PropertyGraphSail.TAIL)) {
+            return tails;
+        } else if (isPropertyPredicate(predicate)) {
+            return new EdgeGenerator(PROPERTIES, keyFromPredicate(predicate));
+        } else {
+            return null;
+        }
+    }
+
     private StatementGenerator<Edge> matchingLabels(final String label,
                                                     final Value object) {
         return new StatementGenerator<Edge>() {
-            public void generate(Edge source, Collection<Statement> results) {
+            public void generate(Edge source, StatementBuffer results) {
                 if (source.getLabel().equals(label)) {
-                    Statement s = context.valueFactory.createStatement(uriForEdge(source), PropertyGraphSail.LABEL, object);
-                    results.add(s);
+                    results.add(uriForEdge(source), PropertyGraphSail.LABEL, object);
                 }
             }
         };
@@ -978,13 +1511,12 @@ class PropertyGraphSailConnection implements SailConnection {
     private StatementGenerator<Vertex> vertexPropertiesWithKey(final String key,
                                                                final URI pred) {
         return new StatementGenerator<Vertex>() {
-            public void generate(Vertex source, Collection<Statement> results) {
+            public void generate(Vertex source, StatementBuffer results) {
                 Object o = source.getProperty(key);
                 if (null != o) {
                     Literal object = toLiteral(o);
                     if (null != object) {
-                        Statement s = context.valueFactory.createStatement(uriForVertex(source), pred, object);
-                        results.add(s);
+                        results.add(uriForVertex(source), pred, object);
                     }
                 }
             }
@@ -994,13 +1526,12 @@ class PropertyGraphSailConnection implements SailConnection {
     private StatementGenerator<Edge> edgePropertiesWithKey(final String key,
                                                            final URI pred) {
         return new StatementGenerator<Edge>() {
-            public void generate(Edge source, Collection<Statement> results) {
+            public void generate(Edge source, StatementBuffer results) {
                 Object o = source.getProperty(key);
                 if (null != o) {
                     Literal object = toLiteral(o);
                     if (null != object) {
-                        Statement s = context.valueFactory.createStatement(uriForEdge(source), pred, object);
-                        results.add(s);
+                        results.add(uriForEdge(source), pred, object);
                     }
                 }
             }
@@ -1008,15 +1539,19 @@ class PropertyGraphSailConnection implements SailConnection {
     }
 
     private StatementGenerator<Vertex> vertexPropertiesWithValue(final Object value,
-                                                                 final Literal object) {
+                                                                 final Literal object,
+                                                                 final Set<String> excludedKeys) {
         return new StatementGenerator<Vertex>() {
-            public void generate(Vertex source, Collection<Statement> results) {
+            public void generate(Vertex source, StatementBuffer results) {
                 for (String key : source.getPropertyKeys()) {
+                    if (excludedKeys.contains(key)) {
+                        continue;
+                    }
+
                     Object v = source.getProperty(key);
                     if (null != v && v.equals(value)) {
                         URI predicate = predicateForPropertyKey(key);
-                        Statement s = context.valueFactory.createStatement(uriForVertex(source), predicate, object);
-                        results.add(s);
+                        results.add(uriForVertex(source), predicate, object);
                     }
                 }
             }
@@ -1024,15 +1559,19 @@ class PropertyGraphSailConnection implements SailConnection {
     }
 
     private StatementGenerator<Edge> edgePropertiesWithValue(final Object value,
-                                                             final Literal object) {
+                                                             final Literal object,
+                                                             final Set<String> excludedKeys) {
         return new StatementGenerator<Edge>() {
-            public void generate(Edge source, Collection<Statement> results) {
+            public void generate(Edge source, StatementBuffer results) {
                 for (String key : source.getPropertyKeys()) {
+                    if (excludedKeys.contains(key)) {
+                        continue;
+                    }
+
                     Object v = source.getProperty(key);
                     if (null != v && v.equals(value)) {
                         URI predicate = predicateForPropertyKey(key);
-                        Statement s = context.valueFactory.createStatement(uriForEdge(source), predicate, object);
-                        results.add(s);
+                        results.add(uriForEdge(source), predicate, object);
                     }
                 }
             }
@@ -1044,11 +1583,10 @@ class PropertyGraphSailConnection implements SailConnection {
                                                                        final Object value,
                                                                        final Literal object) {
         return new StatementGenerator<Vertex>() {
-            public void generate(Vertex source, Collection<Statement> results) {
+            public void generate(Vertex source, StatementBuffer results) {
                 Object o = source.getProperty(key);
                 if (null != o && o.equals(value)) {
-                    Statement s = context.valueFactory.createStatement(uriForVertex(source), pred, object);
-                    results.add(s);
+                    results.add(uriForVertex(source), pred, object);
                 }
             }
         };
@@ -1059,54 +1597,43 @@ class PropertyGraphSailConnection implements SailConnection {
                                                                    final Object value,
                                                                    final Literal object) {
         return new StatementGenerator<Edge>() {
-            public void generate(Edge source, Collection<Statement> results) {
+            public void generate(Edge source, StatementBuffer results) {
                 Object o = source.getProperty(key);
                 if (null != o && o.equals(value)) {
-                    Statement s = context.valueFactory.createStatement(uriForEdge(source), pred, object);
-                    results.add(s);
+                    results.add(uriForEdge(source), pred, object);
                 }
             }
         };
     }
 
     private URI predicateForPropertyKey(final String key) {
-        return context.valueFactory.createURI(PropertyGraphSail.PROPERTY_NS + key);
+        return context.valueFactory.createPropertyURI(key);
     }
 
     private void generateVertexTypeStatement(final URI uri,
-                                             final Collection<Statement> results) {
-        Statement s = context.valueFactory.createStatement(uri, RDF.TYPE, PropertyGraphSail.VERTEX);
-        results.add(s);
+                                             final StatementBuffer results) {
+        results.add(uri, RDF.TYPE, PropertyGraphSail.VERTEX);
     }
 
     private void generateEdgeTypeStatement(final URI uri,
-                                           final Collection<Statement> results) {
-        Statement s = context.valueFactory.createStatement(uri, RDF.TYPE, PropertyGraphSail.EDGE);
-        results.add(s);
+                                           final StatementBuffer results) {
+        results.add(uri, RDF.TYPE, PropertyGraphSail.EDGE);
     }
 
     private void generatePropertyStatements(final Element e,
                                             final URI uri,
-                                            final Collection<Statement> results,
+                                            final StatementBuffer results,
                                             final String... keys) {
         if (0 == keys.length) {
             for (String k : e.getPropertyKeys()) {
                 Object v = e.getProperty(k);
-                Statement s = context.valueFactory.createStatement(
-                        uri,
-                        context.valueFactory.createURI(PropertyGraphSail.PROPERTY_NS + k),
-                        toLiteral(v));
-                results.add(s);
+                results.add(uri, predicateForPropertyKey(k), toLiteral(v));
             }
         } else {
             for (String k : keys) {
                 Object v = e.getProperty(k);
                 if (null != v) {
-                    Statement s = context.valueFactory.createStatement(
-                            uri,
-                            context.valueFactory.createURI(PropertyGraphSail.PROPERTY_NS + k),
-                            toLiteral(v));
-                    results.add(s);
+                    results.add(uri, predicateForPropertyKey(k), toLiteral(v));
                 }
             }
         }
@@ -1114,45 +1641,29 @@ class PropertyGraphSailConnection implements SailConnection {
 
     private void generateIdStatement(final Element e,
                                      final URI uri,
-                                     final Collection<Statement> results) {
-        Statement s = context.valueFactory.createStatement(
-                uri,
-                PropertyGraphSail.ID,
-                toLiteral(e.getId()));
-        results.add(s);
+                                     final StatementBuffer results) {
+        results.add(uri, PropertyGraphSail.ID, toLiteral(e.getId()));
     }
 
     private void generateLabelStatement(final Edge e,
                                         final URI uri,
-                                        final Collection<Statement> results) {
-        Statement s = context.valueFactory.createStatement(
-                uri,
-                PropertyGraphSail.LABEL,
-                context.valueFactory.createLiteral(e.getLabel()));
-        results.add(s);
+                                        final StatementBuffer results) {
+        results.add(uri, PropertyGraphSail.LABEL, literalForLabel(e.getLabel()));
     }
 
     private void generateHeadStatement(final URI edgeUri,
                                        final URI headUri,
-                                       final Collection<Statement> results) {
-        Statement s = context.valueFactory.createStatement(
-                edgeUri,
-                PropertyGraphSail.HEAD,
-                headUri);
-        results.add(s);
+                                       final StatementBuffer results) {
+        results.add(edgeUri, PropertyGraphSail.HEAD, headUri);
     }
 
     private void generateTailStatement(final URI edgeUri,
                                        final URI tailUri,
-                                       final Collection<Statement> results) {
-        Statement s = context.valueFactory.createStatement(
-                edgeUri,
-                PropertyGraphSail.TAIL,
-                tailUri);
-        results.add(s);
+                                       final StatementBuffer results) {
+        results.add(edgeUri, PropertyGraphSail.TAIL, tailUri);
     }
 
-    private Literal toLiteral(final Object o) {
+    Literal toLiteral(final Object o) {
         if (o instanceof String) {
             return context.valueFactory.createLiteral((String) o);
         } else if (o instanceof Integer) {
@@ -1176,36 +1687,142 @@ class PropertyGraphSailConnection implements SailConnection {
     }
 
     private class Source<T> {
-        private final Iterator<T> iterator;
+        private final Iterable<T> iterable;
         private final StatementGenerator<T> generator;
+        private final MeteredLookup lookup;
+        private Iterator<T> iterator;
 
         public Source(final Iterator<T> iterator,
                       final StatementGenerator<T> generator) {
+            this.iterable = null;
             this.iterator = iterator;
             this.generator = generator;
+            this.lookup = null == currentLookup ? null : currentLookup.get();
+        }
+
+        // the iterator is not created until it is needed
+        public Source(final Iterable<T> iterable,
+                      final StatementGenerator<T> generator) {
+            this.iterable = iterable;
+            this.generator = generator;
+            this.lookup = null == currentLookup ? null : currentLookup.get();
         }
 
         public boolean hasNext() {
+            if (null == iterator) {
+                iterator = iterable.iterator();
+            }
+
             return iterator.hasNext();
         }
 
-        public void generateNext(final Collection<Statement> results) {
-            generator.generate(iterator.next(), results);
+        public void generateNext(final StatementBuffer results) {
+            T t = iterator.next();
+            if (null != lookup) {
+                lookup.elements.incrementAndGet();
+            }
+            results.setContext(null == context.partitionKey ? null : contextOf((Element) t));
+            generator.generate(t, results);
+        }
+
+        /**
+         * @return whether this source generates statements from at most one element, which has already been fetched
+         */
+        public boolean isSingleItem() {
+            return iterator instanceof SingleItemIterator;
+        }
+
+        // releases any resources held by the base graph, e.g. index hits
+        public void close() {
+            if (iterable instanceof CloseableIterable) {
+                ((CloseableIterable) iterable).close();
+            }
+        }
+    }
+
+    /**
+     * A reusable buffer for the statements generated from a single element.
+     * Each StatementIteration holds one of these, so that no collection needs to be created per element.
+     */
+    private static class StatementBuffer {
+        private Statement[] statements = new Statement[16];
+        private int size = 0;
+        private Resource context;
+
+        /**
+         * @param context the context of subsequently added statements, or null for the default context
+         */
+        public void setContext(final Resource context) {
+            this.context = context;
+        }
+
+        /**
+         * Adds a statement in the current context
+         */
+        public void add(final Resource subject,
+                        final URI predicate,
+                        final Value object) {
+            if (size == statements.length) {
+                statements = Arrays.copyOf(statements, 2 * size);
+            }
+
+            statements[size++] = null == context
+                    ? new StatementImpl(subject, predicate, object)
+                    : new ContextStatementImpl(subject, predicate, object, context);
+        }
+
+        public Statement get(final int i) {
+            return statements[i];
+        }
+
+        public int size() {
+            return size;
+        }
+
+        public boolean isEmpty() {
+            return 0 == size;
+        }
+
+        public void clear() {
+            // release references to the previous element's statements
+            Arrays.fill(statements, 0, size, null);
+            size = 0;
         }
     }
 
+    /**
+     * An iteration over the statements generated from one or more sources.
+     * Elements are read from the base graph only as statements are consumed,
+     * and closing the iteration (possibly from another thread) stops it before the next element is read.
+     */
     private class StatementIteration implements CloseableIteration<Statement, SailException> {
         private final Source[] sources;
         private int i = -1;
-        private Collection<Statement> buffer = new LinkedList<Statement>();
-        private Iterator<Statement> iter;
+        private final StatementBuffer buffer = new StatementBuffer();
+        private int pos = 0;
         private Source currentSource;
+        private volatile boolean closed = false;
 
         public StatementIteration(final Source... sources) {
             this.sources = sources;
 
-            advanceSource();
-            advanceBuffer();
+            // an empty iteration holds no resources
+            if (0 == sources.length) {
+                closed = true;
+            } else if (!isSingleItem(sources)) {
+                registerIteration(this);
+            }
+        }
+
+        // a lookup of individual elements can not block, so there is no need to stop it along with the connection
+        private boolean isSingleItem(final Source[] sources) {
+            for (Source s : sources) {
+                if (!s.isSingleItem()) {
+                    return false;
+                }
+            }
+
+            return true;
         }
 
         private boolean advanceSource() {
@@ -1220,39 +1837,140 @@ class PropertyGraphSailConnection implements SailConnection {
 
         private void advanceBuffer() {
             buffer.clear();
+            pos = 0;
 
             do {
-                if (null != currentSource && currentSource.hasNext()) {
+                if (closed) {
+                    return;
+                } else if (null != currentSource && currentSource.hasNext()) {
                     currentSource.generateNext(buffer);
-                    iter = buffer.iterator();
                 } else if (!advanceSource()) {
-                    iter = null;
+                    close();
                     return;
                 }
             } while (buffer.isEmpty());
         }
 
-        public void close() throws SailException {
-            // Do nothing.
+        public void close() {
+            synchronized (this) {
+                if (closed) {
+                    return;
+                }
+                closed = true;
+            }
+
+            for (Source s : sources) {
+                s.close();
+            }
+            unregisterIteration(this);
         }
 
         public boolean hasNext() throws SailException {
-            return null != iter;
+            if (closed) {
+                return false;
+            }
+
+            if (pos >= buffer.size()) {
+                advanceBuffer();
+            }
+
+            return pos < buffer.size();
         }
 
         public Statement next() throws SailException {
-            Statement s = iter.next();
+            if (!hasNext()) {
+                throw new NoSuchElementException();
+            }
 
-            if (!iter.hasNext()) {
-                advanceBuffer();
+            return buffer.get(pos++);
+        }
+
+        public void remove() throws SailException {
+            throw new UnsupportedOperationException();
+        }
+    }
+
+    // the counters of a single triple pattern lookup.
+    // A lookup may be started in one thread and iterated in another (e.g. by the parallel exporter)
+    private static class MeteredLookup {
+        private final int shape;
+        private final AtomicLong elements = new AtomicLong();
+        private final AtomicLong statements = new AtomicLong();
+        private final AtomicLong nanos = new AtomicLong();
+
+        public MeteredLookup(final int shape) {
+            this.shape = shape;
+        }
+    }
+
+    /**
+     * A statement iteration which counts the statements it produces and the time spent producing them,
+     * and which records its lookup with the connection and Sail metrics, and with any listener, when closed or exhausted.
+     * An iteration which is still open when its connection is closed is closed, and recorded, along with the connection.
+     */
+    private class MeteredIteration implements CloseableIteration<Statement, SailException> {
+        private final CloseableIteration<? extends Statement, SailException> wrapped;
+        private final MeteredLookup lookup;
+        private boolean closed = false;
+
+        public MeteredIteration(final CloseableIteration<? extends Statement, SailException> wrapped,
+                                final MeteredLookup lookup) {
+            this.wrapped = wrapped;
+            this.lookup = lookup;
+            registerIteration(this);
+        }
+
+        public boolean hasNext() throws SailException {
+            if (closed) {
+                return false;
             }
 
+            long start = System.nanoTime();
+            boolean b = wrapped.hasNext();
+            lookup.nanos.addAndGet(System.nanoTime() - start);
+
+            if (!b) {
+                close();
+            }
+            return b;
+        }
+
+        public Statement next() throws SailException {
+            long start = System.nanoTime();
+            Statement s = wrapped.next();
+            lookup.nanos.addAndGet(System.nanoTime() - start);
+            lookup.statements.incrementAndGet();
             return s;
         }
 
         public void remove() throws SailException {
             throw new UnsupportedOperationException();
         }
+
+        public void close() throws SailException {
+            synchronized (this) {
+                if (closed) {
+                    return;
+                }
+                closed = true;
+            }
+
+            try {
+                wrapped.close();
+            } finally {
+                unregisterIteration(this);
+
+                long elements = lookup.elements.get();
+                long statements = lookup.statements.get();
+                long nanos = lookup.nanos.get();
+                metrics.record(lookup.shape, elements, statements, nanos);
+                context.metrics.record(lookup.shape, elements, statements, nanos);
+                PatternMetricsListener listener = context.metricsListener;
+                if (null != listener) {
+                    listener.patternEvaluated(id, PatternMetrics.shapeName(lookup.shape), elements, statements, nanos);
+                }
+            }
+        }
     }
 
     private class SimpleCloseableIteration<T, E extends Exception> implements CloseableIteration<T, E> {
@@ -0,0 +1,584 @@
+package com.tinkerpop.tinkubator.pgsail;
+
+import com.tinkerpop.blueprints.Edge;
+import com.tinkerpop.blueprints.Element;
+import com.tinkerpop.blueprints.Graph;
+import com.tinkerpop.blueprints.Vertex;
+import com.tinkerpop.blueprints.util.wrappers.event.EventGraph;
+import com.tinkerpop.blueprints.util.wrappers.event.listener.GraphChangedListener;
+
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.Map;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * Summary statistics of a graph: the number of vertices and edges, the number of edges with each label,
+ * and the number of vertices and edges with each property key.
+ * When first needed, statistics are estimated from a bounded sample of vertices and edges,
+ * while a full pass over the graph gathers exact statistics on a background thread.
+ * Statistics are gathered again, also in the background, when they are older than a configurable maximum age
+ * or have been invalidated; until then, the previous statistics remain in use,
+ * so that no query waits for a pass over the graph.
+ * If the graph is an <code>EventGraph</code>, statistics are known to be current until the graph changes,
+ * and are not gathered again, regardless of age, until it does.
+ * <p/>
+ * The statement count is kept apart from the other statistics, and is gathered with a cheaper pass
+ * which builds no histograms.
+ * If the graph is an <code>EventGraph</code>, the count is kept up to date by change events,
+ * so that it is read in constant time.
+ * Blueprints events do not tell whether a new property value replaces an old one,
+ * nor which edges are removed along with a vertex, so after such changes the count is an estimate.
+ * An estimated count, or any count of a graph which is not an <code>EventGraph</code>,
+ * is counted again in the background once it is older than its maximum age, and is used until then.
+ * Only the first count, and counts with a maximum age of zero, are made on the calling thread.
+ *
+ * @author Joshua Shinavier (http://fortytwo.net)
+ */
+class PropertyGraphStatistics implements GraphChangedListener {
+    private static final Logger LOGGER = Logger.getLogger(PropertyGraphStatistics.class.getName());
+
+    /**
+     * By default, statistics used for query optimization are gathered at most once every ten minutes
+     */
+    public static final long DEFAULT_MAX_AGE = 10 * 60 * 1000;
+
+    /**
+     * By default, an estimated or unmonitored statement count is at most ten seconds old
+     */
+    public static final long DEFAULT_SIZE_MAX_AGE = 10 * 1000;
+
+    /**
+     * By default, the first statistics of a graph are estimated from at most ten thousand vertices
+     * and ten thousand edges
+     */
+    public static final int DEFAULT_SAMPLE_SIZE = 10000;
+
+    private final Graph graph;
+    private final boolean listening;
+    private final int sampleSize;
+
+    private volatile long maxAge = DEFAULT_MAX_AGE;
+    private volatile long sizeMaxAge = DEFAULT_SIZE_MAX_AGE;
+    private volatile Snapshot snapshot;
+    private volatile Counts counts;
+
+    // incremented on each change to the graph, if the graph is an EventGraph
+    private final AtomicLong version = new AtomicLong(0);
+    // incremented on each removal of a vertex or edge, if the graph is an EventGraph
+    private final AtomicLong removals = new AtomicLong(0);
+    // incremented each time the statistics are invalidated
+    private final AtomicLong invalidations = new AtomicLong(0);
+
+    private final AtomicBoolean refreshing = new AtomicBoolean(false);
+    private final AtomicBoolean recounting = new AtomicBoolean(false);
+    private final ExecutorService refresher = Executors.newSingleThreadExecutor(new ThreadFactory() {
+        public Thread newThread(final Runnable r) {
+            Thread t = new Thread(r, "property graph statistics");
+            t.setDaemon(true);
+            return t;
+        }
+    });
+
+    public PropertyGraphStatistics(final Graph graph) {
+        this(graph, DEFAULT_SAMPLE_SIZE);
+    }
+
+    /**
+     * @param graph      the graph to describe
+     * @param sampleSize the maximum number of vertices, and of edges, from which the first statistics are estimated
+     */
+    public PropertyGraphStatistics(final Graph graph,
+                                   final int sampleSize) {
+        this.graph = graph;
+        this.sampleSize = sampleSize;
+
+        if (graph instanceof EventGraph) {
+            ((EventGraph) graph).addListener(this);
+            listening = true;
+        } else {
+            listening = false;
+        }
+    }
+
+    /**
+     * @param maxAge the maximum age, in milliseconds, of the statistics used for query optimization.
+     *               A negative value means that statistics, once gathered, are never refreshed automatically.
+     */
+    public void setMaxAge(final long maxAge) {
+        this.maxAge = maxAge;
+    }
+
+    /**
+     * @param sizeMaxAge the maximum age, in milliseconds, of the statistics used to count statements.
+     *                   A negative value means that statistics, once gathered, are never refreshed automatically.
+     */
+    public void setSizeMaxAge(final long sizeMaxAge) {
+        this.sizeMaxAge = sizeMaxAge;
+    }
+
+    /**
+     * Marks the current statistics as out of date.
+     * Both the statement count and the other statistics are gathered again in the background when next needed.
+     */
+    public void invalidate() {
+        invalidations.incrementAndGet();
+    }
+
+    /**
+     * Stops listening for changes to the graph, and refreshing statistics in the background
+     */
+    public void close() {
+        refresher.shutdown();
+
+        if (listening) {
+            ((EventGraph) graph).removeListener(this);
+        }
+    }
+
+    /**
+     * @return statistics of the graph for the purpose of query optimization.
+     *         If there are none yet, they are estimated from a sample of the graph.
+     *         If they are estimated or out of date, they are gathered anew in the background,
+     *         and the current statistics are returned in the meantime.
+     */
+    public Snapshot getSnapshot() {
+        Snapshot s = snapshot;
+        if (null == s) {
+            synchronized (this) {
+                s = snapshot;
+                if (null == s) {
+                    s = new Snapshot(graph, version.get(), invalidations.get(), sampleSize);
+                    if (!s.isComplete()) {
+                        Counts c = counts;
+                        if (null != c && !isExpired(c)) {
+                            s.scale(c.vertices.get(), c.edges.get());
+                        }
+                    }
+                    snapshot = s;
+                }
+            }
+        }
+
+        if (!s.isComplete() || isExpired(s, maxAge)) {
+            refreshInBackground();
+        }
+
+        return s;
+    }
+
+    /**
+     * @return the number of statements in the RDF view of the graph.
+     *         The first count, and any count with a maximum age of zero, is made on the calling thread;
+     *         otherwise, a count which is out of date is returned while statements are counted anew in the background.
+     */
+    public long getStatementCount() {
+        Counts c = counts;
+        if (null == c || (0 == sizeMaxAge && isExpired(c))) {
+            synchronized (this) {
+                c = counts;
+                if (null == c || (0 == sizeMaxAge && isExpired(c))) {
+                    c = count();
+                    counts = c;
+                }
+            }
+        } else if (isExpired(c)) {
+            recountInBackground();
+        }
+
+        return c.getStatementCount();
+    }
+
+    /**
+     * @return the number of vertices and edges removed from the graph since these statistics were created,
+     *         or -1 if the graph is not an <code>EventGraph</code>, so that removals are not observed
+     */
+    public long getRemovalCount() {
+        return listening ? removals.get() : -1;
+    }
+
+    private Counts count() {
+        long v = version.get();
+        Counts c = new Counts(graph, invalidations.get());
+
+        // changes made during the pass may or may not have been counted
+        if (listening && version.get() != v) {
+            c.estimate();
+        }
+
+        return c;
+    }
+
+    private void refreshInBackground() {
+        runInBackground(refreshing, new Runnable() {
+            public void run() {
+                snapshot = new Snapshot(graph, version.get(), invalidations.get(), -1);
+            }
+        });
+    }
+
+    private void recountInBackground() {
+        runInBackground(recounting, new Runnable() {
+            public void run() {
+                counts = count();
+            }
+        });
+    }
+
+    // runs a task unless the same task is already pending
+    private void runInBackground(final AtomicBoolean pending,
+                                 final Runnable task) {
+        if (!pending.compareAndSet(false, true)) {
+            return;
+        }
+
+        try {
+            refresher.execute(new Runnable() {
+                public void run() {
+                    try {
+                        task.run();
+                    } catch (RuntimeException e) {
+                        // e.g. a ConcurrentModificationException from a graph which is not thread-safe
+                        LOGGER.log(Level.WARNING, "failed to gather graph statistics", e);
+                    } finally {
+                        pending.set(false);
+                    }
+                }
+            });
+        } catch (RejectedExecutionException e) {
+            // the statistics have been closed
+            pending.set(false);
+        }
+    }
+
+    private boolean isExpired(final Snapshot s,
+                              final long maxAge) {
+        if (s.invalidation != invalidations.get()) {
+            return true;
+        }
+
+        if (listening && s.version == version.get()) {
+            return false;
+        }
+
+        return maxAge >= 0 && System.currentTimeMillis() - s.timestamp >= maxAge;
+    }
+
+    // a count which is exact and kept current by events never expires, unless invalidated
+    private boolean isExpired(final Counts c) {
+        if (c.invalidation != invalidations.get()) {
+            return true;
+        }
+
+        long since = c.getEstimatedSince();
+        return (!listening || 0 != since)
+                && sizeMaxAge >= 0 && System.currentTimeMillis() - (0 == since ? c.timestamp : since) >= sizeMaxAge;
+    }
+
+    private void changed() {
+        version.incrementAndGet();
+    }
+
+    public void vertexAdded(final Vertex vertex) {
+        changed();
+
+        Counts c = counts;
+        if (null != c) {
+            c.vertices.incrementAndGet();
+        }
+    }
+
+    public void vertexPropertyChanged(final Vertex vertex, final String key, final Object setValue) {
+        changed();
+        propertyChanged();
+    }
+
+    public void vertexPropertyRemoved(final Vertex vertex, final String key, final Object removedValue) {
+        changed();
+        propertyRemoved(removedValue);
+    }
+
+    public void vertexRemoved(final Vertex vertex) {
+        changed();
+        removals.incrementAndGet();
+
+        Counts c = counts;
+        if (null != c) {
+            c.vertices.decrementAndGet();
+            elementRemoved(c, vertex);
+            // any edges of the vertex have been removed without events
+            c.estimate();
+        }
+    }
+
+    public void edgeAdded(final Edge edge) {
+        changed();
+
+        Counts c = counts;
+        if (null != c) {
+            c.edges.incrementAndGet();
+        }
+    }
+
+    public void edgePropertyChanged(final Edge edge, final String key, final Object setValue) {
+        changed();
+        propertyChanged();
+    }
+
+    public void edgePropertyRemoved(final Edge edge, final String key, final Object removedValue) {
+        changed();
+        propertyRemoved(removedValue);
+    }
+
+    public void edgeRemoved(final Edge edge) {
+        changed();
+        removals.incrementAndGet();
+
+        Counts c = counts;
+        if (null != c) {
+            c.edges.decrementAndGet();
+            elementRemoved(c, edge);
+        }
+    }
+
+    // the property may or may not be new; it is counted as new
+    private void propertyChanged() {
+        Counts c = counts;
+        if (null != c) {
+            c.properties.incrementAndGet();
+            c.estimate();
+        }
+    }
+
+    private void propertyRemoved(final Object removedValue) {
+        Counts c = counts;
+        if (null != c && null != removedValue) {
+            c.properties.decrementAndGet();
+        }
+    }
+
+    private void elementRemoved(final Counts c,
+                                final Element e) {
+        // the properties of a removed element are still readable in some graphs (e.g. TinkerGraph), but not all
+        try {
+            c.properties.addAndGet(-e.getPropertyKeys().size());
+        } catch (RuntimeException ex) {
+            c.estimate();
+        }
+    }
+
+    /**
+     * The number of vertices, edges and properties of a graph, which may be adjusted as the graph changes
+     */
+    private static class Counts {
+        private final long timestamp;
+        private final long invalidation;
+        private final AtomicLong vertices = new AtomicLong();
+        private final AtomicLong edges = new AtomicLong();
+        private final AtomicLong properties = new AtomicLong();
+        // the time at which the counts became an estimate, or 0 if they are exact
+        private final AtomicLong estimatedSince = new AtomicLong();
+
+        private Counts(final Graph graph,
+                       final long invalidation) {
+            this.invalidation = invalidation;
+
+            long v = 0;
+            long e = 0;
+            long p = 0;
+
+            for (Vertex vertex : graph.getVertices()) {
+                v++;
+                p += vertex.getPropertyKeys().size();
+            }
+
+            for (Edge edge : graph.getEdges()) {
+                e++;
+                p += edge.getPropertyKeys().size();
+            }
+
+            vertices.set(v);
+            edges.set(e);
+            properties.set(p);
+            timestamp = System.currentTimeMillis();
+        }
+
+        public long getStatementCount() {
+            return 5 * edges.get() + 2 * vertices.get() + properties.get();
+        }
+
+        public long getEstimatedSince() {
+            return estimatedSince.get();
+        }
+
+        public void estimate() {
+            estimatedSince.compareAndSet(0, System.currentTimeMillis());
+        }
+    }
+
+    public static class Snapshot {
+        private final long timestamp;
+        private final long version;
+        private final long invalidation;
+        private final boolean complete;
+        private long vertexCount;
+        private long edgeCount;
+        private long propertyCount;
+        private final Map<String, Long> labelCounts = new HashMap<String, Long>();
+        private final Map<String, Long> vertexKeyCounts = new HashMap<String, Long>();
+        private final Map<String, Long> edgeKeyCounts = new HashMap<String, Long>();
+
+        /**
+         * @param sampleSize the maximum number of vertices, and of edges, to visit, or -1 to visit all of them
+         */
+        private Snapshot(final Graph graph,
+                         final long version,
+                         final long invalidation,
+                         final int sampleSize) {
+            this.version = version;
+            this.invalidation = invalidation;
+
+            Iterator<Vertex> vertices = graph.getVertices().iterator();
+            while (vertices.hasNext() && vertexCount != sampleSize) {
+                vertexCount++;
+                countKeys(vertices.next(), vertexKeyCounts);
+            }
+
+            Iterator<Edge> edges = graph.getEdges().iterator();
+            while (edges.hasNext() && edgeCount != sampleSize) {
+                Edge e = edges.next();
+                edgeCount++;
+                increment(labelCounts, e.getLabel());
+                countKeys(e, edgeKeyCounts);
+            }
+
+            complete = !vertices.hasNext() && !edges.hasNext();
+            propertyCount = sum(vertexKeyCounts) + sum(edgeKeyCounts);
+            timestamp = System.currentTimeMillis();
+        }
+
+        // extrapolates the statistics of a sample to the given numbers of vertices and edges
+        private void scale(final long vertices,
+                           final long edges) {
+            double vertexFactor = 0 == vertexCount ? 0 : (double) vertices / vertexCount;
+            double edgeFactor = 0 == edgeCount ? 0 : (double) edges / edgeCount;
+
+            scale(vertexKeyCounts, vertexFactor);
+            scale(labelCounts, edgeFactor);
+            scale(edgeKeyCounts, edgeFactor);
+            vertexCount = vertices;
+            edgeCount = edges;
+            propertyCount = sum(vertexKeyCounts) + sum(edgeKeyCounts);
+        }
+
+        public long getTimestamp() {
+            return timestamp;
+        }
+
+        /**
+         * @return whether these statistics cover the whole graph, rather than a sample of it
+         */
+        public boolean isComplete() {
+            return complete;
+        }
+
+        public long getVertexCount() {
+            return vertexCount;
+        }
+
+        public long getEdgeCount() {
+            return edgeCount;
+        }
+
+        /**
+         * @return the number of statements in the RDF view of the graph:
+         *         a type, id, label, head and tail statement for each edge,
+         *         a type and id statement for each vertex, and a statement for each property
+         */
+        public long getStatementCount() {
+            return 5 * edgeCount + 2 * vertexCount + propertyCount;
+        }
+
+        /**
+         * @return the total number of vertex and edge properties
+         */
+        public long getPropertyCount() {
+            return propertyCount;
+        }
+
+        /**
+         * @return the number of edges with the given label
+         */
+        public long getLabelCount(final String label) {
+            return count(labelCounts, label);
+        }
+
+        /**
+         * @return the number of vertices with a value for the given property key
+         */
+        public long getVertexKeyCount(final String key) {
+            return count(vertexKeyCounts, key);
+        }
+
+        /**
+         * @return the number of edges with a value for the given property key
+         */
+        public long getEdgeKeyCount(final String key) {
+            return count(edgeKeyCounts, key);
+        }
+
+        public Map<String, Long> getLabelCounts() {
+            return Collections.unmodifiableMap(labelCounts);
+        }
+
+        public Map<String, Long> getVertexKeyCounts() {
+            return Collections.unmodifiableMap(vertexKeyCounts);
+        }
+
+        public Map<String, Long> getEdgeKeyCounts() {
+            return Collections.unmodifiableMap(edgeKeyCounts);
+        }
+
+        private void countKeys(final Element e,
+                               final Map<String, Long> counts) {
+            for (String key : e.getPropertyKeys()) {
+                increment(counts, key);
+            }
+        }
+
+        private static void increment(final Map<String, Long> counts,
+                                      final String key) {
+            Long c = counts.get(key);
+            counts.put(key, null == c ? 1 : c + 1);
+        }
+
+        private static void scale(final Map<String, Long> counts,
+                                  final double factor) {
+            for (Map.Entry<String, Long> e : counts.entrySet()) {
+                e.setValue(Math.round(e.getValue() * factor));
+            }
+        }
+
+        private static long sum(final Map<String, Long> counts) {
+            long sum = 0;
+            for (Long c : counts.values()) {
+                sum += c;
+            }
+            return sum;
+        }
+
+        private static long count(final Map<String, Long> counts,
+                                  final String key) {
+            Long c = counts.get(key);
+            return null == c ? 0 : c;
+        }
+    }
+}
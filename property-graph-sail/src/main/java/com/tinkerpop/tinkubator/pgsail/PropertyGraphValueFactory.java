@@ -1,6 +1,6 @@
 package com.tinkerpop.tinkubator.pgsail;
 
-import com.tinkerpop.blueprints.Graph;
+import com.tinkerpop.blueprints.Element;
 import org.openrdf.model.BNode;
 import org.openrdf.model.Literal;
 import org.openrdf.model.Resource;
@@ -11,22 +11,71 @@ import org.openrdf.model.ValueFactory;
 import org.openrdf.model.impl.ValueFactoryImpl;
 
 import javax.xml.datatype.XMLGregorianCalendar;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicReferenceArray;
 
 /**
+ * A value factory which reuses the values it creates most often.
+ * Property predicates are interned by property key,
+ * and literals for booleans, small integers and short strings are kept in a bounded cache,
+ * so that a scan over many elements with the same keys and values creates few new objects.
+ * The URIs of existing vertices and edges are created as element URIs,
+ * so that the elements of URIs in parsed queries and data need not be looked up again.
+ * A literal is admitted to the cache only when its value is seen a second time,
+ * so that a stream of distinct values (e.g. names or ids) does not evict the values which recur.
+ *
  * @author Joshua Shinavier (http://fortytwo.net)
  */
 class PropertyGraphValueFactory implements ValueFactory {
+    // beyond this many distinct property keys, property predicates are no longer interned
+    private static final int MAX_PROPERTY_URIS = 10000;
+
+    private static final int LITERAL_CACHE_SIZE = 4096;
+    private static final int MAX_CACHED_STRING_LENGTH = 32;
+    private static final long MIN_CACHED_INTEGER = -1024, MAX_CACHED_INTEGER = 1024;
+
     private final ValueFactory other = new ValueFactoryImpl();
 
-    private final Graph graph;
+    private final PropertyGraphSail.PropertyGraphContext context;
+
+    private final Map<String, URI> propertyURIs = new ConcurrentHashMap<String, URI>();
+
+    // a direct-mapped cache: a colliding value simply replaces the previous entry
+    private final AtomicReferenceArray<CachedLiteral> literals
+            = new AtomicReferenceArray<CachedLiteral>(LITERAL_CACHE_SIZE);
+    // values seen once, with the same slots; a value seen again is promoted to the cache
+    private final AtomicReferenceArray<CachedLiteral> candidates
+            = new AtomicReferenceArray<CachedLiteral>(LITERAL_CACHE_SIZE);
 
-    public PropertyGraphValueFactory(final Graph graph) {
-        this.graph = graph;
+    private final Literal trueLiteral, falseLiteral;
+
+    public PropertyGraphValueFactory(final PropertyGraphSail.PropertyGraphContext context) {
+        this.context = context;
+
+        trueLiteral = other.createLiteral(true);
+        falseLiteral = other.createLiteral(false);
+    }
+
+    /**
+     * @param key a property key
+     * @return the predicate of statements about properties with the given key
+     */
+    public URI createPropertyURI(final String key) {
+        URI uri = propertyURIs.get(key);
+        if (null == uri) {
+            uri = other.createURI(PropertyGraphSail.PROPERTY_NS + key);
+            if (propertyURIs.size() < MAX_PROPERTY_URIS) {
+                propertyURIs.put(key, uri);
+            }
+        }
+
+        return uri;
     }
 
-    // TODO: wrap actual vertices and edges in URIs
     public URI createURI(final String uri) {
-        return other.createURI(uri);
+        URI e = createElementURI(uri);
+        return null == e ? other.createURI(uri) : e;
     }
 
     public URI createURI(String ns, String name) {
@@ -41,8 +90,13 @@ class PropertyGraphValueFactory implements ValueFactory {
         throw new UnsupportedOperationException();
     }
 
-    public Literal createLiteral(String s) {
-        return other.createLiteral(s);
+    public Literal createLiteral(final String s) {
+        if (s.length() > MAX_CACHED_STRING_LENGTH) {
+            return other.createLiteral(s);
+        }
+
+        Literal l = getCachedLiteral(s);
+        return null == l ? cacheLiteral(s, other.createLiteral(s)) : l;
     }
 
     public Literal createLiteral(String s, String s1) {
@@ -53,24 +107,40 @@ class PropertyGraphValueFactory implements ValueFactory {
         return other.createLiteral(s, uri);
     }
 
-    public Literal createLiteral(boolean b) {
-        return other.createLiteral(b);
+    public Literal createLiteral(final boolean b) {
+        return b ? trueLiteral : falseLiteral;
     }
 
-    public Literal createLiteral(byte b) {
-        return other.createLiteral(b);
+    public Literal createLiteral(final byte b) {
+        Literal l = getCachedLiteral(b);
+        return null == l ? cacheLiteral(b, other.createLiteral(b)) : l;
     }
 
-    public Literal createLiteral(short i) {
-        return other.createLiteral(i);
+    public Literal createLiteral(final short i) {
+        if (i < MIN_CACHED_INTEGER || i > MAX_CACHED_INTEGER) {
+            return other.createLiteral(i);
+        }
+
+        Literal l = getCachedLiteral(i);
+        return null == l ? cacheLiteral(i, other.createLiteral(i)) : l;
     }
 
-    public Literal createLiteral(int i) {
-        return other.createLiteral(i);
+    public Literal createLiteral(final int i) {
+        if (i < MIN_CACHED_INTEGER || i > MAX_CACHED_INTEGER) {
+            return other.createLiteral(i);
+        }
+
+        Literal l = getCachedLiteral(i);
+        return null == l ? cacheLiteral(i, other.createLiteral(i)) : l;
     }
 
-    public Literal createLiteral(long l) {
-        return other.createLiteral(l);
+    public Literal createLiteral(final long l) {
+        if (l < MIN_CACHED_INTEGER || l > MAX_CACHED_INTEGER) {
+            return other.createLiteral(l);
+        }
+
+        Literal lit = getCachedLiteral(l);
+        return null == lit ? cacheLiteral(l, other.createLiteral(l)) : lit;
     }
 
     public Literal createLiteral(float v) {
@@ -90,6 +160,78 @@ class PropertyGraphValueFactory implements ValueFactory {
     }
 
     public Statement createStatement(Resource resource, URI uri, Value value, Resource resource1) {
-        throw new UnsupportedOperationException("graph contexts are not yet supported");
+        return other.createStatement(resource, uri, value, resource1);
+    }
+
+    // returns null unless the URI identifies a vertex or edge in the graph
+    private URI createElementURI(final String uri) {
+        ElementCache cache = context.elementCache;
+        if (null != cache) {
+            ElementURI cached = cache.getByURI(uri);
+            if (null != cached) {
+                return cached;
+            }
+        }
+
+        boolean isVertex;
+        String ns;
+        if (uri.startsWith(PropertyGraphSail.VERTEX_NS)) {
+            isVertex = true;
+            ns = PropertyGraphSail.VERTEX_NS;
+        } else if (uri.startsWith(PropertyGraphSail.EDGE_NS)) {
+            isVertex = false;
+            ns = PropertyGraphSail.EDGE_NS;
+        } else {
+            return null;
+        }
+
+        IdCodec codec = context.idCodec;
+        String localName = uri.substring(ns.length());
+        Object id = codec.decode(localName);
+        if (null == id) {
+            return null;
+        }
+
+        // count removals before the lookup, so that a removal during the lookup invalidates the URI
+        long removals = context.statistics.getRemovalCount();
+        Element e = isVertex ? context.graph.getVertex(id) : context.graph.getEdge(id);
+        return null == e ? null : new ElementURI(context.graph, e, ns, codec, localName, removals);
+    }
+
+    // note: values of different types are never equal (e.g. Integer 1 and Long 1), so they have distinct entries
+    private Literal getCachedLiteral(final Object value) {
+        CachedLiteral c = literals.get(slotFor(value));
+        return null != c && c.value.equals(value) ? c.literal : null;
+    }
+
+    private Literal cacheLiteral(final Object value,
+                                 final Literal literal) {
+        int slot = slotFor(value);
+        CachedLiteral c = candidates.get(slot);
+        if (null != c && c.value.equals(value)) {
+            // second sighting: promote the candidate, so that both sightings share one literal
+            literals.set(slot, c);
+            return c.literal;
+        } else {
+            candidates.set(slot, new CachedLiteral(value, literal));
+            return literal;
+        }
+    }
+
+    private int slotFor(final Object value) {
+        int h = value.hashCode();
+        h ^= (h >>> 16);
+        return (h ^ value.getClass().hashCode()) & (LITERAL_CACHE_SIZE - 1);
+    }
+
+    private static class CachedLiteral {
+        public final Object value;
+        public final Literal literal;
+
+        public CachedLiteral(final Object value,
+                             final Literal literal) {
+            this.value = value;
+            this.literal = literal;
+        }
     }
 }
@@ -0,0 +1,448 @@
+package com.tinkerpop.tinkubator.pgsail;
+
+import com.tinkerpop.blueprints.Edge;
+import com.tinkerpop.blueprints.Element;
+import com.tinkerpop.blueprints.Vertex;
+import info.aduna.iteration.CloseableIteration;
+import info.aduna.iteration.EmptyIteration;
+import org.openrdf.model.Literal;
+import org.openrdf.model.Resource;
+import org.openrdf.model.Statement;
+import org.openrdf.model.URI;
+import org.openrdf.model.Value;
+import org.openrdf.model.datatypes.XMLDatatypeUtil;
+import org.openrdf.model.vocabulary.XMLSchema;
+import org.openrdf.query.BindingSet;
+import org.openrdf.query.QueryEvaluationException;
+import org.openrdf.query.algebra.Compare;
+import org.openrdf.query.algebra.QueryModelNode;
+import org.openrdf.query.algebra.QueryModelVisitor;
+import org.openrdf.query.algebra.StatementPattern;
+import org.openrdf.query.algebra.Var;
+import org.openrdf.query.algebra.evaluation.QueryBindingSet;
+import org.openrdf.query.algebra.evaluation.impl.ExternalSet;
+import org.openrdf.sail.SailException;
+
+import java.math.BigDecimal;
+import java.math.BigInteger;
+import java.util.Collection;
+import java.util.Iterator;
+import java.util.LinkedList;
+import java.util.List;
+import java.util.Set;
+
+/**
+ * A property triple pattern, for example <code>?v prop:age ?age</code>,
+ * together with numeric comparisons on its object taken from an enclosing filter, such as <code>?age > 30</code>.
+ * Property values are compared as raw Java values, so that no literals or statements are created
+ * for elements which do not match.
+ * The filter itself is left in place, and the comparisons here only narrow the set of candidate solutions:
+ * wherever the outcome of a comparison might differ from that of the filter, the value is passed on to the filter.
+ * <p/>
+ * Blueprints does not provide sorted indices, so an unbound pattern is still a scan over all elements.
+ *
+ * @author Joshua Shinavier (http://fortytwo.net)
+ */
+class RangePattern extends ExternalSet {
+    private final PropertyGraphSailConnection connection;
+    private StatementPattern pattern;
+    private final URI predicate;
+    private final String key;
+    private final List<Condition> conditions;
+
+    /**
+     * @param connection the connection through which the pattern is evaluated
+     * @param pattern    a triple pattern with a property predicate and a variable object.
+     *                   It is not evaluated, but is visited as a child of this node,
+     *                   so that the join optimizer can see which variables the pattern binds.
+     * @param conditions the comparisons which every value of the object must satisfy
+     */
+    public RangePattern(final PropertyGraphSailConnection connection,
+                        final StatementPattern pattern,
+                        final Collection<Condition> conditions) {
+        this.connection = connection;
+        this.pattern = pattern.clone();
+        this.pattern.setParentNode(this);
+        this.predicate = (URI) pattern.getPredicateVar().getValue();
+        this.key = predicate.stringValue().substring(PropertyGraphSail.PROPERTY_NS.length());
+        this.conditions = new LinkedList<Condition>(conditions);
+    }
+
+    public StatementPattern getPattern() {
+        return pattern;
+    }
+
+    public List<Condition> getConditions() {
+        return conditions;
+    }
+
+    @Override
+    public <X extends Exception> void visitChildren(final QueryModelVisitor<X> visitor) throws X {
+        pattern.visit(visitor);
+    }
+
+    @Override
+    public void replaceChildNode(final QueryModelNode current,
+                                 final QueryModelNode replacement) {
+        if (current == pattern && replacement instanceof StatementPattern) {
+            pattern = (StatementPattern) replacement;
+            pattern.setParentNode(this);
+        } else {
+            super.replaceChildNode(current, replacement);
+        }
+    }
+
+    @Override
+    public RangePattern clone() {
+        RangePattern clone = (RangePattern) super.clone();
+        clone.pattern = pattern.clone();
+        clone.pattern.setParentNode(clone);
+        return clone;
+    }
+
+    @Override
+    public Set<String> getBindingNames() {
+        return pattern.getBindingNames();
+    }
+
+    @Override
+    public Set<String> getAssuredBindingNames() {
+        return pattern.getAssuredBindingNames();
+    }
+
+    @Override
+    public String getSignature() {
+        StringBuilder sb = new StringBuilder(super.getSignature());
+        sb.append(" (").append(pattern.getSubjectVar().getSignature())
+                .append(", ").append(key)
+                .append(", ").append(pattern.getObjectVar().getSignature());
+        for (Condition c : conditions) {
+            sb.append(", ").append(c);
+        }
+        sb.append(")");
+        return sb.toString();
+    }
+
+    @Override
+    public CloseableIteration<BindingSet, QueryEvaluationException> evaluate(final BindingSet bindings) throws QueryEvaluationException {
+        Var subjVar = pattern.getSubjectVar();
+        Var objVar = pattern.getObjectVar();
+        Value subjValue = valueOf(subjVar, bindings);
+        Value objValue = valueOf(objVar, bindings);
+
+        if (null == subjValue && null == objValue) {
+            return new ScanIteration(bindings);
+        }
+
+        if (null != subjValue && !(subjValue instanceof Resource)) {
+            return new EmptyIteration<BindingSet, QueryEvaluationException>();
+        }
+
+        // a bound pattern matches at most a few statements, which are tested as literals
+        try {
+            return new BoundIteration(
+                    connection.getStatements((Resource) subjValue, predicate, objValue, false), bindings);
+        } catch (SailException e) {
+            throw new QueryEvaluationException(e);
+        }
+    }
+
+    private boolean matches(final Object value) {
+        for (Condition c : conditions) {
+            if (!c.matches(value)) {
+                return false;
+            }
+        }
+
+        return true;
+    }
+
+    private Value valueOf(final Var var,
+                          final BindingSet bindings) {
+        return var.hasValue()
+                ? var.getValue()
+                : bindings.getValue(var.getName());
+    }
+
+    private boolean isFree(final Var var,
+                           final BindingSet bindings) {
+        return !var.hasValue() && !bindings.hasBinding(var.getName());
+    }
+
+    private QueryBindingSet bind(final BindingSet bindings,
+                                 final Value subject,
+                                 final Value object) {
+        QueryBindingSet result = new QueryBindingSet(bindings);
+
+        Var subjVar = pattern.getSubjectVar();
+        if (isFree(subjVar, bindings)) {
+            result.addBinding(subjVar.getName(), subject);
+        }
+
+        // Note: the subject and object may be the same variable, which no literal-valued statement can match
+        Var objVar = pattern.getObjectVar();
+        if (isFree(objVar, bindings)) {
+            Value existing = result.getValue(objVar.getName());
+            if (null == existing) {
+                result.addBinding(objVar.getName(), object);
+            } else if (!existing.equals(object)) {
+                return null;
+            }
+        }
+
+        return result;
+    }
+
+    private class ScanIteration extends InterruptibleIteration<BindingSet> {
+        private final BindingSet bindings;
+        private final Iterator<Vertex> vertices;
+        private final Iterator<Edge> edges;
+
+        public ScanIteration(final BindingSet bindings) {
+            super(connection);
+            this.bindings = bindings;
+            this.vertices = connection.allVertices();
+            this.edges = connection.allEdges();
+        }
+
+        @Override
+        protected BindingSet getNextElement() throws QueryEvaluationException {
+            while (!isStopped() && vertices.hasNext()) {
+                Vertex v = vertices.next();
+                BindingSet result = tryElement(v);
+                if (null != result) {
+                    return result;
+                }
+            }
+
+            while (!isStopped() && edges.hasNext()) {
+                Edge e = edges.next();
+                BindingSet result = tryElement(e);
+                if (null != result) {
+                    return result;
+                }
+            }
+
+            return null;
+        }
+
+        private BindingSet tryElement(final Element e) {
+            Object value = e.getProperty(key);
+            if (null == value || !matches(value)) {
+                return null;
+            }
+
+            Literal object = connection.toLiteral(value);
+            if (null == object) {
+                return null;
+            }
+
+            return bind(bindings, e instanceof Vertex
+                    ? connection.uriForVertex((Vertex) e)
+                    : connection.uriForEdge((Edge) e), object);
+        }
+    }
+
+    private class BoundIteration extends InterruptibleIteration<BindingSet> {
+        private final CloseableIteration<? extends Statement, SailException> statements;
+        private final BindingSet bindings;
+
+        public BoundIteration(final CloseableIteration<? extends Statement, SailException> statements,
+                              final BindingSet bindings) {
+            super(connection);
+            this.statements = statements;
+            this.bindings = bindings;
+        }
+
+        @Override
+        protected BindingSet getNextElement() throws QueryEvaluationException {
+            try {
+                while (!isStopped() && statements.hasNext()) {
+                    Statement s = statements.next();
+                    Object value = connection.literalToObject(s.getObject());
+                    if (null != value && matches(value)) {
+                        BindingSet result = bind(bindings, s.getSubject(), s.getObject());
+                        if (null != result) {
+                            return result;
+                        }
+                    }
+                }
+            } catch (SailException e) {
+                throw new QueryEvaluationException(e);
+            }
+
+            return null;
+        }
+
+        @Override
+        protected void handleClose() throws QueryEvaluationException {
+            try {
+                statements.close();
+            } catch (SailException e) {
+                throw new QueryEvaluationException(e);
+            } finally {
+                super.handleClose();
+            }
+        }
+    }
+
+    /**
+     * A numeric comparison between a property value and a constant, e.g. <code>?age > 30</code>.
+     * Values are compared with the same type promotion as SPARQL:
+     * as doubles if either is a double, otherwise as floats if either is a float,
+     * otherwise as decimals if either is a decimal, otherwise as integers.
+     * Non-numeric values never match.
+     */
+    public static class Condition {
+        private enum Type {INTEGER, DECIMAL, FLOAT, DOUBLE}
+
+        private final Compare.CompareOp op;
+        private final Literal constant;
+        private final Type type;
+        private final double doubleValue;
+        private final float floatValue;
+        private final BigDecimal decimalValue;
+        private final boolean isLong;
+        private final long longValue;
+
+        private Condition(final Compare.CompareOp op,
+                          final Literal constant,
+                          final Type type) {
+            this.op = op;
+            this.constant = constant;
+            this.type = type;
+
+            doubleValue = constant.doubleValue();
+            floatValue = constant.floatValue();
+            if (Type.INTEGER == type) {
+                BigInteger i = constant.integerValue();
+                decimalValue = new BigDecimal(i);
+                isLong = i.bitLength() < 64;
+                longValue = i.longValue();
+            } else {
+                decimalValue = Type.DECIMAL == type ? constant.decimalValue() : null;
+                isLong = false;
+                longValue = 0;
+            }
+        }
+
+        /**
+         * @param op       the comparison operator, with the property value on the left
+         * @param constant the value on the right
+         * @return the condition, or null if the comparison can not be pushed down,
+         *         e.g. if the constant is not a valid numeric literal
+         */
+        public static Condition create(final Compare.CompareOp op,
+                                       final Value constant) {
+            // inequality with a value of another type is not necessarily an error in SPARQL
+            if (Compare.CompareOp.NE == op || !(constant instanceof Literal)) {
+                return null;
+            }
+
+            URI datatype = ((Literal) constant).getDatatype();
+            if (null == datatype || !XMLDatatypeUtil.isNumericDatatype(datatype)) {
+                return null;
+            }
+
+            Type type = datatype.equals(XMLSchema.DOUBLE)
+                    ? Type.DOUBLE
+                    : datatype.equals(XMLSchema.FLOAT)
+                    ? Type.FLOAT
+                    : XMLDatatypeUtil.isIntegerDatatype(datatype)
+                    ? Type.INTEGER
+                    : Type.DECIMAL;
+
+            try {
+                return new Condition(op, (Literal) constant, type);
+            } catch (IllegalArgumentException e) {
+                // Note: NumberFormatException is an IllegalArgumentException
+                return null;
+            }
+        }
+
+        /**
+         * @return the same comparison with its arguments swapped, e.g. <code>30 < ?age</code> for <code>?age > 30</code>
+         */
+        public static Compare.CompareOp reverse(final Compare.CompareOp op) {
+            switch (op) {
+                case LT:
+                    return Compare.CompareOp.GT;
+                case LE:
+                    return Compare.CompareOp.GE;
+                case GE:
+                    return Compare.CompareOp.LE;
+                case GT:
+                    return Compare.CompareOp.LT;
+                default:
+                    return op;
+            }
+        }
+
+        public boolean isEquality() {
+            return Compare.CompareOp.EQ == op;
+        }
+
+        public boolean matches(final Object value) {
+            Type valueType;
+            if (value instanceof Integer || value instanceof Long || value instanceof Short || value instanceof Byte) {
+                valueType = Type.INTEGER;
+            } else if (value instanceof Float) {
+                valueType = Type.FLOAT;
+            } else if (value instanceof Double) {
+                valueType = Type.DOUBLE;
+            } else {
+                return false;
+            }
+
+            Number n = (Number) value;
+            switch (valueType.compareTo(type) > 0 ? valueType : type) {
+                case DOUBLE:
+                    double d = n.doubleValue();
+                    // accept either ordering of NaN and of signed zeros
+                    return test(Double.compare(d, doubleValue))
+                            || test(d < doubleValue, d == doubleValue, d > doubleValue);
+                case FLOAT:
+                    float f = n.floatValue();
+                    return test(Float.compare(f, floatValue))
+                            || test(f < floatValue, f == floatValue, f > floatValue);
+                case DECIMAL:
+                    return test(BigDecimal.valueOf(n.longValue()).compareTo(decimalValue));
+                default:
+                    if (isLong) {
+                        long l = n.longValue();
+                        return test(l < longValue ? -1 : l == longValue ? 0 : 1);
+                    } else {
+                        return test(BigDecimal.valueOf(n.longValue()).compareTo(decimalValue));
+                    }
+            }
+        }
+
+        private boolean test(final int comparison) {
+            return test(comparison < 0, 0 == comparison, comparison > 0);
+        }
+
+        private boolean test(final boolean less,
+                             final boolean equal,
+                             final boolean greater) {
+            switch (op) {
+                case LT:
+                    return less;
+                case LE:
+                    return less || equal;
+                case EQ:
+                    return equal;
+                case GE:
+                    return greater || equal;
+                case GT:
+                    return greater;
+                default:
+                    return false;
+            }
+        }
+
+        @Override
+        public String toString() {
+            return op.getSymbol() + " " + constant;
+        }
+    }
+}
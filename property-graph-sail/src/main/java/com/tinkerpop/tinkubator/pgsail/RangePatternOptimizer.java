@@ -0,0 +1,146 @@
+package com.tinkerpop.tinkubator.pgsail;
+
+import org.openrdf.model.URI;
+import org.openrdf.model.Value;
+import org.openrdf.query.BindingSet;
+import org.openrdf.query.Dataset;
+import org.openrdf.query.algebra.And;
+import org.openrdf.query.algebra.Compare;
+import org.openrdf.query.algebra.Filter;
+import org.openrdf.query.algebra.Join;
+import org.openrdf.query.algebra.StatementPattern;
+import org.openrdf.query.algebra.TupleExpr;
+import org.openrdf.query.algebra.ValueConstant;
+import org.openrdf.query.algebra.ValueExpr;
+import org.openrdf.query.algebra.Var;
+import org.openrdf.query.algebra.evaluation.QueryOptimizer;
+import org.openrdf.query.algebra.helpers.QueryModelVisitorBase;
+
+import java.util.HashMap;
+import java.util.LinkedList;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * A query optimizer which pushes numeric comparisons in a filter down into the property triple patterns
+ * which bind the compared variables, replacing each such pattern with a {@link RangePattern}.
+ * For example, in <code>?v prop:age ?age . FILTER(?age > 30 && ?age <= 40)</code>,
+ * both comparisons are applied to raw property values as the pattern is evaluated.
+ * Only patterns which must match for the filter to apply (i.e. patterns joined beneath the filter) are replaced,
+ * and the filter is kept.
+ *
+ * @author Joshua Shinavier (http://fortytwo.net)
+ */
+class RangePatternOptimizer implements QueryOptimizer {
+    private final PropertyGraphSailConnection connection;
+
+    public RangePatternOptimizer(final PropertyGraphSailConnection connection) {
+        this.connection = connection;
+    }
+
+    public void optimize(final TupleExpr tupleExpr,
+                         final Dataset dataset,
+                         final BindingSet bindings) {
+        // like edge patterns, range patterns are evaluated against the whole graph
+        if (null == dataset) {
+            tupleExpr.visit(new FilterVisitor());
+        }
+    }
+
+    private class FilterVisitor extends QueryModelVisitorBase<RuntimeException> {
+        @Override
+        public void meet(final Filter node) {
+            node.visitChildren(this);
+
+            Map<String, List<RangePattern.Condition>> conditions = new HashMap<String, List<RangePattern.Condition>>();
+            collectConditions(node.getCondition(), conditions);
+            if (conditions.isEmpty()) {
+                return;
+            }
+
+            List<StatementPattern> patterns = new LinkedList<StatementPattern>();
+            collectPatterns(node.getArg(), patterns);
+
+            for (StatementPattern sp : patterns) {
+                if (isPropertyPattern(sp)) {
+                    List<RangePattern.Condition> c = conditions.get(sp.getObjectVar().getName());
+                    if (null != c) {
+                        sp.replaceWith(new RangePattern(connection, sp, c));
+                    }
+                }
+            }
+        }
+    }
+
+    // only conjuncts are collected, as each of them must hold for the filter to pass
+    private void collectConditions(final ValueExpr expr,
+                                   final Map<String, List<RangePattern.Condition>> conditions) {
+        if (expr instanceof And) {
+            collectConditions(((And) expr).getLeftArg(), conditions);
+            collectConditions(((And) expr).getRightArg(), conditions);
+        } else if (expr instanceof Compare) {
+            Compare c = (Compare) expr;
+            Compare.CompareOp op = c.getOperator();
+            String var;
+            Value constant;
+
+            if (isVariable(c.getLeftArg()) && isConstant(c.getRightArg())) {
+                var = ((Var) c.getLeftArg()).getName();
+                constant = constantValue(c.getRightArg());
+            } else if (isConstant(c.getLeftArg()) && isVariable(c.getRightArg())) {
+                var = ((Var) c.getRightArg()).getName();
+                constant = constantValue(c.getLeftArg());
+                op = RangePattern.Condition.reverse(op);
+            } else {
+                return;
+            }
+
+            RangePattern.Condition condition = RangePattern.Condition.create(op, constant);
+            if (null != condition) {
+                List<RangePattern.Condition> l = conditions.get(var);
+                if (null == l) {
+                    l = new LinkedList<RangePattern.Condition>();
+                    conditions.put(var, l);
+                }
+                l.add(condition);
+            }
+        }
+    }
+
+    private void collectPatterns(final TupleExpr expr,
+                                 final List<StatementPattern> patterns) {
+        if (expr instanceof Join) {
+            collectPatterns(((Join) expr).getLeftArg(), patterns);
+            collectPatterns(((Join) expr).getRightArg(), patterns);
+        } else if (expr instanceof Filter) {
+            collectPatterns(((Filter) expr).getArg(), patterns);
+        } else if (expr instanceof StatementPattern) {
+            patterns.add((StatementPattern) expr);
+        }
+    }
+
+    private boolean isVariable(final ValueExpr expr) {
+        return expr instanceof Var && !((Var) expr).hasValue();
+    }
+
+    private boolean isConstant(final ValueExpr expr) {
+        return expr instanceof ValueConstant || expr instanceof Var && ((Var) expr).hasValue();
+    }
+
+    private Value constantValue(final ValueExpr expr) {
+        return expr instanceof ValueConstant
+                ? ((ValueConstant) expr).getValue()
+                : ((Var) expr).getValue();
+    }
+
+    private boolean isPropertyPattern(final StatementPattern sp) {
+        Var pred = sp.getPredicateVar();
+
+        return StatementPattern.Scope.DEFAULT_CONTEXTS == sp.getScope()
+                && null == sp.getContextVar()
+                && pred.hasValue()
+                && pred.getValue() instanceof URI
+                && pred.getValue().stringValue().startsWith(PropertyGraphSail.PROPERTY_NS)
+                && !sp.getObjectVar().hasValue();
+    }
+}
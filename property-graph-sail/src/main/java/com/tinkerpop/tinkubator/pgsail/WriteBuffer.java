@@ -0,0 +1,463 @@
+package com.tinkerpop.tinkubator.pgsail;
+
+import com.tinkerpop.blueprints.Direction;
+import com.tinkerpop.blueprints.Edge;
+import com.tinkerpop.blueprints.Element;
+import com.tinkerpop.blueprints.TransactionalGraph;
+import com.tinkerpop.blueprints.Vertex;
+import com.tinkerpop.blueprints.util.wrappers.event.EventGraph;
+import info.aduna.iteration.CloseableIteration;
+import org.openrdf.model.Literal;
+import org.openrdf.model.Resource;
+import org.openrdf.model.Statement;
+import org.openrdf.model.URI;
+import org.openrdf.model.Value;
+import org.openrdf.model.vocabulary.RDF;
+import org.openrdf.sail.SailException;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.LinkedList;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * The pending writes of a connection, which are applied to the graph on commit.
+ * Added statements are mapped to graph mutations as follows:
+ * <ul>
+ * <li><code>vertex:x rdf:type pgm:Vertex</code> adds a vertex with id x, if it does not already exist</li>
+ * <li><code>vertex:x prop:k "v"</code> sets a vertex property, adding the vertex if necessary</li>
+ * <li><code>edge:x pgm:tail vertex:y</code>, <code>edge:x pgm:head vertex:z</code> and
+ * <code>edge:x pgm:label "l"</code> together add an edge with id x, once all three have been seen</li>
+ * <li><code>edge:x prop:k "v"</code> sets an edge property</li>
+ * <li><code>pgm:id</code> and <code>rdf:type pgm:Edge</code> statements are accepted, but have no effect</li>
+ * </ul>
+ * Removing the type, id, label, head or tail statement of an element removes the element,
+ * and removing a property statement removes the property.
+ * Writes are applied in batches, each in a separate transaction if the graph is a <code>TransactionalGraph</code>.
+ * If the graph ignores supplied ids, each added element records its URI in the <code>URI_KEY</code> property,
+ * by which it is found in later commits.
+ *
+ * @author Joshua Shinavier (http://fortytwo.net)
+ */
+class WriteBuffer {
+    private final PropertyGraphSailConnection connection;
+    private final PropertyGraphSail.PropertyGraphContext context;
+
+    private static final Resource[] NO_CONTEXTS = new Resource[0];
+
+    private final List<Write> writes = new LinkedList<Write>();
+
+    public WriteBuffer(final PropertyGraphSailConnection connection,
+                       final PropertyGraphSail.PropertyGraphContext context) {
+        this.connection = connection;
+        this.context = context;
+    }
+
+    public void add(final Resource subject,
+                    final URI predicate,
+                    final Value object) {
+        writes.add(new Write(true, subject, predicate, object, NO_CONTEXTS));
+    }
+
+    /**
+     * @param contexts the contexts from which to remove matching statements, or none to remove them from all contexts
+     */
+    public void remove(final Resource subject,
+                       final URI predicate,
+                       final Value object,
+                       final Resource... contexts) {
+        writes.add(new Write(false, subject, predicate, object, contexts));
+    }
+
+    public void clear() {
+        writes.clear();
+    }
+
+    public boolean isEmpty() {
+        return writes.isEmpty();
+    }
+
+    /**
+     * Applies all pending writes to the graph, in order, then clears the buffer
+     *
+     * @param batchSize the number of writes to apply in each transaction
+     * @throws SailException if a write can not be applied.
+     *                       The current batch is rolled back, if the graph is transactional,
+     *                       but previous batches remain committed.
+     */
+    public void apply(final int batchSize) throws SailException {
+        TransactionalGraph tg = context.graph instanceof TransactionalGraph
+                ? (TransactionalGraph) context.graph
+                : null;
+
+        Batch batch = new Batch();
+        try {
+            int count = 0;
+            for (Write w : writes) {
+                if (w.isAdd) {
+                    batch.add(w.subject, w.predicate, w.object);
+                } else {
+                    batch.remove(w.subject, w.predicate, w.object, w.contexts);
+                }
+
+                if (++count % batchSize == 0 && null != tg) {
+                    tg.stopTransaction(TransactionalGraph.Conclusion.SUCCESS);
+                }
+            }
+
+            if (!batch.pendingEdges.isEmpty()) {
+                throw new SailException("incomplete edge: " + batch.pendingEdges.keySet().iterator().next()
+                        + " (an edge requires a head, a tail and a label)");
+            }
+
+            if (null != tg) {
+                tg.stopTransaction(TransactionalGraph.Conclusion.SUCCESS);
+            }
+        } catch (SailException e) {
+            rollback(tg);
+            throw e;
+        } catch (RuntimeException e) {
+            rollback(tg);
+            throw new SailException(e);
+        } finally {
+            writes.clear();
+            afterChange(batch.removed);
+        }
+    }
+
+    private void rollback(final TransactionalGraph tg) {
+        if (null != tg) {
+            tg.stopTransaction(TransactionalGraph.Conclusion.FAILURE);
+        }
+    }
+
+    private void afterChange(final boolean removed) {
+        // an EventGraph notifies the statistics, label index and element cache of changes itself
+        if (!(context.graph instanceof EventGraph)) {
+            context.statistics.invalidate();
+
+            if (removed) {
+                ElementCache cache = context.elementCache;
+                if (null != cache) {
+                    cache.clear();
+                }
+            }
+        }
+    }
+
+    private static class Write {
+        public final boolean isAdd;
+        public final Resource subject;
+        public final URI predicate;
+        public final Value object;
+        public final Resource[] contexts;
+
+        public Write(final boolean isAdd,
+                     final Resource subject,
+                     final URI predicate,
+                     final Value object,
+                     final Resource[] contexts) {
+            this.isAdd = isAdd;
+            this.subject = subject;
+            this.predicate = predicate;
+            this.object = object;
+            this.contexts = contexts;
+        }
+    }
+
+    private static class PendingEdge {
+        public Vertex head;
+        public Vertex tail;
+        public String label;
+        public final Map<String, Object> properties = new HashMap<String, Object>();
+    }
+
+    private class Batch {
+        // elements added in this commit, by URI, so that they are not looked up again
+        private final Map<String, Element> added = new HashMap<String, Element>();
+        private final Map<String, PendingEdge> pendingEdges = new LinkedHashMap<String, PendingEdge>();
+        // elements removed in this commit, by URI, as element URIs may still refer to them
+        private final Set<String> removedURIs = new HashSet<String>();
+        private boolean removed = false;
+
+        public void add(final Resource subject,
+                        final URI predicate,
+                        final Value object) throws SailException {
+            String s = subject.stringValue();
+
+            if (s.startsWith(PropertyGraphSail.VERTEX_NS)) {
+                Vertex v = getOrAddVertex(subject);
+                if (predicate.equals(RDF.TYPE)) {
+                    if (!object.equals(PropertyGraphSail.VERTEX)) {
+                        throw new SailException("vertex can not have type " + object);
+                    }
+                } else if (!predicate.equals(PropertyGraphSail.ID)) {
+                    v.setProperty(keyOf(predicate), toProperty(object));
+                }
+            } else if (s.startsWith(PropertyGraphSail.EDGE_NS)) {
+                Edge e = getEdge(subject);
+                if (null == e) {
+                    addToPendingEdge(s, predicate, object);
+                } else if (isPropertyPredicate(predicate)) {
+                    e.setProperty(keyOf(predicate), toProperty(object));
+                } else if (predicate.equals(PropertyGraphSail.HEAD) || predicate.equals(PropertyGraphSail.TAIL)
+                        || predicate.equals(PropertyGraphSail.LABEL)) {
+                    checkUnchanged(e, predicate, object);
+                } else if (predicate.equals(RDF.TYPE)) {
+                    if (!object.equals(PropertyGraphSail.EDGE)) {
+                        throw new SailException("edge can not have type " + object);
+                    }
+                } else if (!predicate.equals(PropertyGraphSail.ID)) {
+                    throw new SailException("unsupported predicate for edge: " + predicate);
+                }
+            } else {
+                throw new SailException("subject is not a vertex or edge URI: " + subject);
+            }
+        }
+
+        public void remove(final Resource subject,
+                           final URI predicate,
+                           final Value object,
+                           final Resource[] contexts) throws SailException {
+            // resolve wildcards against the current state of the graph
+            List<Statement> matching = new ArrayList<Statement>();
+            CloseableIteration<? extends Statement, SailException> iter = connection.getStatements(
+                    (Resource) toGraphURI(subject), predicate, toGraphURI(object), false, contexts);
+            try {
+                while (iter.hasNext()) {
+                    matching.add(iter.next());
+                }
+            } finally {
+                iter.close();
+            }
+
+            for (Statement st : matching) {
+                URI p = st.getPredicate();
+                Element e = getElement(st.getSubject());
+                if (null == e) {
+                    // already removed, along with an earlier element
+                    continue;
+                }
+
+                if (isPropertyPredicate(p)) {
+                    e.removeProperty(keyOf(p));
+                    continue;
+                }
+
+                markWrittenURIRemoved(e);
+                if (e instanceof Vertex) {
+                    // the edges of the vertex are removed along with it
+                    for (Edge edge : ((Vertex) e).getEdges(Direction.BOTH)) {
+                        removedURIs.add(connection.uriForEdge(edge).stringValue());
+                        markWrittenURIRemoved(edge);
+                    }
+                    context.graph.removeVertex((Vertex) e);
+                } else {
+                    EdgeLabelIndex index = context.labelIndex;
+                    if (null != index && !(context.graph instanceof EventGraph)) {
+                        index.remove((Edge) e);
+                    }
+                    context.graph.removeEdge((Edge) e);
+                }
+
+                removed = true;
+                added.remove(st.getSubject().stringValue());
+                removedURIs.add(st.getSubject().stringValue());
+            }
+        }
+
+        // in a graph which ignores supplied ids, the URI with which an element was written differs from its own URI
+        private Value toGraphURI(final Value value) {
+            if (context.ignoresSuppliedIds && value instanceof URI) {
+                Element e = getElement((URI) value);
+                if (e instanceof Vertex) {
+                    return connection.uriForVertex((Vertex) e);
+                } else if (e instanceof Edge) {
+                    return connection.uriForEdge((Edge) e);
+                }
+            }
+
+            return value;
+        }
+
+        private void markWrittenURIRemoved(final Element e) {
+            if (context.ignoresSuppliedIds) {
+                Object uri = e.getProperty(PropertyGraphSail.URI_KEY);
+                if (uri instanceof String) {
+                    added.remove(uri);
+                    removedURIs.add((String) uri);
+                }
+            }
+        }
+
+        private void addToPendingEdge(final String edgeURI,
+                                      final URI predicate,
+                                      final Value object) throws SailException {
+            PendingEdge p = pendingEdges.get(edgeURI);
+            if (null == p) {
+                p = new PendingEdge();
+                pendingEdges.put(edgeURI, p);
+            }
+
+            if (predicate.equals(PropertyGraphSail.HEAD)) {
+                p.head = getOrAddVertex(object);
+            } else if (predicate.equals(PropertyGraphSail.TAIL)) {
+                p.tail = getOrAddVertex(object);
+            } else if (predicate.equals(PropertyGraphSail.LABEL)) {
+                if (!(object instanceof Literal)) {
+                    throw new SailException("edge label is not a literal: " + object);
+                }
+                p.label = ((Literal) object).getLabel();
+            } else if (isPropertyPredicate(predicate)) {
+                p.properties.put(keyOf(predicate), toProperty(object));
+            } else if (predicate.equals(RDF.TYPE)) {
+                if (!object.equals(PropertyGraphSail.EDGE)) {
+                    throw new SailException("edge can not have type " + object);
+                }
+            } else if (!predicate.equals(PropertyGraphSail.ID)) {
+                throw new SailException("unsupported predicate for edge: " + predicate);
+            }
+
+            if (null != p.head && null != p.tail && null != p.label) {
+                Edge e = context.graph.addEdge(idFor(edgeURI, PropertyGraphSail.EDGE_NS), p.tail, p.head, p.label);
+                recordURI(e, edgeURI);
+                for (Map.Entry<String, Object> entry : p.properties.entrySet()) {
+                    e.setProperty(entry.getKey(), entry.getValue());
+                }
+
+                EdgeLabelIndex index = context.labelIndex;
+                if (null != index && !(context.graph instanceof EventGraph)) {
+                    index.add(e);
+                }
+
+                pendingEdges.remove(edgeURI);
+                added.put(edgeURI, e);
+                removedURIs.remove(edgeURI);
+            }
+        }
+
+        private void checkUnchanged(final Edge e,
+                                    final URI predicate,
+                                    final Value object) throws SailException {
+            boolean same;
+            if (predicate.equals(PropertyGraphSail.LABEL)) {
+                same = object instanceof Literal && ((Literal) object).getLabel().equals(e.getLabel());
+            } else {
+                Vertex v = predicate.equals(PropertyGraphSail.HEAD)
+                        ? e.getVertex(Direction.IN)
+                        : e.getVertex(Direction.OUT);
+                same = object instanceof URI && v.equals(getElement((URI) object));
+            }
+
+            if (!same) {
+                throw new SailException("the head, tail and label of an existing edge can not be changed: "
+                        + connection.uriForEdge(e));
+            }
+        }
+
+        private Vertex getOrAddVertex(final Value value) throws SailException {
+            if (!(value instanceof URI) || !value.stringValue().startsWith(PropertyGraphSail.VERTEX_NS)) {
+                throw new SailException("not a vertex URI: " + value);
+            }
+
+            Element e = getElement((URI) value);
+            if (e instanceof Vertex) {
+                return (Vertex) e;
+            }
+
+            Vertex v = context.graph.addVertex(idFor(value.stringValue(), PropertyGraphSail.VERTEX_NS));
+            recordURI(v, value.stringValue());
+            added.put(value.stringValue(), v);
+            removedURIs.remove(value.stringValue());
+            return v;
+        }
+
+        private Edge getEdge(final Resource r) {
+            Element e = getElement(r);
+            return e instanceof Edge ? (Edge) e : null;
+        }
+
+        private Element getElement(final Resource r) {
+            if (!(r instanceof URI)) {
+                return null;
+            }
+
+            String s = r.stringValue();
+            if (removedURIs.contains(s)) {
+                return null;
+            }
+
+            Element e = added.get(s);
+            if (null == e && context.ignoresSuppliedIds) {
+                e = elementWithURI(s);
+            }
+            if (null == e) {
+                e = connection.vertexForURI((URI) r);
+                if (null == e) {
+                    e = connection.edgeForURI((URI) r);
+                }
+            }
+
+            return e;
+        }
+
+        private void recordURI(final Element e,
+                               final String uri) {
+            if (context.ignoresSuppliedIds) {
+                e.setProperty(PropertyGraphSail.URI_KEY, uri);
+            }
+        }
+
+        // finds an element added by an earlier commit to a graph which ignores supplied ids
+        private Element elementWithURI(final String uri) {
+            Iterator<? extends Element> iter = uri.startsWith(PropertyGraphSail.VERTEX_NS)
+                    ? context.graph.getVertices(PropertyGraphSail.URI_KEY, uri).iterator()
+                    : uri.startsWith(PropertyGraphSail.EDGE_NS)
+                    ? context.graph.getEdges(PropertyGraphSail.URI_KEY, uri).iterator()
+                    : null;
+
+            return null != iter && iter.hasNext() ? iter.next() : null;
+        }
+
+        // the id to supply for a new element, which need not be decodable if the graph will ignore it
+        private Object idFor(final String uri,
+                             final String namespace) throws SailException {
+            if (context.ignoresSuppliedIds) {
+                return null;
+            }
+
+            Object id = context.idCodec.decode(uri.substring(namespace.length()));
+            if (null == id) {
+                throw new SailException("URI can not be decoded to an id: " + uri);
+            }
+
+            return id;
+        }
+
+        private Object toProperty(final Value object) throws SailException {
+            Object o = connection.literalToObject(object);
+            if (null == o) {
+                throw new SailException("property value is not a literal of a supported type: " + object);
+            }
+
+            return o;
+        }
+
+        private boolean isPropertyPredicate(final URI predicate) {
+            return predicate.stringValue().startsWith(PropertyGraphSail.PROPERTY_NS);
+        }
+
+        private String keyOf(final URI predicate) throws SailException {
+            if (!isPropertyPredicate(predicate)) {
+                throw new SailException("unsupported predicate: " + predicate);
+            }
+
+            return predicate.stringValue().substring(PropertyGraphSail.PROPERTY_NS.length());
+        }
+    }
+}
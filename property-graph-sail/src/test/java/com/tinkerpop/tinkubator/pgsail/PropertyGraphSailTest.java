@@ -1,8 +1,15 @@
 package com.tinkerpop.tinkubator.pgsail;
 
+import com.tinkerpop.blueprints.Direction;
+import com.tinkerpop.blueprints.Edge;
+import com.tinkerpop.blueprints.Features;
 import com.tinkerpop.blueprints.Graph;
+import com.tinkerpop.blueprints.Index;
+import com.tinkerpop.blueprints.TransactionalGraph;
+import com.tinkerpop.blueprints.Vertex;
 import com.tinkerpop.blueprints.impls.tg.TinkerGraph;
 import com.tinkerpop.blueprints.util.io.graphml.GraphMLReader;
+import com.tinkerpop.blueprints.util.wrappers.event.EventGraph;
 import info.aduna.iteration.CloseableIteration;
 import net.fortytwo.sesametools.StatementComparator;
 import org.junit.After;
@@ -17,6 +24,13 @@ import org.openrdf.model.ValueFactory;
 import org.openrdf.model.vocabulary.RDF;
 import org.openrdf.query.BindingSet;
 import org.openrdf.query.QueryEvaluationException;
+import org.openrdf.query.algebra.Filter;
+import org.openrdf.query.algebra.QueryModelNode;
+import org.openrdf.query.algebra.QueryRoot;
+import org.openrdf.query.algebra.StatementPattern;
+import org.openrdf.query.algebra.TupleExpr;
+import org.openrdf.query.algebra.evaluation.impl.QueryJoinOptimizer;
+import org.openrdf.query.algebra.helpers.QueryModelVisitorBase;
 import org.openrdf.query.impl.EmptyBindingSet;
 import org.openrdf.query.parser.ParsedQuery;
 import org.openrdf.query.parser.sparql.SPARQLParser;
@@ -24,25 +38,49 @@ import org.openrdf.repository.Repository;
 import org.openrdf.repository.RepositoryConnection;
 import org.openrdf.repository.sail.SailRepository;
 import org.openrdf.rio.RDFFormat;
+import org.openrdf.rio.RDFHandlerException;
 import org.openrdf.rio.RDFWriter;
 import org.openrdf.rio.Rio;
+import org.openrdf.rio.helpers.RDFHandlerBase;
+import org.openrdf.rio.helpers.StatementCollector;
 import org.openrdf.sail.Sail;
 import org.openrdf.sail.SailConnection;
 import org.openrdf.sail.SailException;
 
+import javax.management.MBeanServer;
+import javax.management.ObjectName;
+import javax.management.openmbean.TabularData;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.ObjectInputStream;
+import java.io.ObjectOutputStream;
+import java.lang.management.ManagementFactory;
+import java.util.Arrays;
 import java.util.Collection;
+import java.util.Collections;
+import java.util.ConcurrentModificationException;
+import java.util.HashSet;
+import java.util.Iterator;
 import java.util.LinkedList;
+import java.util.List;
 import java.util.Set;
 import java.util.TreeSet;
+import java.util.concurrent.atomic.AtomicInteger;
 
 import static junit.framework.Assert.assertEquals;
+import static junit.framework.Assert.assertTrue;
+import static org.junit.Assert.assertFalse;
 import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNotSame;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertSame;
 import static org.junit.Assert.fail;
 
 /**
  * @author Joshua Shinavier (http://fortytwo.net)
  */
 public class PropertyGraphSailTest {
+    private final Graph graph;
     private final Sail sail;
     private final ValueFactory vf;
 
@@ -54,11 +92,11 @@ public class PropertyGraphSailTest {
     private SailConnection sc;
 
     public PropertyGraphSailTest() throws Exception {
-        Graph g = new TinkerGraph();
-        GraphMLReader r = new GraphMLReader(g);
+        graph = new TinkerGraph();
+        GraphMLReader r = new GraphMLReader(graph);
         r.inputGraph(GraphMLReader.class.getResourceAsStream("graph-example-1.xml"));
 
-        sail = new PropertyGraphSail(g);
+        sail = new PropertyGraphSail(graph);
         sail.initialize();
 
         vf = sail.getValueFactory();
@@ -105,6 +143,58 @@ public class PropertyGraphSailTest {
         assertEquals(60, sc.size());
     }
 
+    @Test
+    public void testCachedSize() throws Exception {
+        // changes to an event graph are seen immediately
+        EventGraph eventGraph = new EventGraph(graph);
+        PropertyGraphSail eventSail = new PropertyGraphSail(eventGraph);
+        eventSail.setEdgeLabelIndexEnabled(true);
+        eventSail.setElementCacheSize(100);
+        eventSail.initialize();
+        try {
+            SailConnection c = eventSail.getConnection();
+            try {
+                assertEquals(60, c.size());
+                Vertex v = eventGraph.addVertex(null);
+                assertEquals(62, c.size());
+                v.setProperty("name", "ed");
+                assertEquals(63, c.size());
+
+                // a replaced value is counted as a new one, until the estimate is recounted
+                v.setProperty("name", "ted");
+                assertEquals(64, c.size());
+                eventSail.setSizeMaxAge(0);
+                assertEquals(63, c.size());
+
+                eventGraph.removeVertex(v);
+                assertEquals(60, c.size());
+            } finally {
+                c.close();
+            }
+        } finally {
+            eventSail.shutDown();
+        }
+        // the statistics, edge label index and element cache stop listening along with the Sail
+        assertFalse(eventGraph.getListenerIterator().hasNext());
+
+        // otherwise, the count may be out of date by up to the maximum age
+        ((PropertyGraphSail) sail).setSizeMaxAge(-1);
+        assertEquals(60, sc.size());
+        Vertex v = graph.addVertex(null);
+        assertEquals(60, sc.size());
+        // once refreshed, statements are counted in the background, while the old count is returned
+        ((PropertyGraphSail) sail).refreshStatistics();
+        assertEquals(60, sc.size());
+        long timeout = System.currentTimeMillis() + 10000;
+        while (62 != sc.size() && System.currentTimeMillis() < timeout) {
+            Thread.sleep(10);
+        }
+        assertEquals(62, sc.size());
+        graph.removeVertex(v);
+        ((PropertyGraphSail) sail).setSizeMaxAge(0);
+        assertEquals(60, sc.size());
+    }
+
     @Test
     public void testNamespaces() throws Exception {
         assertEquals(5, count(sc.getNamespaces()));
@@ -234,6 +324,73 @@ public class PropertyGraphSailTest {
                 vf.createStatement(markoKnowsVadas, label, vf.createLiteral("knows")));
     }
 
+    @Test
+    public void testEdgeLabelIndex() throws Exception {
+        ((PropertyGraphSail) sail).setEdgeLabelIndexEnabled(true);
+
+        // ? p o
+        assertExpected(get(null, label, vf.createLiteral("knows")),
+                vf.createStatement(markoKnowsVadas, label, vf.createLiteral("knows")),
+                vf.createStatement(markoKnowsJosh, label, vf.createLiteral("knows")));
+        // ? ? o
+        assertExpected(get(null, null, vf.createLiteral("knows")),
+                vf.createStatement(markoKnowsVadas, label, vf.createLiteral("knows")),
+                vf.createStatement(markoKnowsJosh, label, vf.createLiteral("knows")));
+        assertExpected(get(null, label, vf.createLiteral("likes")));
+
+        // Removed edges are skipped, and new edges are found after re-indexing
+        graph.removeEdge(graph.getEdge("7"));
+        graph.addEdge("13", graph.getVertex("6"), graph.getVertex("1"), "knows");
+        URI peterKnowsMarko = vf.createURI(PropertyGraphSail.EDGE_NS + "13");
+        assertExpected(get(null, label, vf.createLiteral("knows")),
+                vf.createStatement(markoKnowsJosh, label, vf.createLiteral("knows")));
+        ((PropertyGraphSail) sail).reindexEdgeLabels();
+        assertExpected(get(null, label, vf.createLiteral("knows")),
+                vf.createStatement(markoKnowsJosh, label, vf.createLiteral("knows")),
+                vf.createStatement(peterKnowsMarko, label, vf.createLiteral("knows")));
+    }
+
+    @Test
+    public void testPropertyIndices() throws Exception {
+        TinkerGraph g = (TinkerGraph) graph;
+        Index<Vertex> names = g.createIndex("names", Vertex.class);
+        for (Vertex v : g.getVertices()) {
+            names.put("name", v.getProperty("name"), v);
+        }
+        Index<Edge> weights = g.createIndex("weights", Edge.class);
+        for (Edge e : g.getEdges()) {
+            weights.put("weight", e.getProperty("weight"), e);
+        }
+        ((PropertyGraphSail) sail).setVertexPropertyIndex("name", "names");
+        ((PropertyGraphSail) sail).setEdgePropertyIndex("weight", "weights");
+        g.createKeyIndex("lang", Vertex.class);
+
+        // ? p o
+        assertExpected(get(null, name, vf.createLiteral("marko")),
+                vf.createStatement(marko, name, vf.createLiteral("marko")));
+        assertExpected(get(null, weight, vf.createLiteral(1.0f)),
+                vf.createStatement(joshCreatedRipple, weight, vf.createLiteral(1.0f)),
+                vf.createStatement(markoKnowsJosh, weight, vf.createLiteral(1.0f)));
+        assertExpected(get(null, lang, vf.createLiteral("java")),
+                vf.createStatement(lop, lang, vf.createLiteral("java")),
+                vf.createStatement(ripple, lang, vf.createLiteral("java")));
+        assertExpected(get(null, weight, vf.createLiteral(1.0)));
+        // ? ? o
+        assertExpected(get(null, null, vf.createLiteral("marko")),
+                vf.createStatement(marko, name, vf.createLiteral("marko")));
+        assertExpected(get(null, null, vf.createLiteral(1.0f)),
+                vf.createStatement(joshCreatedRipple, weight, vf.createLiteral(1.0f)),
+                vf.createStatement(markoKnowsJosh, weight, vf.createLiteral(1.0f)));
+        assertExpected(get(null, null, vf.createLiteral("java")),
+                vf.createStatement(lop, lang, vf.createLiteral("java")),
+                vf.createStatement(ripple, lang, vf.createLiteral("java")));
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void testNoSuchPropertyIndex() throws Exception {
+        ((PropertyGraphSail) sail).setVertexPropertyIndex("name", "nonexistent");
+    }
+
     @Test
     public void testHeads() throws Exception {
         // s p o
@@ -404,6 +561,942 @@ public class PropertyGraphSailTest {
         assertEquals(2, count);
     }
 
+    @Test
+    public void testEdgePatterns() throws Exception {
+        String prefixes = "PREFIX pgm: <" + PropertyGraphSail.ONTOLOGY_NS + ">\n" +
+                "PREFIX prop: <" + PropertyGraphSail.PROPERTY_NS + ">\n";
+
+        // two hops along out-edges, as in testSPARQL
+        String queryStr = prefixes +
+                "SELECT ?project ?name WHERE {\n" +
+                "   ?marko prop:name \"marko\".\n" +
+                "   ?e1 pgm:label \"knows\".\n" +
+                "   ?e1 pgm:tail ?marko.\n" +
+                "   ?e1 pgm:head ?friend.\n" +
+                "   ?e2 pgm:label \"created\".\n" +
+                "   ?e2 pgm:tail ?friend.\n" +
+                "   ?e2 pgm:head ?project.\n" +
+                "   ?project prop:name ?name.\n" +
+                "}";
+        TupleExpr expr = new QueryRoot(new SPARQLParser().parseQuery(queryStr, "http://example.org/bogus/").getTupleExpr());
+        new EdgePatternOptimizer((PropertyGraphSailConnection) sc).optimize(expr, null, new EmptyBindingSet());
+        final Collection<EdgePattern> patterns = new LinkedList<EdgePattern>();
+        expr.visit(new QueryModelVisitorBase<RuntimeException>() {
+            @Override
+            public void meetOther(final QueryModelNode node) {
+                if (node instanceof EdgePattern) {
+                    patterns.add((EdgePattern) node);
+                }
+            }
+        });
+        assertEquals(2, patterns.size());
+        assertEquals(2, evaluate(queryStr).size());
+
+        // a clone is a deep copy, with its own variables and triple patterns
+        EdgePattern original = patterns.iterator().next();
+        EdgePattern clone = original.clone();
+        assertNotSame(original.getEdgeVar(), clone.getEdgeVar());
+        assertEquals(original.getSignature(), clone.getSignature());
+        final List<StatementPattern> children = new LinkedList<StatementPattern>();
+        clone.visitChildren(new QueryModelVisitorBase<RuntimeException>() {
+            @Override
+            public void meet(final StatementPattern node) {
+                children.add(node);
+            }
+        });
+        assertEquals(3, children.size());
+        for (StatementPattern child : children) {
+            assertSame(clone, child.getParentNode());
+        }
+        StatementPattern replacement = children.get(0).clone();
+        clone.replaceChildNode(children.get(0), replacement);
+        assertSame(clone, replacement.getParentNode());
+
+        // in-edges of a bound head
+        queryStr = prefixes +
+                "SELECT ?name WHERE {\n" +
+                "   ?lop prop:name \"lop\".\n" +
+                "   ?e pgm:head ?lop.\n" +
+                "   ?e pgm:tail ?creator.\n" +
+                "   ?creator prop:name ?name.\n" +
+                "}";
+        Set<String> names = new HashSet<String>();
+        for (BindingSet b : evaluate(queryStr)) {
+            names.add(b.getValue("name").stringValue());
+        }
+        assertEquals(3, names.size());
+        assertTrue(names.contains("marko"));
+        assertTrue(names.contains("josh"));
+        assertTrue(names.contains("peter"));
+
+        // unbound labels
+        queryStr = prefixes +
+                "SELECT ?label ?other WHERE {\n" +
+                "   ?marko prop:name \"marko\".\n" +
+                "   ?e pgm:tail ?marko.\n" +
+                "   ?e pgm:head ?other.\n" +
+                "   ?e pgm:label ?label.\n" +
+                "}";
+        Collection<BindingSet> results = evaluate(queryStr);
+        assertEquals(3, results.size());
+        for (BindingSet b : results) {
+            String l = b.getValue("label").stringValue();
+            URI other = (URI) b.getValue("other");
+            if (other.equals(lop)) {
+                assertEquals("created", l);
+            } else {
+                assertTrue(other.equals(josh) || other.equals(vadas));
+                assertEquals("knows", l);
+            }
+        }
+
+        // a common variable for head and tail (there are no self-loops)
+        queryStr = prefixes +
+                "SELECT ?e WHERE {\n" +
+                "   ?e pgm:head ?v.\n" +
+                "   ?e pgm:tail ?v.\n" +
+                "}";
+        assertEquals(0, evaluate(queryStr).size());
+    }
+
+    @Test
+    public void testElementURIs() throws Exception {
+        Collection<Statement> results = get(null, name, vf.createLiteral("marko"));
+        assertEquals(1, results.size());
+        Resource subject = results.iterator().next().getSubject();
+
+        // URIs produced by the Sail carry their elements, but are equal to any other URI with the same value
+        assertTrue(subject instanceof ElementURI);
+        assertEquals(graph.getVertex("1"), ((ElementURI) subject).getElement());
+        assertEquals(marko, subject);
+        assertEquals(subject, marko);
+        assertEquals(marko.hashCode(), subject.hashCode());
+        assertEquals("1", ((URI) subject).getLocalName());
+        assertEquals(PropertyGraphSail.VERTEX_NS, ((URI) subject).getNamespace());
+        assertEquals(4, get(subject, null, null).size());
+
+        // the value factory also creates element URIs for existing vertices and edges
+        assertTrue(marko instanceof ElementURI);
+        assertEquals(graph.getVertex("1"), ((ElementURI) marko).getElement());
+        assertTrue(markoKnowsVadas instanceof ElementURI);
+        assertFalse(vf.createURI(PropertyGraphSail.VERTEX_NS + "42") instanceof ElementURI);
+
+        // the element cache gives the same results
+        ((PropertyGraphSail) sail).setElementCacheSize(2);
+        try {
+            for (int i = 0; i < 2; i++) {
+                assertEquals(4, get(marko, null, null).size());
+                assertEquals(4, get(lop, null, null).size());
+                assertEquals(4, get(peter, null, null).size());
+                assertEquals(1, get(null, name, vf.createLiteral("marko")).size());
+            }
+            assertExpected(get(markoKnowsVadas, head, null),
+                    vf.createStatement(markoKnowsVadas, head, vadas));
+        } finally {
+            ((PropertyGraphSail) sail).setElementCacheSize(0);
+        }
+
+        // a deserialized URI no longer carries its element, and is resolved by its id
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        ObjectOutputStream out = new ObjectOutputStream(bytes);
+        out.writeObject(subject);
+        out.close();
+        URI copy = (URI) new ObjectInputStream(new ByteArrayInputStream(bytes.toByteArray())).readObject();
+        assertNull(((ElementURI) copy).getElement());
+        assertEquals(marko, copy);
+        assertEquals("1", copy.getLocalName());
+        assertEquals(4, get(copy, null, null).size());
+
+        // a carried element which has since been removed from the graph is not used
+        Resource knows = null;
+        for (Statement st : get(null, label, vf.createLiteral("knows"))) {
+            if (st.getSubject().equals(markoKnowsVadas)) {
+                knows = st.getSubject();
+            }
+        }
+        assertTrue(knows instanceof ElementURI);
+        assertEquals(6, get(knows, null, null).size());
+        graph.removeEdge(graph.getEdge("7"));
+        assertEquals(0, get(knows, null, null).size());
+    }
+
+    @Test
+    public void testIdCodecs() throws Exception {
+        IdCodec codec = new IdCodec.LongCodec();
+        assertEquals(42L, codec.decode("42"));
+        assertEquals("42", codec.encode(42L));
+        assertEquals(null, codec.decode("marko"));
+
+        codec = new IdCodec.PrefixCodec();
+        assertEquals("n42", codec.encode(42L));
+        assertEquals("s42", codec.encode("42"));
+        assertEquals(42L, codec.decode("n42"));
+        assertEquals("42", codec.decode("s42"));
+        assertEquals(null, codec.decode("nmarko"));
+        assertEquals(null, codec.decode("x42"));
+        assertEquals(null, codec.decode(""));
+
+        PropertyGraphSail s = (PropertyGraphSail) sail;
+        try {
+            s.setIdCodec(new IdCodec.PrefixCodec());
+            URI prefixedMarko = vf.createURI(PropertyGraphSail.VERTEX_NS + "s1");
+            assertEquals(4, get(prefixedMarko, null, null).size());
+            assertEquals(0, get(marko, null, null).size());
+            assertExpected(get(null, name, vf.createLiteral("marko")),
+                    vf.createStatement(prefixedMarko, name, vf.createLiteral("marko")));
+
+            // TinkerGraph accepts numeric ids in place of their string forms, but non-numeric local names are rejected
+            s.setIdCodec(new IdCodec.LongCodec());
+            assertEquals(4, get(marko, null, null).size());
+            assertEquals(0, get(vf.createURI(PropertyGraphSail.VERTEX_NS + "marko"), null, null).size());
+        } finally {
+            s.setIdCodec(new IdCodec.StringCodec());
+        }
+
+        assertEquals(4, get(marko, null, null).size());
+    }
+
+    @Test
+    public void testParallelExport() throws Exception {
+        Collection<Statement> expected = get(null, null, null);
+
+        for (int threads = 1; threads <= 4; threads++) {
+            StatementCollector c = new StatementCollector();
+            ((PropertyGraphSail) sail).exportStatements(c, threads, 2);
+            assertEquals(60, c.getStatements().size());
+            assertEquals(5, c.getNamespaces().size());
+            assertExpected(c.getStatements(), expected.toArray(new Statement[expected.size()]));
+        }
+
+        // handler errors are passed to the caller
+        try {
+            ((PropertyGraphSail) sail).exportStatements(new RDFHandlerBase() {
+                @Override
+                public void handleStatement(final Statement st) throws RDFHandlerException {
+                    throw new RDFHandlerException("stop");
+                }
+            }, 2, 1);
+            fail();
+        } catch (RDFHandlerException e) {
+            assertEquals("stop", e.getMessage());
+        }
+    }
+
+    @Test
+    public void testReadOnly() throws Exception {
+        try {
+            sc.addStatement(marko, name, vf.createLiteral("marko"));
+            fail();
+        } catch (SailException e) {
+            // Good.
+        }
+    }
+
+    @Test
+    public void testWrites() throws Exception {
+        Graph g = new TinkerGraph();
+        PropertyGraphSail s = new PropertyGraphSail(g);
+        s.setWritable(true);
+        s.setCommitBatchSize(2);
+        // count statements exactly after each commit, rather than in the background
+        s.setSizeMaxAge(0);
+        s.initialize();
+        try {
+            SailConnection c = s.getConnection();
+            try {
+                URI v1 = vf.createURI(PropertyGraphSail.VERTEX_NS + "v1");
+                URI v2 = vf.createURI(PropertyGraphSail.VERTEX_NS + "v2");
+                URI e1 = vf.createURI(PropertyGraphSail.EDGE_NS + "e1");
+
+                c.addStatement(v1, RDF.TYPE, vertex);
+                c.addStatement(v1, name, vf.createLiteral("ed"));
+                c.addStatement(e1, weight, vf.createLiteral(0.5f));
+                c.addStatement(e1, label, vf.createLiteral("knows"));
+                c.addStatement(e1, tail, v1);
+                c.addStatement(e1, head, v2);
+                c.addStatement(v2, age, vf.createLiteral(42));
+
+                // nothing is written before commit
+                assertEquals(0, countElements(g.getVertices()));
+                c.commit();
+
+                assertEquals(2, countElements(g.getVertices()));
+                assertEquals("ed", g.getVertex("v1").getProperty("name"));
+                assertEquals(42, g.getVertex("v2").getProperty("age"));
+                Edge e = g.getEdge("e1");
+                assertEquals("knows", e.getLabel());
+                assertEquals(0.5f, e.getProperty("weight"));
+                assertEquals(g.getVertex("v1"), e.getVertex(Direction.OUT));
+                assertEquals(g.getVertex("v2"), e.getVertex(Direction.IN));
+                assertEquals(12, c.size());
+
+                // rolled-back writes are discarded
+                c.addStatement(v1, age, vf.createLiteral(23));
+                c.rollback();
+                c.commit();
+                assertEquals(null, g.getVertex("v1").getProperty("age"));
+
+                // removing a property statement removes the property; removing an id removes the element
+                c.removeStatements(v1, name, null);
+                c.removeStatements(e1, PropertyGraphSail.ID, null);
+                c.commit();
+                assertEquals(null, g.getVertex("v1").getProperty("name"));
+                assertEquals(null, g.getEdge("e1"));
+                assertEquals(5, c.size());
+
+                // removing a vertex removes its edges
+                c.addStatement(e1, label, vf.createLiteral("knows"));
+                c.addStatement(e1, tail, v1);
+                c.addStatement(e1, head, v2);
+                c.removeStatements(v2, null, null);
+                c.commit();
+                assertEquals(1, countElements(g.getVertices()));
+                assertEquals(0, countElements(g.getEdges()));
+
+                // an edge requires a head, tail and label
+                c.addStatement(e1, label, vf.createLiteral("knows"));
+                c.addStatement(e1, tail, v1);
+                try {
+                    c.commit();
+                    fail();
+                } catch (SailException ex) {
+                    // Good.
+                }
+
+                // the head, tail and label of an edge can not be changed
+                c.addStatement(e1, label, vf.createLiteral("knows"));
+                c.addStatement(e1, tail, v1);
+                c.addStatement(e1, head, v1);
+                c.commit();
+                c.addStatement(e1, label, vf.createLiteral("likes"));
+                try {
+                    c.commit();
+                    fail();
+                } catch (SailException ex) {
+                    // Good.
+                }
+
+                // adding a statement to a partition context places its subject in the partition
+                s.setPartitionKey("partition");
+                c.addStatement(v2, RDF.TYPE, vertex, vf.createURI(PropertyGraphSail.PARTITION_NS + "p1"));
+                c.commit();
+                assertEquals("p1", g.getVertex("v2").getProperty("partition"));
+                assertEquals(3, c.size(vf.createURI(PropertyGraphSail.PARTITION_NS + "p1")));
+
+                // removing statements from a partition context leaves other contexts untouched
+                c.addStatement(v1, name, vf.createLiteral("ed"));
+                c.addStatement(v2, name, vf.createLiteral("kate"), vf.createURI(PropertyGraphSail.PARTITION_NS + "p1"));
+                c.commit();
+                c.removeStatements(null, name, null, vf.createURI(PropertyGraphSail.PARTITION_NS + "p2"));
+                c.commit();
+                assertEquals("kate", g.getVertex("v2").getProperty("name"));
+                c.removeStatements(null, name, null, vf.createURI(PropertyGraphSail.PARTITION_NS + "p1"));
+                c.commit();
+                assertEquals(null, g.getVertex("v2").getProperty("name"));
+                assertEquals("ed", g.getVertex("v1").getProperty("name"));
+
+                // clearing a partition context removes the elements in the partition
+                c.clear(vf.createURI(PropertyGraphSail.PARTITION_NS + "p1"));
+                c.commit();
+                assertEquals(null, g.getVertex("v2"));
+                assertEquals("ed", g.getVertex("v1").getProperty("name"));
+                s.setPartitionKey(null);
+
+                c.clear();
+                c.commit();
+                assertEquals(0, c.size());
+            } finally {
+                c.close();
+            }
+        } finally {
+            s.shutDown();
+        }
+    }
+
+    @Test
+    public void testWritesIgnoringIds() throws Exception {
+        // a graph which, like Neo4jGraph, chooses the ids of new elements itself
+        TinkerGraph g = new TinkerGraph() {
+            @Override
+            public Vertex addVertex(final Object id) {
+                return super.addVertex(null);
+            }
+
+            @Override
+            public Edge addEdge(final Object id, final Vertex outVertex, final Vertex inVertex, final String label) {
+                return super.addEdge(null, outVertex, inVertex, label);
+            }
+
+            @Override
+            public Features getFeatures() {
+                Features f = super.getFeatures().copyFeatures();
+                f.ignoresSuppliedIds = true;
+                return f;
+            }
+        };
+        PropertyGraphSail s = new PropertyGraphSail(g);
+        s.setWritable(true);
+        assertTrue(g.getIndexedKeys(Vertex.class).contains(PropertyGraphSail.URI_KEY));
+        s.initialize();
+        try {
+            SailConnection c = s.getConnection();
+            try {
+                URI v1 = vf.createURI(PropertyGraphSail.VERTEX_NS + "v1");
+                URI v2 = vf.createURI(PropertyGraphSail.VERTEX_NS + "v2");
+                URI e1 = vf.createURI(PropertyGraphSail.EDGE_NS + "e1");
+
+                c.addStatement(v1, name, vf.createLiteral("ed"));
+                c.addStatement(e1, label, vf.createLiteral("knows"));
+                c.addStatement(e1, tail, v1);
+                c.addStatement(e1, head, v2);
+                c.commit();
+
+                // elements written in an earlier commit are found by their URIs, not duplicated
+                c.addStatement(v1, age, vf.createLiteral(23));
+                c.addStatement(e1, weight, vf.createLiteral(0.5f));
+                c.addStatement(e1, tail, v1);
+                c.commit();
+                assertEquals(2, countElements(g.getVertices()));
+                assertEquals(1, countElements(g.getEdges()));
+                Vertex v = g.getVertices(PropertyGraphSail.URI_KEY, v1.stringValue()).iterator().next();
+                assertEquals("ed", v.getProperty("name"));
+                assertEquals(23, v.getProperty("age"));
+                assertEquals(0.5f, v.getEdges(Direction.OUT).iterator().next().getProperty("weight"));
+
+                // as are elements to be removed
+                c.removeStatements(v1, age, null);
+                c.removeStatements(e1, PropertyGraphSail.ID, null);
+                c.commit();
+                assertEquals(null, v.getProperty("age"));
+                assertEquals(0, countElements(g.getEdges()));
+            } finally {
+                c.close();
+            }
+        } finally {
+            s.shutDown();
+        }
+    }
+
+    @Test
+    public void testBatchedWrites() throws Exception {
+        TransactionalTinkerGraph g = new TransactionalTinkerGraph();
+        PropertyGraphSail s = new PropertyGraphSail(g);
+        s.setWritable(true);
+        s.setCommitBatchSize(2);
+        s.initialize();
+        try {
+            SailConnection c = s.getConnection();
+            try {
+                URI v1 = vf.createURI(PropertyGraphSail.VERTEX_NS + "v1");
+                URI v2 = vf.createURI(PropertyGraphSail.VERTEX_NS + "v2");
+
+                // five writes are committed in three transactions
+                c.addStatement(v1, RDF.TYPE, vertex);
+                c.addStatement(v1, name, vf.createLiteral("ed"));
+                c.addStatement(v2, RDF.TYPE, vertex);
+                c.addStatement(v2, name, vf.createLiteral("al"));
+                c.addStatement(v2, age, vf.createLiteral(42));
+                c.commit();
+                assertEquals(Arrays.asList(TransactionalGraph.Conclusion.SUCCESS,
+                        TransactionalGraph.Conclusion.SUCCESS,
+                        TransactionalGraph.Conclusion.SUCCESS), g.conclusions);
+                assertEquals(2, countElements(g.getVertices()));
+
+                // elements written in an earlier commit are found by their URIs;
+                // a failed write rolls back only its own batch
+                g.conclusions.clear();
+                c.addStatement(v1, age, vf.createLiteral(23));
+                c.addStatement(v2, RDF.TYPE, vertex);
+                c.addStatement(v2, lang, vf.createURI("http://example.org/java"));
+                try {
+                    c.commit();
+                    fail();
+                } catch (SailException e) {
+                    // Good.
+                }
+                assertEquals(Arrays.asList(TransactionalGraph.Conclusion.SUCCESS,
+                        TransactionalGraph.Conclusion.FAILURE), g.conclusions);
+                assertEquals(2, countElements(g.getVertices()));
+                assertEquals(23, g.getVertex("v1").getProperty("age"));
+            } finally {
+                c.close();
+            }
+        } finally {
+            s.shutDown();
+        }
+    }
+
+    @Test
+    public void testPartitionContexts() throws Exception {
+        URI partitionA = vf.createURI(PropertyGraphSail.PARTITION_NS + "a");
+        URI partitionB = vf.createURI(PropertyGraphSail.PARTITION_NS + "b");
+
+        // without partitioning, there is only the default context
+        assertEquals(0, count(sc.getContextIDs()));
+        assertEquals(0, count(sc.getStatements(null, null, null, false, partitionA)));
+
+        for (String id : new String[]{"1", "2", "4"}) {
+            graph.getVertex(id).setProperty("partition", "a");
+        }
+        for (String id : new String[]{"7", "8"}) {
+            graph.getEdge(id).setProperty("partition", "a");
+        }
+        ((PropertyGraphSail) sail).setPartitionKey("partition");
+        ((PropertyGraphSail) sail).refreshStatistics();
+
+        CloseableIteration<? extends Resource, SailException> ids = sc.getContextIDs();
+        try {
+            assertTrue(ids.hasNext());
+            assertEquals(partitionA, ids.next());
+            assertTrue(!ids.hasNext());
+        } finally {
+            ids.close();
+        }
+
+        assertEquals(65, count(sc.getStatements(null, null, null, false)));
+        assertEquals(29, count(sc.getStatements(null, null, null, false, partitionA)));
+        assertEquals(29, sc.size(partitionA));
+        assertEquals(36, sc.size((Resource) null));
+        assertEquals(65, sc.size(partitionA, null));
+        assertEquals(0, sc.size(partitionB));
+        assertEquals(65, sc.size());
+
+        assertEquals(3, count(sc.getStatements(null, name, null, false, partitionA)));
+        assertEquals(3, count(sc.getStatements(null, name, null, false, (Resource) null)));
+
+        // with a bound predicate, only the matching statements are generated for each element of the partition
+        assertEquals(5, count(sc.getStatements(null, RDF.TYPE, null, false, partitionA)));
+        assertEquals(5, count(sc.getStatements(null, id, null, false, partitionA)));
+        assertEquals(2, count(sc.getStatements(null, label, null, false, partitionA)));
+        assertEquals(2, count(sc.getStatements(null, head, null, false, partitionA)));
+        assertEquals(2, count(sc.getStatements(null, weight, null, false, partitionA)));
+        assertEquals(5, count(sc.getStatements(null, vf.createURI(PropertyGraphSail.PROPERTY_NS + "partition"), null, false, partitionA)));
+        assertEquals(0, count(sc.getStatements(null, vf.createURI("http://example.org/other"), null, false, partitionA)));
+        assertEquals(5, count(sc.getStatements(marko, null, null, false, partitionA)));
+        assertEquals(0, count(sc.getStatements(marko, null, null, false, partitionB)));
+        assertEquals(0, count(sc.getStatements(lop, null, null, false, partitionA)));
+        assertEquals(4, count(sc.getStatements(lop, null, null, false, (Resource) null)));
+
+        for (Statement st : get(markoKnowsVadas, null, null)) {
+            assertEquals(partitionA, st.getContext());
+        }
+        for (Statement st : get(lop, null, null)) {
+            assertEquals(null, st.getContext());
+        }
+
+        // partition values are encoded, so that any value gives a valid URI
+        URI partitionC = vf.createURI(PropertyGraphSail.PARTITION_NS + "c+d%23e");
+        graph.getVertex("3").setProperty("partition", "c d#e");
+        assertEquals(5, count(sc.getStatements(null, null, null, false, partitionC)));
+        for (Statement st : get(lop, null, null)) {
+            assertEquals(partitionC, st.getContext());
+        }
+
+        // the URI of a partition is shared by its statements
+        Iterator<Statement> iter = get(marko, null, null).iterator();
+        assertSame(iter.next().getContext(), iter.next().getContext());
+    }
+
+    @Test
+    public void testValueReuse() throws Exception {
+        // both programs are written in Java
+        Collection<Statement> results = get(null, lang, null);
+        assertEquals(2, results.size());
+        Iterator<Statement> iter = results.iterator();
+        Statement s1 = iter.next(), s2 = iter.next();
+        assertEquals(s1.getObject(), s2.getObject());
+        assertSame(s1.getPredicate(), s2.getPredicate());
+        assertSame(s1.getObject(), s2.getObject());
+
+        // small and short values are reused, others are merely equal
+        assertSame(vf.createLiteral(true), vf.createLiteral(true));
+        assertSame(vf.createLiteral(42), vf.createLiteral(42));
+        assertSame(vf.createLiteral(42L), vf.createLiteral(42L));
+        assertEquals(vf.createLiteral(42), vf.createLiteral(42));
+        assertFalse(vf.createLiteral(42).equals(vf.createLiteral(42L)));
+        assertEquals(vf.createLiteral(1000000), vf.createLiteral(1000000));
+        String longString = "a string too long to be worth caching, as most such strings are unique";
+        assertEquals(vf.createLiteral(longString), vf.createLiteral(longString));
+
+        // values seen only once do not evict values which recur
+        Literal recurring = vf.createLiteral("recurring");
+        assertSame(recurring, vf.createLiteral("recurring"));
+        for (int i = 0; i < 10000; i++) {
+            vf.createLiteral("unique" + i);
+        }
+        assertSame(recurring, vf.createLiteral("recurring"));
+    }
+
+    @Test
+    public void testStatistics() throws Exception {
+        PropertyGraphStatistics.Snapshot stats = new PropertyGraphStatistics(graph).getSnapshot();
+        assertEquals(6, stats.getVertexCount());
+        assertEquals(6, stats.getEdgeCount());
+        assertEquals(2, stats.getLabelCount("knows"));
+        assertEquals(4, stats.getLabelCount("created"));
+        assertEquals(0, stats.getLabelCount("likes"));
+        assertEquals(6, stats.getVertexKeyCount("name"));
+        assertEquals(4, stats.getVertexKeyCount("age"));
+        assertEquals(6, stats.getEdgeKeyCount("weight"));
+        assertEquals(0, stats.getEdgeKeyCount("name"));
+
+        // statistics are first estimated from a sample, while the whole graph is scanned in the background
+        PropertyGraphStatistics sampled = new PropertyGraphStatistics(graph, 2);
+        try {
+            stats = sampled.getSnapshot();
+            assertFalse(stats.isComplete());
+            assertEquals(2, stats.getVertexCount());
+            assertEquals(2, stats.getEdgeCount());
+            stats = awaitNewSnapshot(sampled, stats);
+            assertTrue(stats.isComplete());
+            assertEquals(6, stats.getVertexCount());
+            assertEquals(4, stats.getLabelCount("created"));
+
+            // invalidated statistics are used until they have been gathered again
+            sampled.invalidate();
+            assertSame(stats, sampled.getSnapshot());
+            assertNotSame(stats, awaitNewSnapshot(sampled, stats));
+        } finally {
+            sampled.close();
+        }
+
+        // a failed refresh leaves the previous statistics in use, and is tried again
+        final AtomicInteger edgeScans = new AtomicInteger(0);
+        Graph flaky = new TinkerGraph() {
+            @Override
+            public Iterable<Edge> getEdges() {
+                if (2 == edgeScans.incrementAndGet()) {
+                    throw new ConcurrentModificationException();
+                }
+                return super.getEdges();
+            }
+        };
+        new GraphMLReader(flaky).inputGraph(GraphMLReader.class.getResourceAsStream("graph-example-1.xml"));
+        sampled = new PropertyGraphStatistics(flaky, 2);
+        try {
+            stats = sampled.getSnapshot();
+            assertFalse(stats.isComplete());
+            stats = awaitNewSnapshot(sampled, stats);
+            assertTrue(stats.isComplete());
+            assertTrue(edgeScans.get() >= 3);
+        } finally {
+            sampled.close();
+        }
+
+        // a sample is scaled up to the number of vertices and edges, if known
+        sampled = new PropertyGraphStatistics(graph, 2);
+        try {
+            assertEquals(60, sampled.getStatementCount());
+            stats = sampled.getSnapshot();
+            assertEquals(6, stats.getVertexCount());
+            assertEquals(6, stats.getEdgeCount());
+            assertEquals(6, stats.getLabelCount("knows") + stats.getLabelCount("created"));
+        } finally {
+            sampled.close();
+        }
+    }
+
+    @Test
+    public void testJoinOrdering() throws Exception {
+        String queryStr = "PREFIX prop: <" + PropertyGraphSail.PROPERTY_NS + ">\n" +
+                "SELECT ?age WHERE {\n" +
+                "   ?x prop:age ?age.\n" +
+                "   ?x prop:name \"marko\".\n" +
+                "}";
+
+        // the selective name pattern is evaluated first
+        TupleExpr expr = new QueryRoot(new SPARQLParser().parseQuery(queryStr, "http://example.org/bogus/").getTupleExpr());
+        new QueryJoinOptimizer(new PropertyGraphEvaluationStatistics(new PropertyGraphStatistics(graph).getSnapshot()))
+                .optimize(expr, null, new EmptyBindingSet());
+        final LinkedList<StatementPattern> patterns = new LinkedList<StatementPattern>();
+        expr.visit(new QueryModelVisitorBase<RuntimeException>() {
+            @Override
+            public void meet(final StatementPattern node) {
+                patterns.add(node);
+            }
+        });
+        assertEquals(2, patterns.size());
+        assertEquals(name, patterns.getFirst().getPredicateVar().getValue());
+        assertEquals(age, patterns.getLast().getPredicateVar().getValue());
+
+        Collection<BindingSet> results = evaluate(queryStr);
+        assertEquals(1, results.size());
+        assertEquals(29, ((Literal) results.iterator().next().getValue("age")).intValue());
+    }
+
+    @Test
+    public void testRangePatterns() throws Exception {
+        String prefix = "PREFIX prop: <" + PropertyGraphSail.PROPERTY_NS + ">\n";
+        String queryStr = prefix +
+                "SELECT ?x WHERE {\n" +
+                "   ?x prop:age ?age.\n" +
+                "   FILTER(?age > 30)\n" +
+                "}";
+
+        // the comparison is pushed down into the age pattern, and the filter is kept
+        TupleExpr expr = new QueryRoot(new SPARQLParser().parseQuery(queryStr, "http://example.org/bogus/").getTupleExpr());
+        new RangePatternOptimizer((PropertyGraphSailConnection) sc).optimize(expr, null, new EmptyBindingSet());
+        final LinkedList<QueryModelNode> nodes = new LinkedList<QueryModelNode>();
+        expr.visit(new QueryModelVisitorBase<RuntimeException>() {
+            @Override
+            public void meet(final Filter node) {
+                nodes.add(node);
+                super.meet(node);
+            }
+
+            @Override
+            public void meetOther(final QueryModelNode node) {
+                nodes.add(node);
+            }
+        });
+        assertEquals(2, nodes.size());
+        assertTrue(nodes.getFirst() instanceof Filter);
+        assertTrue(nodes.getLast() instanceof RangePattern);
+
+        RangePattern range = (RangePattern) nodes.getLast();
+        RangePattern rangeClone = range.clone();
+        assertNotSame(range.getPattern(), rangeClone.getPattern());
+        assertSame(rangeClone, rangeClone.getPattern().getParentNode());
+        assertEquals(range.getSignature(), rangeClone.getSignature());
+        StatementPattern rangeReplacement = range.getPattern().clone();
+        rangeClone.replaceChildNode(rangeClone.getPattern(), rangeReplacement);
+        assertSame(rangeReplacement, rangeClone.getPattern());
+        assertSame(rangeClone, rangeReplacement.getParentNode());
+
+        Set<Value> subjects = new HashSet<Value>();
+        for (BindingSet b : evaluate(queryStr)) {
+            subjects.add(b.getValue("x"));
+        }
+        assertEquals(2, subjects.size());
+        assertTrue(subjects.contains(josh));
+        assertTrue(subjects.contains(peter));
+
+        // a constant on the left, and more than one comparison
+        assertEquals(1, evaluate(prefix + "SELECT ?x WHERE { ?x prop:age ?age. FILTER(30 < ?age && ?age <= 32) }").size());
+        assertEquals(4, evaluate(prefix + "SELECT ?x WHERE { ?x prop:age ?age. FILTER(?age >= 27) }").size());
+        assertEquals(0, evaluate(prefix + "SELECT ?x WHERE { ?x prop:age ?age. FILTER(?age < 27) }").size());
+
+        // integer properties compared with decimals and doubles
+        assertEquals(1, evaluate(prefix + "SELECT ?x WHERE { ?x prop:age ?age. FILTER(?age = 29.0) }").size());
+        assertEquals(2, evaluate(prefix + "SELECT ?x WHERE { ?x prop:age ?age. FILTER(?age < 29.5e0) }").size());
+
+        // float properties are compared as floats, so that 0.4f = 0.4
+        assertEquals(3, evaluate(prefix + "SELECT ?x WHERE { ?x prop:weight ?w. FILTER(?w <= 0.4) }").size());
+        assertEquals(3, evaluate(prefix + "SELECT ?x WHERE { ?x prop:weight ?w. FILTER(?w > 0.4) }").size());
+
+        // a bound subject
+        assertEquals(1, evaluate(prefix + "SELECT ?age WHERE { ?x prop:name \"josh\". ?x prop:age ?age. FILTER(?age > 30) }").size());
+        assertEquals(0, evaluate(prefix + "SELECT ?age WHERE { ?x prop:name \"marko\". ?x prop:age ?age. FILTER(?age > 30) }").size());
+
+        // comparisons with non-numeric values are left to the filter
+        assertEquals(1, evaluate(prefix + "SELECT ?x WHERE { ?x prop:name ?n. FILTER(?n = \"josh\") }").size());
+        assertEquals(0, evaluate(prefix + "SELECT ?x WHERE { ?x prop:name ?n. FILTER(?n > 30) }").size());
+    }
+
+    @Test
+    public void testCancellation() throws Exception {
+        PropertyGraphSailConnection c = (PropertyGraphSailConnection) sail.getConnection();
+        try {
+            // nothing is read from the graph, or held open, until the first statement is requested
+            CloseableIteration<? extends Statement, SailException> iter = c.getStatements(null, null, null, false);
+            assertEquals(1, c.getOpenIterationCount());
+            assertTrue(iter.hasNext());
+            iter.next();
+            iter.close();
+            assertFalse(iter.hasNext());
+            assertEquals(0, c.getOpenIterationCount());
+
+            // a lookup of a single element can not block, and is not held open
+            iter = c.getStatements(marko, null, null, false);
+            assertEquals(0, c.getOpenIterationCount());
+            assertTrue(iter.hasNext());
+            iter.close();
+
+            // exhausted iterations close themselves
+            assertEquals(1, count(c.getStatements(marko, name, null, false)));
+            iter = c.getStatements(null, name, null, false);
+            while (iter.hasNext()) {
+                iter.next();
+            }
+            assertEquals(0, c.getOpenIterationCount());
+
+            // a query with a limit is closed as soon as the limit is reached
+            String queryStr = "PREFIX pgm: <" + PropertyGraphSail.ONTOLOGY_NS + ">\n" +
+                    "SELECT ?x ?y WHERE { ?e pgm:tail ?x. ?e pgm:head ?y. ?x ?p ?o } LIMIT 2";
+            ParsedQuery query = new SPARQLParser().parseQuery(queryStr, "http://example.org/bogus/");
+            CloseableIteration<? extends BindingSet, QueryEvaluationException> results
+                    = c.evaluate(query.getTupleExpr(), query.getDataset(), new EmptyBindingSet(), false);
+            assertTrue(results.hasNext());
+            results.next();
+            assertTrue(0 < c.getOpenIterationCount());
+            assertTrue(results.hasNext());
+            results.next();
+            assertFalse(results.hasNext());
+            assertEquals(0, c.getOpenIterationCount());
+            results.close();
+
+            // iterations which are still open are closed along with the connection
+            iter = c.getStatements(null, null, null, false);
+            iter.next();
+            results = c.evaluate(query.getTupleExpr(), query.getDataset(), new EmptyBindingSet(), false);
+            results.next();
+            assertTrue(1 < c.getOpenIterationCount());
+        } finally {
+            c.close();
+        }
+
+        assertEquals(0, c.getOpenIterationCount());
+    }
+
+    @Test
+    public void testMetrics() throws Exception {
+        final List<String> shapes = new LinkedList<String>();
+        PropertyGraphSail pgs = (PropertyGraphSail) sail;
+        pgs.setMetricsEnabled(true);
+        pgs.setMetricsListener(new PatternMetricsListener() {
+            public void patternEvaluated(final long connectionId,
+                                         final String shape,
+                                         final long elements,
+                                         final long statements,
+                                         final long nanos) {
+                shapes.add(shape);
+            }
+        });
+        pgs.setJmxName("testMetrics");
+        MBeanServer server = ManagementFactory.getPlatformMBeanServer();
+        ObjectName sailName = new ObjectName("com.tinkerpop.tinkubator.pgsail:type=PropertyGraphSail,name=\"testMetrics\"");
+        try {
+            PropertyGraphSailConnection c = (PropertyGraphSailConnection) sail.getConnection();
+            ObjectName connectionName = new ObjectName("com.tinkerpop.tinkubator.pgsail:type=PropertyGraphSailConnection,sail=\"testMetrics\",id=" + c.getId());
+            try {
+                assertTrue(server.isRegistered(connectionName));
+
+                assertEquals(60, count(c.getStatements(null, null, null, false)));
+                assertEquals(4, count(c.getStatements(marko, null, null, false)));
+                assertEquals(1, count(c.getStatements(null, name, vf.createLiteral("marko"), false)));
+
+                PatternMetrics m = c.getMetrics();
+                assertEquals(1, m.getCallCount("xxx"));
+                assertEquals(12, m.getElementCount("xxx"));
+                assertEquals(60, m.getStatementCount("xxx"));
+                assertEquals(1, m.getCallCount("Sxx"));
+                assertEquals(1, m.getElementCount("Sxx"));
+                assertEquals(4, m.getStatementCount("Sxx"));
+                assertEquals(1, m.getCallCount("xPO"));
+                assertEquals(1, m.getStatementCount("xPO"));
+                assertEquals(0, m.getCallCount("SPO"));
+                assertEquals(Arrays.asList("xxx", "Sxx", "xPO"), shapes);
+
+                // the same counters are available through JMX
+                TabularData calls = (TabularData) server.getAttribute(connectionName, "Calls");
+                assertEquals(1L, calls.get(new Object[]{"xxx"}).get("value"));
+
+                // this lookup is left unfinished
+                c.getStatements(null, name, null, false).next();
+                assertEquals(0, m.getCallCount("xPx"));
+            } finally {
+                c.close();
+            }
+            assertFalse(server.isRegistered(connectionName));
+
+            // ...and is recorded when the connection closes it
+            assertEquals(1, pgs.getMetrics().getCallCount("xPx"));
+            assertEquals(1, pgs.getMetrics().getStatementCount("xPx"));
+
+            // the Sail keeps the totals of all of its connections
+            assertEquals(1, pgs.getMetrics().getCallCount("xxx"));
+            TabularData statements = (TabularData) server.getAttribute(sailName, "StatementsProduced");
+            assertEquals(60L, statements.get(new Object[]{"xxx"}).get("value"));
+        } finally {
+            pgs.setJmxName(null);
+            pgs.setMetricsEnabled(false);
+        }
+        assertFalse(server.isRegistered(sailName));
+    }
+
+    @Test
+    public void testConcurrentReads() throws Exception {
+        final String queryStr = "PREFIX pgm: <" + PropertyGraphSail.ONTOLOGY_NS + ">\n" +
+                "SELECT ?x ?y WHERE { ?e pgm:tail ?x. ?e pgm:head ?y. ?e pgm:label \"knows\" }";
+        final ParsedQuery query = new SPARQLParser().parseQuery(queryStr, "http://example.org/bogus/");
+        final List<Throwable> errors = Collections.synchronizedList(new LinkedList<Throwable>());
+
+        // each thread reads through its own connection, interleaving lookups and queries
+        Thread[] threads = new Thread[4];
+        for (int i = 0; i < threads.length; i++) {
+            threads[i] = new Thread() {
+                @Override
+                public void run() {
+                    try {
+                        SailConnection c = sail.getConnection();
+                        try {
+                            for (int j = 0; j < 50; j++) {
+                                assertEquals(60, count(c.getStatements(null, null, null, false)));
+                                assertEquals(6, count(c.getStatements(null, name, null, false)));
+                                assertEquals(2, count(c.evaluate(query.getTupleExpr(), query.getDataset(), new EmptyBindingSet(), false)));
+                            }
+                        } finally {
+                            c.close();
+                        }
+                    } catch (Throwable t) {
+                        errors.add(t);
+                    }
+                }
+            };
+            threads[i].start();
+        }
+        for (Thread t : threads) {
+            t.join();
+        }
+        assertEquals(Collections.<Throwable>emptyList(), errors);
+
+        // a closed connection can no longer be used
+        SailConnection c = sail.getConnection();
+        c.close();
+        try {
+            c.getStatements(null, null, null, false);
+            fail();
+        } catch (IllegalStateException e) {
+            // expected
+        }
+    }
+
+    private Collection<BindingSet> evaluate(final String queryStr) throws Exception {
+        ParsedQuery query = new SPARQLParser().parseQuery(queryStr, "http://example.org/bogus/");
+        Collection<BindingSet> results = new LinkedList<BindingSet>();
+        CloseableIteration<? extends BindingSet, QueryEvaluationException> iter
+                = sc.evaluate(query.getTupleExpr(), query.getDataset(), new EmptyBindingSet(), false);
+        try {
+            while (iter.hasNext()) {
+                results.add(iter.next());
+            }
+        } finally {
+            iter.close();
+        }
+
+        return results;
+    }
+
+    private PropertyGraphStatistics.Snapshot awaitNewSnapshot(final PropertyGraphStatistics statistics,
+                                                              final PropertyGraphStatistics.Snapshot old) throws InterruptedException {
+        long timeout = System.currentTimeMillis() + 10000;
+        PropertyGraphStatistics.Snapshot s;
+        while ((s = statistics.getSnapshot()) == old && System.currentTimeMillis() < timeout) {
+            Thread.sleep(10);
+        }
+
+        return s;
+    }
+
+    private long countElements(final Iterable<?> elements) {
+        long count = 0;
+        for (Object e : elements) {
+            count++;
+        }
+
+        return count;
+    }
+
     private long count(final CloseableIteration iter) throws Exception {
         long count = 0;
         try {
@@ -457,4 +1550,13 @@ public class PropertyGraphSailTest {
             i.close();
         }
     }
+
+    // records the transactions concluded by the Sail, without actually rolling back
+    private static class TransactionalTinkerGraph extends TinkerGraph implements TransactionalGraph {
+        private final List<Conclusion> conclusions = new LinkedList<Conclusion>();
+
+        public void stopTransaction(final Conclusion conclusion) {
+            conclusions.add(conclusion);
+        }
+    }
 }